@@ -0,0 +1,73 @@
+package com.frejdh.util.watcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing an event to the listeners of one directory and running their callbacks on the calling thread,
+ * the same steps as the watcher takes for every event that it receives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	/** Listeners on the directory, each limited to a file of its own. */
+	@Param({"1", "100", "10000"})
+	public int listeners;
+
+	private StorageWatcherRoutes routes;
+	private StorageWatcherDispatcher dispatcher;
+	private Path routedFile;
+
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		String directory = Paths.get("benchmark").toAbsolutePath().toString();
+		List<WatchEvent.Kind<Path>> events = Collections.singletonList(StandardWatchEventKinds.ENTRY_MODIFY);
+		List<StorageWatcherComponent> components = new ArrayList<>();
+		for (int i = 0; i < listeners; i++) {
+			components.add(new StorageWatcherComponent(new StorageWatcherProperties(
+					Collections.singletonList("file_" + i + ".txt"), events, directory,
+					(dir, file) -> blackhole.consume(file), null, false, null)));
+		}
+		routes = new StorageWatcherRoutes(components);
+		dispatcher = new StorageWatcherDispatcher(null, false, new StorageWatcherHistogram());
+		routedFile = Paths.get("file_" + (listeners / 2) + ".txt");
+	}
+
+	@Benchmark
+	public void dispatch() {
+		WatchEvent.Kind<Path> kind = StandardWatchEventKinds.ENTRY_MODIFY;
+		for (StorageWatcherComponent component : routes.route(routedFile)) {
+			StorageWatcherProperties properties = component.properties;
+			if (properties.accepts(kind, routedFile)) {
+				String directory = properties.directory.toString();
+				String file = routedFile.toString();
+				dispatcher.dispatch(directory + '/' + file, () -> properties.onChanged.onChanged(directory, file));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package com.frejdh.util.watcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from creating a file until its callback runs, with a given amount of watched directories.
+ * The directories are created on tmpfs (/dev/shm) when available, so that the disk doesn't dominate the result.
+ * Watching 10 000 directories may require raising fs.inotify.max_user_watches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndLatencyBenchmark {
+
+	private static final Path TMPFS = Paths.get("/dev/shm");
+
+	@Param({"1", "100", "10000"})
+	public int directories;
+
+	private final BlockingQueue<String> createdFiles = new LinkedBlockingQueue<>();
+	private final List<Path> watchedDirectories = new ArrayList<>();
+	private Path root;
+	private StorageWatcher watcher;
+	private long counter;
+
+	@Setup
+	public void setUp() throws Exception {
+		root = Files.isDirectory(TMPFS)
+				? Files.createTempDirectory(TMPFS, "storage-watcher-benchmark")
+				: Files.createTempDirectory("storage-watcher-benchmark");
+
+		List<String> uris = new ArrayList<>();
+		for (int i = 0; i < directories; i++) {
+			Path directory = Files.createDirectory(root.resolve("directory_" + i));
+			watchedDirectories.add(directory);
+			uris.add(directory.toUri().toString());
+		}
+
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectories(uris)
+				.onChanged((directory, file) -> createdFiles.add(file))
+				.build();
+		watcher.start();
+		Thread.sleep(500);
+	}
+
+	@Benchmark
+	public String createToCallback() throws Exception {
+		long id = counter++;
+		String filename = "file_" + id;
+		Files.createFile(watchedDirectories.get((int) (id % watchedDirectories.size())).resolve(filename));
+
+		String created;
+		do {
+			created = createdFiles.take();
+		} while (!created.equals(filename));
+		return created;
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		watcher.stop();
+		delete(root.toFile());
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
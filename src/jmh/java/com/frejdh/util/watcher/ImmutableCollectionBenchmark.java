@@ -0,0 +1,65 @@
+package com.frejdh.util.watcher;
+
+import com.frejdh.util.ImmutableCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction and lookups of {@link ImmutableCollection}, which every builder and properties object goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImmutableCollectionBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int size;
+
+	private Set<String> source;
+	private ImmutableCollection<String> collection;
+	private String present;
+	private String absent;
+
+	@Setup
+	public void setUp() {
+		source = new HashSet<>();
+		for (int i = 0; i < size; i++) {
+			source.add("file_" + i + ".txt");
+		}
+		collection = new ImmutableCollection<>(source);
+		present = "file_" + (size - 1) + ".txt";
+		absent = "missing.txt";
+	}
+
+	@Benchmark
+	public ImmutableCollection<String> construct() {
+		return new ImmutableCollection<>(source);
+	}
+
+	@Benchmark
+	public boolean containsPresent() {
+		return collection.contains(present);
+	}
+
+	@Benchmark
+	public boolean containsAbsent() {
+		return collection.contains(absent);
+	}
+
+}
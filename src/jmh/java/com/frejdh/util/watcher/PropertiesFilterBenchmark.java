@@ -0,0 +1,79 @@
+package com.frejdh.util.watcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per event filter of {@link StorageWatcherProperties}, for a directory limited to a given amount of files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesFilterBenchmark {
+
+	@Param({"0", "10", "10000"})
+	public int files;
+
+	private StorageWatcherProperties properties;
+	private StorageWatcherProperties withPatterns;
+	private Path watchedFile;
+	private Path otherFile;
+
+	@Setup
+	public void setUp() {
+		List<String> filenames = new ArrayList<>();
+		for (int i = 0; i < files; i++) {
+			filenames.add("file_" + i + ".txt");
+		}
+		List<WatchEvent.Kind<Path>> events = Collections.singletonList(StandardWatchEventKinds.ENTRY_MODIFY);
+		String directory = Paths.get("benchmark").toAbsolutePath().toString();
+
+		properties = new StorageWatcherProperties(filenames, events, directory, null, null, false, null);
+		withPatterns = new StorageWatcherProperties(filenames, events, directory, null, null, false,
+				StorageWatcherPathFilter.compile(Collections.singletonList("*.txt"), Collections.singletonList(".~lock*")));
+		watchedFile = Paths.get(files > 0 ? "file_" + (files - 1) + ".txt" : "file.txt");
+		otherFile = Paths.get("other.txt");
+	}
+
+	@Benchmark
+	public boolean matchingEvent() {
+		return properties.accepts(StandardWatchEventKinds.ENTRY_MODIFY, watchedFile);
+	}
+
+	@Benchmark
+	public boolean otherFile() {
+		return properties.accepts(StandardWatchEventKinds.ENTRY_MODIFY, otherFile);
+	}
+
+	@Benchmark
+	public boolean otherEventKind() {
+		return properties.accepts(StandardWatchEventKinds.ENTRY_CREATE, watchedFile);
+	}
+
+	@Benchmark
+	public boolean matchingEventWithPatterns() {
+		return withPatterns.accepts(StandardWatchEventKinds.ENTRY_MODIFY, watchedFile);
+	}
+
+}
@@ -0,0 +1,88 @@
+package com.frejdh.util.watcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushing out the deadline of one of many pending paths, as every event of a file being written does for its stability check.
+ * Compares the timer wheel with one scheduled task per path on a {@link ScheduledThreadPoolExecutor}.
+ * The deadlines are far enough away to never expire during the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerWheelBenchmark {
+
+	private static final long WINDOW_NANOS = TimeUnit.HOURS.toNanos(1);
+	private static final Runnable TASK = () -> { };
+
+	/** Paths with a pending deadline. */
+	@Param({"1000", "100000"})
+	public int pending;
+
+	private Path[] paths;
+	private int next;
+	private StorageWatcherTimerWheel<Path> wheel;
+	private ScheduledThreadPoolExecutor executor;
+	private Map<Path, ScheduledFuture<?>> tasks;
+
+	@Setup
+	public void setUp() {
+		paths = new Path[pending];
+		wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, System.nanoTime());
+		executor = new ScheduledThreadPoolExecutor(1);
+		executor.setRemoveOnCancelPolicy(true);
+		tasks = new HashMap<>();
+		for (int i = 0; i < pending; i++) {
+			paths[i] = Paths.get("benchmark", "file_" + i + ".txt").toAbsolutePath();
+			long delay = WINDOW_NANOS + ThreadLocalRandom.current().nextLong(WINDOW_NANOS);
+			wheel.schedule(paths[i], System.nanoTime() + delay);
+			tasks.put(paths[i], executor.schedule(TASK, delay, TimeUnit.NANOSECONDS));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public void rescheduleTimerWheel() {
+		wheel.schedule(nextPath(), System.nanoTime() + WINDOW_NANOS);
+	}
+
+	@Benchmark
+	public void rescheduleExecutor() {
+		Path path = nextPath();
+		tasks.put(path, executor.schedule(TASK, WINDOW_NANOS, TimeUnit.NANOSECONDS)).cancel(false);
+	}
+
+	private Path nextPath() {
+		Path path = paths[next];
+		next = (next + 1) % paths.length;
+		return path;
+	}
+
+}
@@ -2,169 +2,357 @@ package com.frejdh.util;
 import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
 import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import java.util.stream.Stream;
 
 /**
  * Immutable collection due to lacking support in native Java.
+ * Backed by an array, with either list semantics (ordered, duplicates allowed) or set semantics (distinct elements).
+ * Lookups in larger collections go through a hash index, which is built on the first call to {@link #contains(Object)}.
  * @param <T> Type parameter for the collection.
  */
 @SuppressWarnings("unused")
 public class ImmutableCollection<T> implements Iterable<T> {
 
-	private final Collection<T> collection;
-	private final Class<?> type;
+	/** Collections up to this size are searched linearly, which is faster than hashing. */
+	private static final int LINEAR_SEARCH_THRESHOLD = 8;
 
+	private final Object[] elements;
+	private final boolean set;
+	// Built lazily. Immutable once built, so a racy publication at worst builds it twice
+	private HashIndex index;
+
+	/**
+	 * Create a collection with list semantics.
+	 * @param elements The elements.
+	 */
 	@SafeVarargs
 	public ImmutableCollection(T... elements) {
-		this.collection = Arrays.asList(elements);
-		this.type = elements.length > 0 ? elements[0].getClass() : ArrayList.class;
+		this(new Object[elements.length], false);
+		// Copied element by element, as passing on the varargs array itself is reported as possible heap pollution
+		for (int i = 0; i < elements.length; i++) {
+			this.elements[i] = elements[i];
+		}
 	}
 
+	/**
+	 * Copy a collection. Sets keep their set semantics, while any other collection is copied as a list.
+	 * @param collection The collection to copy. Null = empty.
+	 */
 	public ImmutableCollection(Collection<T> collection) {
-		this.collection = collection != null ? copy(collection) : new ArrayList<>();
-		this.type = collection != null && collection.size() > 0 ? collection.iterator().next().getClass() : ArrayList.class;
+		this(collection != null ? collection.toArray() : new Object[0], collection instanceof Set);
 	}
 
-	@SuppressWarnings("unchecked")
-	private Collection<T> copy(Collection<T> collection) {
-		if (collection == null)
-			return null;
+	private ImmutableCollection(Object[] elements, boolean set) {
+		this.elements = elements;
+		this.set = set;
+	}
 
-		try {
-			return collection.getClass().getConstructor(Collection.class).newInstance(collection);
-		} catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
-			return new ArrayList<>(collection);
-		}
+	/**
+	 * Copy a collection, with list semantics.
+	 * @param collection The collection to copy.
+	 * @param <T> Type of the elements.
+	 * @return A new instance.
+	 */
+	public static <T> ImmutableCollection<T> listOf(@NotNull Collection<? extends T> collection) {
+		return new ImmutableCollection<>(collection.toArray(), false);
+	}
+
+	/**
+	 * Copy a collection, with set semantics. Duplicates are removed, keeping the first occurrence.
+	 * @param collection The collection to copy.
+	 * @param <T> Type of the elements.
+	 * @return A new instance.
+	 */
+	public static <T> ImmutableCollection<T> setOf(@NotNull Collection<? extends T> collection) {
+		Object[] elements = collection instanceof Set ? collection.toArray() : new LinkedHashSet<>(collection).toArray();
+		return new ImmutableCollection<>(elements, true);
+	}
+
+	/**
+	 * @return True if the collection has set semantics, false if it has list semantics.
+	 */
+	public boolean isSet() {
+		return set;
 	}
 
 	/**
 	 * Same as {@link Collection#size()}.
 	 */
 	public int size() {
-		return this.collection.size();
+		return elements.length;
 	}
 
 	/**
 	 * Same as {@link Collection#isEmpty()}.
 	 */
 	public boolean isEmpty() {
-		return this.collection.isEmpty();
+		return elements.length == 0;
 	}
 
 	/**
-	 * Same as {@link Collection#contains(Object)}.
+	 * Same as {@link Collection#contains(Object)}. Runs in constant time for larger collections.
 	 */
 	public boolean contains(T element) {
-		return this.collection.contains(element);
+		if (elements.length <= LINEAR_SEARCH_THRESHOLD) {
+			for (Object candidate : elements) {
+				if (Objects.equals(candidate, element)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		HashIndex index = this.index;
+		if (index == null) {
+			index = new HashIndex(elements);
+			this.index = index;
+		}
+		return index.contains(elements, element);
 	}
 
 	/**
 	 * Same as {@link Collection#containsAll(Collection)}.
 	 */
 	public boolean containsAll(ImmutableCollection<T> elements) {
-		return this.collection.containsAll(elements.collection);
+		for (Object element : elements.elements) {
+			if (!containsObject(element)) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
 	 * Same as {@link Collection#containsAll(Collection)}.
 	 */
 	public boolean containsAll(Collection<?> elements) {
-		return this.collection.containsAll(elements);
+		for (Object element : elements) {
+			if (!containsObject(element)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean containsObject(Object element) {
+		return contains((T) element);
 	}
 
 	/**
-	 * Deep copy into another immutable reference.
+	 * Copy into another immutable reference. The elements themselves are shared, since they can't be modified through the collection.
 	 * @return A new instance of the collection.
 	 */
 	@SuppressWarnings("MethodDoesntCallSuperMethod")
 	public ImmutableCollection<T> clone() {
-		return new ImmutableCollection<>(collection);
+		return new ImmutableCollection<>(elements, set);
 	}
 
 	/**
-	 * Deep copies the collection.
-	 * The new collection is mutable, assuming that the implementation passed in the constructor was mutable to begin with.
-	 * @return A new instance of the collection.
+	 * Copies the collection into a mutable one.
+	 * @return A new {@link LinkedHashSet} for collections with set semantics, otherwise a new {@link ArrayList}.
 	 */
 	@SuppressWarnings("unchecked")
 	public Collection<T> cloneToMutable() {
-		try {
-			return (Collection<T>) type.getConstructor(Collection.class).newInstance(collection);
-		} catch (NoSuchMethodException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
-			return new ArrayList<>(collection);
-		}
+		List<T> list = (List<T>) Arrays.asList(elements);
+		return set ? new LinkedHashSet<>(list) : new ArrayList<>(list);
 	}
 
 	/**
-	 * Same as {@link Collection#toArray()}.
+	 * Same as {@link Collection#toArray()}, but the array has the most specific class shared by all of the elements.
+	 * Only superclasses are considered, so elements that only share an interface (or are all null) give an <code>Object[]</code>,
+	 * which can't be cast to <code>T[]</code> when T is the interface. Use {@link #toArray(IntFunction)} or {@link #toArray(Object[])} for those.
 	 */
 	@SuppressWarnings("unchecked")
 	public T[] toArray() {
-		return toArray((T[]) Array.newInstance(type, this.collection.size()));
+		Class<?> type = null;
+		for (Object element : elements) {
+			if (element == null) {
+				continue;
+			}
+			if (type == null) {
+				type = element.getClass();
+			}
+			while (!type.isInstance(element)) {
+				type = type.getSuperclass();
+			}
+		}
+		return toArray((T[]) Array.newInstance(type != null ? type : Object.class, elements.length));
+	}
+
+	/**
+	 * Same as <code>Collection#toArray(IntFunction)</code> of Java 11.
+	 * @param generator Creates an array of the given length, such as <code>String[]::new</code>.
+	 */
+	public T[] toArray(@NotNull IntFunction<T[]> generator) {
+		return toArray(generator.apply(elements.length));
 	}
 
 	/**
 	 * Same as {@link Collection#toArray(Object[])}.
 	 */
+	@SuppressWarnings("unchecked")
 	public T[] toArray(T[] array) {
-		return this.collection.toArray(array);
+		if (array.length < elements.length) {
+			array = (T[]) Array.newInstance(array.getClass().getComponentType(), elements.length);
+		}
+		System.arraycopy(elements, 0, array, 0, elements.length);
+		if (array.length > elements.length) {
+			array[elements.length] = null;
+		}
+		return array;
 	}
 
 	/**
-	 * Same as {@link Collection#equals(Object)}.
+	 * Same as {@link Collection#equals(Object)}. Compares with both immutable and regular collections,
+	 * using set semantics if this collection is a set and list semantics otherwise.
 	 */
-	@SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
 	@Override
 	public boolean equals(Object object) {
-		return this.collection.equals(object);
+		if (object == this) {
+			return true;
+		}
+
+		Collection<?> other;
+		if (object instanceof ImmutableCollection) {
+			ImmutableCollection<?> immutable = (ImmutableCollection<?>) object;
+			if (immutable.set != set) {
+				return false;
+			}
+			other = Arrays.asList(immutable.elements);
+		} else if (set ? object instanceof Set : object instanceof List) {
+			other = (Collection<?>) object;
+		} else {
+			return false;
+		}
+
+		if (other.size() != elements.length) {
+			return false;
+		} else if (set) {
+			return containsAll(other);
+		}
+		return Arrays.asList(elements).equals(other);
 	}
 
 	/**
-	 * Same as {@link Collection#hashCode()}.
+	 * Same as {@link Collection#hashCode()}, for a set or a list depending on the semantics.
 	 */
+	@Override
 	public int hashCode() {
-		return this.collection.hashCode();
+		if (set) {
+			int hash = 0;
+			for (Object element : elements) {
+				hash += Objects.hashCode(element);
+			}
+			return hash;
+		}
+		return Arrays.hashCode(elements);
 	}
 
 	/**
-	 * Same as {@link Collection#iterator()}.
+	 * Same as {@link Collection#iterator()}. Doesn't support {@link Iterator#remove()}.
 	 */
 	@NotNull
 	public Iterator<T> iterator() {
-		return this.collection.iterator();
+		return new Iterator<T>() {
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return next < elements.length;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if (next >= elements.length) {
+					throw new NoSuchElementException();
+				}
+				return (T) elements[next++];
+			}
+		};
 	}
 
 	/**
 	 * Same as {@link Collection#forEach(Consumer)}.
 	 */
+	@SuppressWarnings("unchecked")
 	public void forEach(Consumer<? super T> action) {
-		this.collection.forEach(action);
+		for (Object element : elements) {
+			action.accept((T) element);
+		}
 	}
 
 	/**
 	 * Same as {@link Collection#toString()}.
 	 */
 	public String toString() {
-		return this.collection.toString();
+		return Arrays.toString(elements);
 	}
 
 	/**
 	 * Same as {@link Collection#stream()}.
 	 */
+	@SuppressWarnings("unchecked")
 	public Stream<T> stream() {
-		return this.collection.stream();
+		return (Stream<T>) Arrays.stream(elements);
 	}
 
 	/**
 	 * Same as {@link Collection#parallelStream()}.
 	 */
 	public Stream<T> parallelStream() {
-		return this.collection.parallelStream();
+		return stream().parallel();
+	}
+
+	/**
+	 * Open addressing hash table of positions in the element array, at most half full.
+	 */
+	private static final class HashIndex {
+		private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+		// Position + 1 of the element in each slot, 0 = empty
+		private final int[] slots;
+		private final int shift;
+
+		private HashIndex(Object[] elements) {
+			int bits = 1;
+			while ((1 << bits) < elements.length * 2) {
+				bits++;
+			}
+			this.slots = new int[1 << bits];
+			this.shift = Integer.SIZE - bits;
+			for (int i = 0; i < elements.length; i++) {
+				int slot = slotOf(elements[i]);
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & (slots.length - 1);
+				}
+				slots[slot] = i + 1;
+			}
+		}
+
+		private boolean contains(Object[] elements, Object element) {
+			for (int slot = slotOf(element); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+				if (Objects.equals(elements[slots[slot] - 1], element)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private int slotOf(Object element) {
+			return (Objects.hashCode(element) * GOLDEN_RATIO) >>> shift;
+		}
 	}
 }
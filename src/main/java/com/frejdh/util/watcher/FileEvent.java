@@ -0,0 +1,135 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.Objects;
+
+/**
+ * A typed event for a file or directory, as delivered to {@link StorageWatcher.OnChangedBatch}.
+ */
+public final class FileEvent {
+
+	/**
+	 * The kind of change.
+	 */
+	public enum Kind {
+		CREATE(StandardWatchEventKinds.ENTRY_CREATE),
+		MODIFY(StandardWatchEventKinds.ENTRY_MODIFY),
+		DELETE(StandardWatchEventKinds.ENTRY_DELETE),
+		/**
+		 * A file that was opened for writing has been closed. Only reported by the {@link StorageWatcher.Engine#NATIVE} engine,
+		 * see {@link StorageWatcher#ENTRY_CLOSE_WRITE}. Never merged into the other kinds when coalescing,
+		 * but reported once after the net event of the file.
+		 */
+		CLOSE_WRITE(StorageWatcher.ENTRY_CLOSE_WRITE),
+		/**
+		 * A file that was moved or renamed, see {@link #previousPath}. Only reported when moves are paired,
+		 * see {@link StorageWatcherBuilder#pairMoves(boolean)}.
+		 */
+		MOVED(null),
+		/**
+		 * A created or modified file that has stopped changing, such as once a large file has been copied completely.
+		 * Only reported when enabled, see {@link StorageWatcherBuilder#reportStableFiles(Long, java.util.concurrent.TimeUnit)}.
+		 */
+		STABLE(null);
+
+		private final WatchEvent.Kind<Path> watchEventKind;
+
+		Kind(WatchEvent.Kind<Path> watchEventKind) {
+			this.watchEventKind = watchEventKind;
+		}
+
+		/**
+		 * @return The equivalent {@link StandardWatchEventKinds} value (or {@link StorageWatcher#ENTRY_CLOSE_WRITE}),
+		 * or null for {@link #MOVED} and {@link #STABLE} which have none.
+		 */
+		@Nullable
+		public WatchEvent.Kind<Path> toWatchEventKind() {
+			return watchEventKind;
+		}
+
+		/**
+		 * Get the kind for a {@link StandardWatchEventKinds} value, or for {@link StorageWatcher#ENTRY_CLOSE_WRITE}.
+		 * @param watchEventKind The watch event kind.
+		 * @return The kind, or null for {@link StandardWatchEventKinds#OVERFLOW}.
+		 */
+		@Nullable
+		public static Kind of(WatchEvent.Kind<?> watchEventKind) {
+			if (watchEventKind == StandardWatchEventKinds.ENTRY_CREATE) {
+				return CREATE;
+			} else if (watchEventKind == StandardWatchEventKinds.ENTRY_MODIFY) {
+				return MODIFY;
+			} else if (watchEventKind == StandardWatchEventKinds.ENTRY_DELETE) {
+				return DELETE;
+			} else if (watchEventKind == StorageWatcher.ENTRY_CLOSE_WRITE) {
+				return CLOSE_WRITE;
+			}
+			return null;
+		}
+	}
+
+	/** The watched directory that the event occurred in. */
+	public final Path directory;
+	/** The full path of the affected file or directory. */
+	public final Path path;
+	/** The kind of change. */
+	public final Kind kind;
+	/** The time that the watcher handled the event, in milliseconds since the epoch. */
+	public final long timestamp;
+	/** The full path that a {@link Kind#MOVED} file was moved from, or null for the other kinds. */
+	public final Path previousPath;
+
+	public FileEvent(@NotNull Path directory, @NotNull Path path, @NotNull Kind kind, long timestamp) {
+		this(directory, path, kind, timestamp, null);
+	}
+
+	/**
+	 * @param directory The watched directory that the event occurred in. For a move, the directory that the file was moved to.
+	 * @param path The full path of the affected file or directory. For a move, the path that it was moved to.
+	 * @param kind The kind of change.
+	 * @param timestamp The time that the watcher handled the event, in milliseconds since the epoch.
+	 * @param previousPath The full path that the file was moved from, for {@link Kind#MOVED}.
+	 */
+	public FileEvent(@NotNull Path directory, @NotNull Path path, @NotNull Kind kind, long timestamp, @Nullable Path previousPath) {
+		this.directory = directory;
+		this.path = path;
+		this.kind = kind;
+		this.timestamp = timestamp;
+		this.previousPath = previousPath;
+	}
+
+	/**
+	 * @return The name of the affected file, without the directory.
+	 */
+	public String getFilename() {
+		return path.getFileName().toString();
+	}
+
+	@Override
+	public boolean equals(Object object) {
+		if (!(object instanceof FileEvent)) {
+			return false;
+		}
+		FileEvent other = (FileEvent) object;
+		return kind == other.kind && timestamp == other.timestamp && directory.equals(other.directory) && path.equals(other.path)
+				&& Objects.equals(previousPath, other.previousPath);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = directory.hashCode();
+		result = 31 * result + path.hashCode();
+		result = 31 * result + kind.hashCode();
+		result = 31 * result + Objects.hashCode(previousPath);
+		return 31 * result + Long.hashCode(timestamp);
+	}
+
+	@Override
+	public String toString() {
+		return previousPath != null ? kind + " " + previousPath + " -> " + path : kind + " " + path;
+	}
+}
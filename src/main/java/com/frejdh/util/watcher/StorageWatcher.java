@@ -1,12 +1,13 @@
 package com.frejdh.util.watcher;
 import com.frejdh.util.ImmutableCollection;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.nio.file.*;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Watch files inside a directory.
@@ -17,111 +18,240 @@ public class StorageWatcher {
 		void onChanged(String directory, String filename);
 	}
 
+	/**
+	 * The source of the events.
+	 */
+	public enum Engine {
+		/** The native watch service of the file system, such as inotify on Linux. The default. */
+		WATCH_SERVICE,
+		/** Scan the directories once per interval and compare them with their previous state. For file systems without native support, such as NFS and SMB mounts. */
+		POLLING,
+		/**
+		 * {@link #WATCH_SERVICE} when the platform supports it natively for all of the watched directories, otherwise {@link #POLLING}.
+		 * Polling is used if the JDK only provides its own polling fallback, or if a directory is on a remote file system.
+		 */
+		AUTO,
+		/**
+		 * Read inotify directly on Linux, instead of through the watch service of the JDK and its background thread.
+		 * Also reports {@link #ENTRY_CLOSE_WRITE}, and pairs moves by their inotify cookies (see {@link StorageWatcherBuilder#pairMoves(boolean)}).
+		 * Needs the foreign function API of Java 22 or later, and falls back to {@link #WATCH_SERVICE} where it isn't available.
+		 */
+		NATIVE
+	}
+
+	/**
+	 * A file that was opened for writing has been closed, such as once a file has been written completely.
+	 * Only reported by the {@link Engine#NATIVE} engine, and ignored by the others. Can be passed to {@link StorageWatcherBuilder#specifyEvent(WatchEvent.Kind)}.
+	 */
+	public static final WatchEvent.Kind<Path> ENTRY_CLOSE_WRITE = new WatchEvent.Kind<Path>() {
+		@Override
+		public String name() {
+			return "ENTRY_CLOSE_WRITE";
+		}
+
+		@Override
+		public Class<Path> type() {
+			return Path.class;
+		}
+
+		@Override
+		public String toString() {
+			return name();
+		}
+	};
+
+	/**
+	 * What to do with new events when the event queue is full, see {@link StorageWatcherBuilder#eventQueue(int, QueuePolicy)}.
+	 */
+	public enum QueuePolicy {
+		/** Wait until there is room. The watcher stops reading events meanwhile, which may in turn overflow the file system's own queue. */
+		BLOCK,
+		/** Drop the oldest waiting event to make room for the new one. */
+		DROP_OLDEST,
+		/** Drop the new event. */
+		DROP_NEWEST,
+		/**
+		 * Merge the new event into a waiting event for the same file, such as a modification into a waiting creation. Dropped if there is none.
+		 * {@link #ENTRY_CLOSE_WRITE} is only merged into a waiting close, and the other kinds never into one.
+		 */
+		COALESCE_BY_PATH,
+		/**
+		 * Drop the new event, and rescan its directory once the queue has room again. The differences are reported as events,
+		 * see {@link StorageWatcherBuilder#recoverFromOverflow(boolean)}, which this policy enables.
+		 */
+		RESCAN
+	}
+
+	public interface OnChangedBatch {
+		/**
+		 * @param events Immutable list of the events, in the order that they were detected.
+		 */
+		void onChanged(List<FileEvent> events);
+	}
+
 	public final ImmutableCollection<StorageWatcherComponent> components;
+	private final List<StorageWatcherShard> shards;
+	private final StorageWatcherSettings settings;
+	private final StorageWatcherMetricsRecorder metrics;
+	private final StorageWatcherBuildReport buildReport;
+	private final AtomicInteger runningShards = new AtomicInteger();
 	public final long interval;
 	public final TimeUnit intervalUnit;
-	private volatile boolean shouldRun;
 
 	public static final long DEFAULT_INTERVAL = 10;
 	public static final TimeUnit DEFAULT_INTERVAL_UNIT = TimeUnit.SECONDS;
 
 	/**
-	 * Watcher thread for the configured storage properties.
-	 * @param components Components to watch
-	 * @param interval Interval to check for new changes.
-	 * @param intervalUnit Interval unit.
+	 * Watcher threads for the configured storage properties, one per shard.
+	 * @param keyIndexes Index of each shard, for routing the keys of its engine to its components. At least one.
+	 * @param settings Settings shared between all of the components.
+	 * @param buildReport Report of the registration, which may still be running in the background.
 	 */
-	StorageWatcher(List<StorageWatcherComponent> components, Long interval, TimeUnit intervalUnit) {
+	StorageWatcher(List<StorageWatcherKeyIndex> keyIndexes, StorageWatcherSettings settings, StorageWatcherBuildReport buildReport) {
+		this.buildReport = buildReport;
+		this.settings = settings;
+		this.interval = settings.interval;
+		this.intervalUnit = settings.intervalUnit;
+		StorageWatcherHistogram callbackLatency = new StorageWatcherHistogram();
+		this.metrics = new StorageWatcherMetricsRecorder(callbackLatency, this::getPendingCallbacks, this::getWatchedKeys,
+				this::getEventQueueDepth, this::getDroppedEvents);
+
+		List<StorageWatcherShard> shards = new ArrayList<>();
+		List<StorageWatcherComponent> components = new ArrayList<>();
+		for (StorageWatcherKeyIndex keyIndex : keyIndexes) {
+			StorageWatcherShard shard = new StorageWatcherShard(keyIndex, settings, buildReport, metrics, callbackLatency, this::onShardTerminated);
+			shards.add(shard);
+			components.addAll(shard.components());
+		}
+		this.shards = Collections.unmodifiableList(shards);
 		this.components = new ImmutableCollection<>(components);
-		this.interval = (interval != null) ? interval : DEFAULT_INTERVAL;
-		this.intervalUnit = (intervalUnit != null) ? intervalUnit : DEFAULT_INTERVAL_UNIT;
 	}
 
 	/**
-	 * Same as {@link #StorageWatcher(List, Long, TimeUnit)} with the interval settings: {@link #DEFAULT_INTERVAL} and {@link #DEFAULT_INTERVAL_UNIT}.
-	 * @param components Components to watch
+	 * Same as {@link #StorageWatcher(List, StorageWatcherSettings, StorageWatcherBuildReport)} with the default settings,
+	 * such as the interval settings: {@link #DEFAULT_INTERVAL} and {@link #DEFAULT_INTERVAL_UNIT}.
+	 * @param keyIndexes Index of each shard, for routing the keys of its engine to its components. At least one.
+	 * @param buildReport Report of the registration.
 	 */
-	StorageWatcher(List<StorageWatcherComponent> components) {
-		this(components, DEFAULT_INTERVAL, DEFAULT_INTERVAL_UNIT);
+	StorageWatcher(List<StorageWatcherKeyIndex> keyIndexes, StorageWatcherBuildReport buildReport) {
+		this(keyIndexes, new StorageWatcherSettings(), buildReport);
 	}
 
-	private final Thread watcherExecutionThread = new Thread() {
-		/**
-		 * <strong>Do not use this method to start the thread</strong>. Please use {@link #start()} instead! <br>
-		 * Original documentation: {@link Thread#run}
-		 */
-		@SuppressWarnings("BusyWait")
-		public void run() {
-			if (components == null || components.isEmpty()) {
-				return;
-			}
-			shouldRun = true;
-
-			try {
-				while (shouldRun) {
-					for (StorageWatcherComponent component : components) {
-						WatchKey wk;
-						try {
-							wk = component.watcher.poll(50, TimeUnit.MILLISECONDS);
-						} catch (InterruptedException e) {
-							return;
-						}
-
-						if (wk == null) {
-							Thread.yield();
-							continue;
-						}
-
-						for (WatchEvent<?> event : wk.pollEvents()) {
-							WatchEvent.Kind<?> kind = event.kind();
-
-							@SuppressWarnings("unchecked")
-							WatchEvent<Path> ev = (WatchEvent<Path>) event;
-							Path filename = ev.context();
-
-							if (kind == StandardWatchEventKinds.OVERFLOW) {
-								Thread.yield();
-								continue;
-							} else if (component.properties.eventsToWatch.contains((WatchEvent.Kind<Path>) kind) &&
-									(component.properties.isWatchingAllFiles() || component.properties.files.contains(filename.toString()))) {
-								component.properties.onChanged.onChanged(component.properties.directory.toString(), filename.toString());
-							}
-							boolean valid = wk.reset();
-							if (!valid) { break; }
-						}
-					}
-					Thread.sleep(intervalUnit.toMillis(interval));
-				}
-			} catch (Exception e) {
-				StringWriter errors = new StringWriter();
-				e.printStackTrace(new PrintWriter(errors));
-				String stacktrace = errors.toString();
-				Logger.getGlobal().severe(e.toString() + ". " + stacktrace);
-			}
+	/**
+	 * Helper method. Unregister the metrics once the last shard has stopped.
+	 */
+	private void onShardTerminated() {
+		if (runningShards.decrementAndGet() == 0) {
+			metrics.unregisterMBean();
 		}
-	};
+	}
+
+	private long getPendingCallbacks() {
+		long pendingCallbacks = 0;
+		for (StorageWatcherShard shard : shards) {
+			pendingCallbacks += shard.getPendingCallbacks();
+		}
+		return pendingCallbacks;
+	}
+
+	private int getWatchedKeys() {
+		int watchedKeys = 0;
+		for (StorageWatcherShard shard : shards) {
+			watchedKeys += shard.getWatchedKeys();
+		}
+		return watchedKeys;
+	}
+
+	private long getEventQueueDepth() {
+		long depth = 0;
+		for (StorageWatcherShard shard : shards) {
+			depth += shard.getEventQueueDepth();
+		}
+		return depth;
+	}
+
+	private long getDroppedEvents() {
+		long droppedEvents = 0;
+		for (StorageWatcherShard shard : shards) {
+			droppedEvents += shard.getDroppedEvents();
+		}
+		return droppedEvents;
+	}
 
 	/**
-	 * Start the watcher thread <br>
+	 * Start the watcher thread, or one thread per shard <br>
 	 * Reference documentation: {@link Thread#start}.
 	 */
 	public void start() {
-		watcherExecutionThread.start();
+		if (settings.metricsMBeanName != null && !components.isEmpty()) {
+			metrics.registerMBean(settings.metricsMBeanName);
+		}
+		runningShards.set(shards.size());
+		shards.forEach(StorageWatcherShard::start);
 	}
 
 	/**
-	 * Stop the execution of the watcher thread.
+	 * Stop the execution of the watcher thread(s).
 	 * Use this method instead of the stopping the execution thread manually.
 	 */
 	public void stop() {
-		shouldRun = false;
+		shards.forEach(StorageWatcherShard::stop);
+	}
+
+	/**
+	 * Release the engines and dispatchers of a watcher that was never started, such as when it's no longer needed after being built.
+	 * Directories still being registered in the background fail to register once their engine is closed.
+	 */
+	void close() {
+		shards.forEach(StorageWatcherShard::close);
+	}
+
+	/**
+	 * Check whether the watcher blocks until events are delivered, instead of checking for them once per interval.
+	 * Always the case for engines that check for events on a schedule of their own, such as {@link Engine#POLLING}.
+	 * @return True if the watcher is event driven.
+	 */
+	public boolean isEventDriven() {
+		return shards.get(0).isEventDriven();
+	}
+
+	/**
+	 * @return Which directories were registered, and which failed and why.
+	 * Still filling up if the directories are registered in the background, see {@link StorageWatcherBuilder#registerInBackground(boolean)}.
+	 */
+	public StorageWatcherBuildReport getBuildReport() {
+		return buildReport;
+	}
+
+	/**
+	 * @return Live metrics of the watcher, such as the amount of received events and the latency of the callbacks.
+	 */
+	public StorageWatcherMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return The source of the events. Never {@link Engine#AUTO}, but the engine that it resolved to.
+	 */
+	public Engine getEngine() {
+		return shards.get(0).getEngine();
 	}
 
 	/**
 	 * Get the internal execution thread that the watcher uses.
-	 * @return The used watcher thread.
+	 * @return The used watcher thread, or the thread of the first shard if sharded.
 	 */
 	public Thread getExecutionThread() {
-		return watcherExecutionThread;
+		return shards.get(0).getExecutionThread();
+	}
+
+	/**
+	 * Get the internal execution threads of all shards, see {@link StorageWatcherBuilder#shards(int)}.
+	 * @return The used watcher threads, one per shard.
+	 */
+	public List<Thread> getExecutionThreads() {
+		List<Thread> threads = new ArrayList<>();
+		shards.forEach(shard -> threads.add(shard.getExecutionThread()));
+		return threads;
 	}
 }
@@ -0,0 +1,97 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the events for {@link StorageWatcher.OnChangedBatch} callbacks.
+ * By default a batch contains the events of one drain cycle of the watcher. With a max latency configured,
+ * the events of multiple drain cycles are collected until the oldest event reaches the latency.
+ * Batches exceeding the max size are delivered right away.
+ * Only used by the watcher thread, and therefore not thread safe.
+ */
+class StorageWatcherBatcher {
+
+	private final int maxSize;
+	private final long maxLatencyNanos;
+	private final StorageWatcherDispatcher dispatcher;
+	// One batch per configuration, where recursively watched subdirectories share the batch of their root
+	private final Map<StorageWatcherProperties, Batch> batches = new LinkedHashMap<>();
+
+	/**
+	 * @param maxSize Max amount of events per batch. (<= 0) = unlimited.
+	 * @param maxLatency Max time to collect events for. (<= 0) = one drain cycle.
+	 * @param maxLatencyUnit Unit of the latency.
+	 * @param dispatcher Dispatcher for the callbacks.
+	 */
+	StorageWatcherBatcher(int maxSize, long maxLatency, @NotNull TimeUnit maxLatencyUnit, @NotNull StorageWatcherDispatcher dispatcher) {
+		this.maxSize = maxSize;
+		this.maxLatencyNanos = maxLatencyUnit.toNanos(maxLatency);
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Add an event to the batch of a configuration.
+	 * @param properties The (root) properties of the configuration.
+	 * @param event The event.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 */
+	void add(StorageWatcherProperties properties, FileEvent event, long now) {
+		Batch batch = batches.computeIfAbsent(properties, key -> new Batch(now + maxLatencyNanos));
+		batch.events.add(event);
+
+		if (maxSize > 0 && batch.events.size() >= maxSize) {
+			batches.remove(properties);
+			deliver(properties, batch);
+		}
+	}
+
+	/**
+	 * Deliver the batches that are due. Called at the end of every drain cycle.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 */
+	void flush(long now) {
+		for (Iterator<Map.Entry<StorageWatcherProperties, Batch>> iterator = batches.entrySet().iterator(); iterator.hasNext(); ) {
+			Map.Entry<StorageWatcherProperties, Batch> entry = iterator.next();
+			if (maxLatencyNanos <= 0 || entry.getValue().deadline - now <= 0) {
+				iterator.remove();
+				deliver(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Get the time until the next batch is due, when collecting over multiple drain cycles.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @return The time in nanoseconds (0 if already due), or -1 if no batches are pending.
+	 */
+	long nanosUntilNextFlush(long now) {
+		long nanos = -1;
+		for (Batch batch : batches.values()) {
+			long remaining = Math.max(0, batch.deadline - now);
+			nanos = nanos < 0 ? remaining : Math.min(nanos, remaining);
+		}
+		return nanos;
+	}
+
+	private void deliver(StorageWatcherProperties properties, Batch batch) {
+		List<FileEvent> events = Collections.unmodifiableList(batch.events);
+		dispatcher.dispatch(properties, () -> properties.onChangedBatch.onChanged(events));
+	}
+
+	private static class Batch {
+		private final List<FileEvent> events = new ArrayList<>();
+		private final long deadline;
+
+		private Batch(long deadline) {
+			this.deadline = deadline;
+		}
+	}
+}
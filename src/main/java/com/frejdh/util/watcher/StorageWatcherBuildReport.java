@@ -0,0 +1,140 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcome of registering the directories of a watcher, see {@link StorageWatcher#getBuildReport()}.
+ * Directories that can't be registered are skipped and listed here, instead of failing the whole watcher.
+ * When registering in the background (see {@link StorageWatcherBuilder#registerInBackground(boolean)}) the report fills up while the watcher runs.
+ */
+public class StorageWatcherBuildReport {
+
+	/**
+	 * A directory that couldn't be registered.
+	 */
+	public static class Failure {
+		public final Path directory;
+		public final Exception cause;
+
+		Failure(@NotNull Path directory, @NotNull Exception cause) {
+			this.directory = directory;
+			this.cause = cause;
+		}
+
+		/**
+		 * @return Short description of why the directory couldn't be registered.
+		 */
+		public String getReason() {
+			return cause.getClass().getSimpleName() + (cause.getMessage() != null ? ": " + cause.getMessage() : "");
+		}
+
+		@Override
+		public String toString() {
+			return directory + " (" + getReason() + ")";
+		}
+	}
+
+	private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+	private final LongAdder registeredDirectories = new LongAdder();
+	private final CompletableFuture<Void> completion = new CompletableFuture<>();
+	private final AtomicInteger pendingRegistrations;
+
+	/**
+	 * @param registrations The amount of separate registrations (one per shard) that have to complete before the report is complete.
+	 */
+	StorageWatcherBuildReport(int registrations) {
+		this.pendingRegistrations = new AtomicInteger(registrations);
+	}
+
+	StorageWatcherBuildReport() {
+		this(1);
+	}
+
+	void registered() {
+		registeredDirectories.increment();
+	}
+
+	void failed(@NotNull Path directory, @NotNull Exception cause) {
+		failures.add(new Failure(directory, cause));
+	}
+
+	/**
+	 * Mark one of the registrations as complete.
+	 */
+	void complete() {
+		if (pendingRegistrations.decrementAndGet() <= 0) {
+			completion.complete(null);
+		}
+	}
+
+	/**
+	 * @param action Action to run once the registration is complete, directly if it already is.
+	 */
+	void onCompletion(@NotNull Runnable action) {
+		completion.thenRun(action);
+	}
+
+	/**
+	 * @return The directories that couldn't be registered so far.
+	 */
+	public List<Failure> getFailures() {
+		return new ArrayList<>(failures);
+	}
+
+	/**
+	 * @return The amount of directories registered so far, including the subdirectories of recursively watched directories.
+	 */
+	public long getRegisteredDirectories() {
+		return registeredDirectories.sum();
+	}
+
+	/**
+	 * @return True if all directories have been registered or have failed.
+	 */
+	public boolean isComplete() {
+		return completion.isDone();
+	}
+
+	/**
+	 * @return True if the registration is complete, and no directory failed.
+	 */
+	public boolean isSuccessful() {
+		return isComplete() && failures.isEmpty();
+	}
+
+	/**
+	 * Wait for the registration to complete.
+	 * @param timeout Maximum time to wait.
+	 * @param unit Unit of the timeout.
+	 * @return True if the registration completed in time.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public boolean awaitCompletion(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+		try {
+			completion.get(timeout, unit);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		} catch (ExecutionException e) {
+			return true; // Never completed exceptionally
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("complete=%s, registered=%d, failed=%s", isComplete(), getRegisteredDirectories(), failures);
+	}
+
+}
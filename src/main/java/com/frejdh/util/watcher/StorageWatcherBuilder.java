@@ -2,6 +2,7 @@ package com.frejdh.util.watcher;
 
 import org.jetbrains.annotations.Nullable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -10,17 +11,25 @@ import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Builder for the @{@link StorageWatcher} class.
@@ -32,9 +41,35 @@ public class StorageWatcherBuilder {
 	private final Set<WatchEvent.Kind<Path>> eventsToWatch = new HashSet<>();
 	private final Set<URI> filesToLimitTo = new HashSet<>();
 	private final Set<URI> directoriesToWatch = new HashSet<>();
-	private StorageWatcher.OnChanged onChanged = (directory, filename) -> { };
+	private final Set<URI> directoriesToWatchRecursively = new HashSet<>();
+	private final Set<String> includePatterns = new LinkedHashSet<>();
+	private final Set<String> excludePatterns = new LinkedHashSet<>();
+	private StorageWatcher.OnChanged onChanged;
+	private StorageWatcher.OnChangedBatch onChangedBatch;
 	private Long watcherInterval;
 	private TimeUnit watcherIntervalUnit;
+	private Boolean eventDriven;
+	private Executor callbackExecutor;
+	private Boolean asyncCallbacks;
+	private Boolean virtualThreadCallbacks;
+	private Long coalesceWindow;
+	private TimeUnit coalesceWindowUnit;
+	private Integer batchMaxSize;
+	private Long batchMaxLatency;
+	private TimeUnit batchMaxLatencyUnit;
+	private Boolean overflowRecovery;
+	private StorageWatcher.Engine engine;
+	private String metricsMBeanName;
+	private Boolean backgroundRegistration;
+	private Integer shards;
+	private Integer eventQueueCapacity;
+	private StorageWatcher.QueuePolicy eventQueuePolicy;
+	private Boolean ignoreUnchangedContent;
+	private Long contentMemoryMapThreshold;
+	private Path journalDirectory;
+	private Boolean pairMoves;
+	private Long stableFileQuietPeriod;
+	private TimeUnit stableFileQuietPeriodUnit;
 
 	/**
 	 * Create a builder.
@@ -166,6 +201,84 @@ public class StorageWatcherBuilder {
 		return this;
 	}
 
+	/**
+	 * Watch a directory and every directory below it. Subdirectories that are created later on are watched as well,
+	 * including the files that were created inside of them before they could be registered.
+	 * Can be combined with multiple calls and/or {@link #watchDirectoriesRecursively(String...)}
+	 * @param directory Root directory of the tree to watch
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder watchDirectoryRecursively(String directory) {
+		URI uri = URI.create(directory);
+		if (uri.isAbsolute())
+			directoriesToWatchRecursively.add(uri);
+		else
+			directoriesToWatchRecursively.add(toClasspath(directory));
+		return this;
+	}
+
+	/**
+	 * The same as calling {@link #watchDirectoryRecursively(String)} multiple times. Can be combined with {@link #watchDirectoryRecursively(String)}
+	 * @param directories Root directories of the trees to watch
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder watchDirectoriesRecursively(String... directories) {
+		watchDirectoriesRecursively(Arrays.asList(directories));
+		return this;
+	}
+
+	/**
+	 * See {@link #watchDirectoriesRecursively(String...)}.
+	 */
+	public StorageWatcherBuilder watchDirectoriesRecursively(Collection<String> directories) {
+		for (String dir : directories) {
+			watchDirectoryRecursively(dir);
+		}
+		return this;
+	}
+
+	/**
+	 * Only report the files that match any of the patterns. Patterns are globs, unless prefixed with "regex:".
+	 * Globs without a '/' are matched against the filename at any depth, such as <code>*.json</code>.
+	 * Other patterns are matched against the path relative to the watched directory, where <code>**&#47;</code> matches zero or more directories.
+	 * Can be combined with multiple calls, {@link #watchFile(String)} and/or {@link #excludePatterns(String...)}.
+	 * @param patterns Patterns of the files to report
+	 * @return The same builder reference
+	 * @throws IllegalArgumentException If a pattern is invalid
+	 */
+	public StorageWatcherBuilder includePatterns(String... patterns) {
+		return includePatterns(Arrays.asList(patterns));
+	}
+
+	/**
+	 * See {@link #includePatterns(String...)}.
+	 */
+	public StorageWatcherBuilder includePatterns(Collection<String> patterns) {
+		StorageWatcherPathFilter.compile(patterns, Collections.emptySet());
+		includePatterns.addAll(patterns);
+		return this;
+	}
+
+	/**
+	 * Never report the files that match any of the patterns, even if they're included. Such as <code>*.tmp</code> or <code>.~lock*</code>.
+	 * Uses the same syntax as {@link #includePatterns(String...)}. Can be combined with multiple calls.
+	 * @param patterns Patterns of the files to ignore
+	 * @return The same builder reference
+	 * @throws IllegalArgumentException If a pattern is invalid
+	 */
+	public StorageWatcherBuilder excludePatterns(String... patterns) {
+		return excludePatterns(Arrays.asList(patterns));
+	}
+
+	/**
+	 * See {@link #excludePatterns(String...)}.
+	 */
+	public StorageWatcherBuilder excludePatterns(Collection<String> patterns) {
+		StorageWatcherPathFilter.compile(Collections.emptySet(), patterns);
+		excludePatterns.addAll(patterns);
+		return this;
+	}
+
 	/**
 	 * Set the interval for checking the directories/files.
 	 * <strong>Shared between all of the watcher components!</strong>
@@ -199,6 +312,227 @@ public class StorageWatcherBuilder {
 		return interval((Integer) null, null);
 	}
 
+	/**
+	 * Wait for events to be delivered by the file system instead of checking for them once per interval.
+	 * Events are handled as soon as they arrive, and the watcher thread stays idle while nothing happens.
+	 * The {@link #interval(Long, TimeUnit)} is ignored in this mode.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param eventDriven True to enable the event driven mode. Disabled by default.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder eventDriven(boolean eventDriven) {
+		this.eventDriven = eventDriven;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #eventDriven(boolean)} with the value true.
+	 */
+	public StorageWatcherBuilder eventDriven() {
+		return eventDriven(true);
+	}
+
+	/**
+	 * Coalesce the events of each file into one net event, emitted once the file has been quiet for the given window.
+	 * Bursts of modifications result in one callback, a creation followed by modifications is reported as a creation,
+	 * and a creation followed by a deletion isn't reported at all.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param quietWindow Time without new events before the file is reported. (Null or <= 0) = disabled (default)
+	 * @param quietWindowUnit Unit for the window. Null = milliseconds
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder coalesce(@Nullable Long quietWindow, @Nullable TimeUnit quietWindowUnit) {
+		this.coalesceWindow = quietWindow;
+		this.coalesceWindowUnit = quietWindowUnit;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #coalesce(Long, TimeUnit)}, but which accepts an integer as parameter.
+	 */
+	public StorageWatcherBuilder coalesce(@Nullable Integer quietWindow, @Nullable TimeUnit quietWindowUnit) {
+		return coalesce((quietWindow != null) ? Integer.toUnsignedLong(quietWindow) : null, quietWindowUnit);
+	}
+
+	/**
+	 * Set the source of the events. See {@link StorageWatcher.Engine} for the alternatives.
+	 * The {@link StorageWatcher.Engine#POLLING} engine scans the directories once per {@link #interval(Long, TimeUnit)},
+	 * and should be used for file systems where the native watch service doesn't work, such as NFS and SMB mounts.
+	 * {@link StorageWatcher.Engine#AUTO} picks the polling engine by itself when that's the case.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param engine The engine. Null = {@link StorageWatcher.Engine#WATCH_SERVICE}
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder engine(@Nullable StorageWatcher.Engine engine) {
+		this.engine = engine;
+		return this;
+	}
+
+	/**
+	 * Recover the events that are lost when the file system can't keep up and reports an overflow.
+	 * A snapshot (names, sizes, modification times and file keys) is kept for every watched directory.
+	 * On an overflow, the affected directory is rescanned and the differences are reported as regular events.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param overflowRecovery True to enable the recovery. Disabled by default, where lost events are ignored.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder recoverFromOverflow(boolean overflowRecovery) {
+		this.overflowRecovery = overflowRecovery;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #recoverFromOverflow(boolean)} with the value true.
+	 */
+	public StorageWatcherBuilder recoverFromOverflow() {
+		return recoverFromOverflow(true);
+	}
+
+	/**
+	 * Report files that are moved or renamed as one {@link FileEvent.Kind#MOVED} event to {@link #onChangedBatch(StorageWatcher.OnChangedBatch)},
+	 * instead of a deletion and an unrelated creation. The deletion and creation are paired by the file key (such as the inode) of the file,
+	 * when both are read within the same drain cycle, and both directories are watched by the same shard. Otherwise they're reported as usual.
+	 * {@link #onChanged(StorageWatcher.OnChanged)} callbacks still get a deletion and a creation for a move.
+	 * Requires the snapshots of {@link #recoverFromOverflow(boolean)}, which are therefore enabled as well.
+	 * Deletions are held back until the end of the drain cycle, and file systems without file keys never pair any moves.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param pairMoves True to pair the moves. Disabled by default.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder pairMoves(boolean pairMoves) {
+		this.pairMoves = pairMoves;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #pairMoves(boolean)} with the value true.
+	 */
+	public StorageWatcherBuilder pairMoves() {
+		return pairMoves(true);
+	}
+
+	/**
+	 * Report a {@link FileEvent.Kind#STABLE} event to {@link #onChangedBatch(StorageWatcher.OnChangedBatch)} once a created or modified file
+	 * has stopped changing, such as when a large file has been copied into the directory completely. The creation and modifications are still reported as usual.
+	 * A file is stable once it has had no events for the quiet period, and its size and modification time stay the same for one more period
+	 * (or it was last modified at least one period ago). Only the files that are still being written are checked, with one stat per file and period.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param quietPeriod Time that a file has to stay the same before it's stable. (Null or <= 0) = disabled (default)
+	 * @param quietPeriodUnit Unit for the period. Null = milliseconds
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder reportStableFiles(@Nullable Long quietPeriod, @Nullable TimeUnit quietPeriodUnit) {
+		this.stableFileQuietPeriod = quietPeriod;
+		this.stableFileQuietPeriodUnit = quietPeriodUnit;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #reportStableFiles(Long, TimeUnit)}, but which accepts an integer as parameter.
+	 */
+	public StorageWatcherBuilder reportStableFiles(@Nullable Integer quietPeriod, @Nullable TimeUnit quietPeriodUnit) {
+		return reportStableFiles((quietPeriod != null) ? Integer.toUnsignedLong(quietPeriod) : null, quietPeriodUnit);
+	}
+
+	/**
+	 * Persist a snapshot of every watched directory on disk, so that the changes made while the watcher wasn't running are reported when it starts.
+	 * On start, each directory is compared with its snapshot from the previous run, and only the differences are reported as events.
+	 * The snapshots are journaled incrementally as the events are handled, so a directory without changes isn't reported again.
+	 * The first run only takes the snapshots, without reporting the existing files.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param journalDirectory Directory to keep one journal file per watched directory in, created if it doesn't exist. Null = disabled (default)
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder journalSnapshots(@Nullable Path journalDirectory) {
+		this.journalDirectory = journalDirectory;
+		return this;
+	}
+
+	/**
+	 * Only report modifications that change the contents of a file, ignoring files that are rewritten with the same contents or just touched.
+	 * A fingerprint (size, modification time and a 64-bit hash of the contents) is kept for every watched file,
+	 * and the contents are only hashed when the size and modification time can't tell whether they changed.
+	 * The files are fingerprinted when the watcher starts, which reads all of them once.
+	 * A file that is hashed in the middle of being rewritten is seen as changed, so combine this with {@link #coalesce(Long, TimeUnit)}
+	 * to only hash the files once they have been quiet for a while.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param ignoreUnchangedContent True to ignore the modifications that leave the contents unchanged. Disabled by default.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder ignoreUnchangedContent(boolean ignoreUnchangedContent) {
+		this.ignoreUnchangedContent = ignoreUnchangedContent;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #ignoreUnchangedContent(boolean)} with the value true.
+	 */
+	public StorageWatcherBuilder ignoreUnchangedContent() {
+		return ignoreUnchangedContent(true);
+	}
+
+	/**
+	 * Size from which files are hashed through a memory mapping instead of being read, see {@link #ignoreUnchangedContent(boolean)}.
+	 * Files of at least this size are also left unhashed while their size keeps changing, such as logs that are appended to.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param bytes The size in bytes. (< 0) = 1 MiB, the default.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder contentMemoryMapThreshold(long bytes) {
+		this.contentMemoryMapThreshold = bytes;
+		return this;
+	}
+
+	/**
+	 * Hand the events over to a dispatch thread through a bounded queue, instead of routing them and running the callbacks on the watcher thread.
+	 * The watcher thread then only reads the events, while a slow consumer fills the queue up to its capacity,
+	 * after which the policy decides what happens to new events. Drops are counted in {@link StorageWatcherMetrics#getDroppedEvents()}.
+	 * Batches for {@link #onChangedBatch(StorageWatcher.OnChangedBatch)} are then collected by the dispatch thread, until the queue is empty.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param capacity Max amount of waiting events per shard, rounded up to a power of two. (<= 0) = no queue, the default.
+	 * @param policy What to do with new events when the queue is full. Null = {@link StorageWatcher.QueuePolicy#BLOCK}
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder eventQueue(int capacity, @Nullable StorageWatcher.QueuePolicy policy) {
+		this.eventQueueCapacity = capacity;
+		this.eventQueuePolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Run the callbacks on a bounded thread pool instead of the watcher thread,
+	 * so that slow callbacks don't delay the handling of other events.
+	 * Callbacks for the same file are run in order, while callbacks for different files may run concurrently.
+	 * The pool is shut down together with the watcher.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder dispatchAsync() {
+		this.asyncCallbacks = true;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #dispatchAsync()}, but with a custom executor. The executor is not shut down by the watcher.
+	 * @param executor Executor to run the callbacks on.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder dispatchAsync(Executor executor) {
+		this.callbackExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #dispatchAsync()}, but where every callback is run on a new virtual thread.
+	 * Requires Java 21 or later, older versions fall back to the bounded thread pool.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder dispatchOnVirtualThreads() {
+		this.asyncCallbacks = true;
+		this.virtualThreadCallbacks = true;
+		return this;
+	}
+
 	/**
 	 * Set what to do whenever an event is detected. For example:
 	 * <code>
@@ -216,6 +550,40 @@ public class StorageWatcherBuilder {
 		return this;
 	}
 
+	/**
+	 * Set what to do with the events detected during one cycle of the watcher, all at once. For example:
+	 * <code>
+	 * new StorageWatcherBuilder()
+	 *     .onChangedBatch(events -> {
+	 *         System.out.println("Rebuild index once for " + events.size() + " changes");
+	 *     })
+	 *     .start();
+	 * </code>
+	 * Can be combined with {@link #onChanged(StorageWatcher.OnChanged)}. See {@link #batchLimits(Integer, Long, TimeUnit)} for limiting the batches.
+	 * @param onChangedBatch Callback for the batches.
+	 * @return The same builder instance.
+	 */
+	public StorageWatcherBuilder onChangedBatch(StorageWatcher.OnChangedBatch onChangedBatch) {
+		this.onChangedBatch = onChangedBatch;
+		return this;
+	}
+
+	/**
+	 * Limit the batches delivered to {@link #onChangedBatch(StorageWatcher.OnChangedBatch)}.
+	 * By default a batch contains all of the events detected during one cycle of the watcher.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param maxSize Max amount of events per batch, larger batches are split. (Null or <= 0) = unlimited
+	 * @param maxLatency Collect events over multiple cycles, until the oldest event in the batch is this old. (Null or <= 0) = one cycle
+	 * @param maxLatencyUnit Unit for the latency. Null = milliseconds
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder batchLimits(@Nullable Integer maxSize, @Nullable Long maxLatency, @Nullable TimeUnit maxLatencyUnit) {
+		this.batchMaxSize = maxSize;
+		this.batchMaxLatency = maxLatency;
+		this.batchMaxLatencyUnit = maxLatencyUnit;
+		return this;
+	}
+
 	/**
 	 * Creates a new Watcher that can be configured.
 	 * Not to be misstaken for {@link #build()}
@@ -225,47 +593,198 @@ public class StorageWatcherBuilder {
 		return new StorageWatcherBuilder(this);
 	}
 
+	/**
+	 * Register the directories on a background thread, so that {@link #build()} returns directly and the watcher can be started
+	 * while the registration is still running. Events in a directory are only reported once it has been registered.
+	 * Use {@link StorageWatcher#getBuildReport()} to follow the registration.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param backgroundRegistration True to register in the background. Disabled by default, where {@link #build()} waits for the registration.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder registerInBackground(boolean backgroundRegistration) {
+		this.backgroundRegistration = backgroundRegistration;
+		return this;
+	}
+
+	/**
+	 * Same as {@link #registerInBackground(boolean)} with the value true.
+	 */
+	public StorageWatcherBuilder registerInBackground() {
+		return registerInBackground(true);
+	}
+
+	/**
+	 * Split the watcher into shards, each with an event loop of its own: a thread, an engine, and a dispatcher for the callbacks.
+	 * The directories are hashed across the shards, so all events of a directory are handled by the same shard and stay in order,
+	 * while the shards handle their directories concurrently. Useful when one thread can't keep up with the events of all directories.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param shards The amount of shards. Never more than the amount of watched directories. (<= 0) = 1
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder shards(int shards) {
+		this.shards = shards;
+		return this;
+	}
+
+	/**
+	 * Register the metrics of the watcher (see {@link StorageWatcher#getMetrics()}) as an MBean with the platform MBean server,
+	 * while the watcher is running. The object name is <code>com.frejdh.util.watcher:type=StorageWatcher,name="&lt;name&gt;"</code>.
+	 * <strong>Shared between all of the watcher components!</strong>
+	 * @param name Name of the watcher, unique within the JVM. Null = not registered.
+	 * @return The same builder reference
+	 */
+	public StorageWatcherBuilder registerMetricsMBean(String name) {
+		this.metricsMBeanName = name;
+		return this;
+	}
+
 	/**
 	 * Builds the {@link StorageWatcher} instance.
+	 * All of the watched directories share one engine (a {@link WatchService} by default), regardless of how many builders were chained.
+	 * Unless the watcher is split into shards (see {@link #shards(int)}), where the directories of each shard share an engine.
+	 * The directories are registered in parallel, and the ones that can't be registered are skipped and listed in {@link StorageWatcher#getBuildReport()}.
 	 * @return A watcher instance.
+	 * @throws UncheckedIOException If the engine couldn't be created.
 	 */
 	public StorageWatcher build() {
-		return new StorageWatcher(
-				buildComponents(new ArrayList<>()),
-				watcherInterval,
-				watcherIntervalUnit
+		return build(null);
+	}
+
+	/**
+	 * Same as {@link #build()}, but where the batches of every component in the chain go to one callback instead,
+	 * such as for the publisher of the multi-release jar. The callback is always run synchronously, as it may block
+	 * the thread that dispatches the events to apply backpressure, which asynchronous callbacks would bypass.
+	 * @param batchCallback Replaces the batch callbacks of all components. Null = keep the configured ones.
+	 * @return A watcher instance.
+	 * @throws UncheckedIOException If the engine couldn't be created.
+	 */
+	StorageWatcher build(@Nullable StorageWatcher.OnChangedBatch batchCallback) {
+		boolean synchronous = batchCallback != null;
+		StorageWatcherSettings settings = new StorageWatcherSettings(
+				sharedSetting(builder -> builder.watcherInterval),
+				sharedSetting(builder -> builder.watcherIntervalUnit),
+				sharedSetting(builder -> builder.eventDriven),
+				synchronous ? null : sharedSetting(builder -> builder.callbackExecutor),
+				synchronous ? null : sharedSetting(builder -> builder.asyncCallbacks),
+				synchronous ? null : sharedSetting(builder -> builder.virtualThreadCallbacks),
+				sharedSetting(builder -> builder.coalesceWindow),
+				sharedSetting(builder -> builder.coalesceWindowUnit),
+				sharedSetting(builder -> builder.batchMaxSize),
+				sharedSetting(builder -> builder.batchMaxLatency),
+				sharedSetting(builder -> builder.batchMaxLatencyUnit),
+				sharedSetting(builder -> builder.overflowRecovery),
+				sharedSetting(builder -> builder.engine),
+				sharedSetting(builder -> builder.metricsMBeanName),
+				sharedSetting(builder -> builder.backgroundRegistration),
+				sharedSetting(builder -> builder.shards),
+				sharedSetting(builder -> builder.eventQueueCapacity),
+				sharedSetting(builder -> builder.eventQueuePolicy),
+				sharedSetting(builder -> builder.ignoreUnchangedContent),
+				sharedSetting(builder -> builder.contentMemoryMapThreshold),
+				sharedSetting(builder -> builder.journalDirectory),
+				sharedSetting(builder -> builder.pairMoves),
+				sharedSetting(builder -> builder.stableFileQuietPeriod),
+				sharedSetting(builder -> builder.stableFileQuietPeriodUnit)
 		);
+
+		List<StorageWatcherComponent> components = buildComponents(new ArrayList<>(), batchCallback);
+		Collection<List<StorageWatcherComponent>> componentsPerShard = groupByShards(components, settings.shards);
+		List<StorageWatcherEngine> engines;
+		try {
+			engines = settings.newEngines(components.stream().map(component -> component.properties.directory).collect(Collectors.toSet()), componentsPerShard.size());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		StorageWatcherBuildReport report = new StorageWatcherBuildReport(componentsPerShard.size());
+		List<StorageWatcherKeyIndex> keyIndexes = new ArrayList<>();
+		Iterator<StorageWatcherEngine> engineIterator = engines.iterator();
+		for (List<StorageWatcherComponent> shardComponents : componentsPerShard) {
+			StorageWatcherEngine engine = engineIterator.next();
+			keyIndexes.add(settings.backgroundRegistration
+					? StorageWatcherKeyIndex.registerInBackground(engine, shardComponents, report)
+					: StorageWatcherKeyIndex.register(engine, shardComponents, report));
+		}
+		return new StorageWatcher(keyIndexes, settings, report);
+	}
+
+	/**
+	 * Helper method. Resolves a setting that is shared between all chained builders.
+	 * The value of the latest builder in the chain that configured it is used.
+	 * @param setting Getter for the setting.
+	 * @return The value, or null if no builder in the chain configured it.
+	 */
+	@Nullable
+	private <T> T sharedSetting(Function<StorageWatcherBuilder, T> setting) {
+		for (StorageWatcherBuilder builder = this; builder != null; builder = builder.parentBuilder) {
+			T value = setting.apply(builder);
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
 	}
 
 	/**
 	 * Helper method. Builds all of the components that should be used by the watcher.
 	 * @param currentComponents List of the current components (for recursive usages).
+	 * @param batchCallback Batch callback for all of the components, or null for the configured ones.
 	 * @return The final list with all of the components.
 	 */
-	private List<StorageWatcherComponent> buildComponents(List<StorageWatcherComponent> currentComponents) {
+	private List<StorageWatcherComponent> buildComponents(List<StorageWatcherComponent> currentComponents, @Nullable StorageWatcher.OnChangedBatch batchCallback) {
+		StorageWatcherPathFilter filter = StorageWatcherPathFilter.compile(includePatterns, excludePatterns);
 		for (Map.Entry<String, Set<String>> grouping : groupByDirectories(directoriesToWatch, filesToLimitTo).entrySet()) {
 			StorageWatcherProperties settings = new StorageWatcherProperties(
 					grouping.getValue(),
 					eventsToWatch,
 					grouping.getKey(),
-					onChanged
+					onChanged,
+					batchCallback != null ? batchCallback : onChangedBatch,
+					false,
+					filter
 			);
 
-			StorageWatcherComponent watcher = null;
-			try {
-				watcher = new StorageWatcherComponent(settings);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			currentComponents.add(watcher);
+			currentComponents.add(new StorageWatcherComponent(settings));
+		}
+
+		for (URI directory : directoriesToWatchRecursively) {
+			StorageWatcherProperties settings = new StorageWatcherProperties(
+					new HashSet<>(),
+					eventsToWatch,
+					Paths.get(directory).toAbsolutePath().toString(),
+					onChanged,
+					batchCallback != null ? batchCallback : onChangedBatch,
+					true,
+					filter
+			);
+			currentComponents.add(new StorageWatcherComponent(settings));
 		}
 
 		if (parentBuilder != null) {
-			return parentBuilder.buildComponents(currentComponents);
+			return parentBuilder.buildComponents(currentComponents, batchCallback);
 		}
 		return currentComponents;
 	}
 
+	/**
+	 * Helper method. Hash the components across the shards by their directory, so that components sharing a directory end up in the same shard.
+	 * @param components All components.
+	 * @param shards The configured amount of shards.
+	 * @return The components of each shard, without empty shards. Always at least one shard.
+	 */
+	private static Collection<List<StorageWatcherComponent>> groupByShards(List<StorageWatcherComponent> components, int shards) {
+		if (shards <= 1) {
+			return Collections.singletonList(components);
+		}
+
+		Map<Integer, List<StorageWatcherComponent>> group = new TreeMap<>();
+		for (StorageWatcherComponent component : components) {
+			int shard = Math.floorMod(component.properties.directory.hashCode(), shards);
+			group.computeIfAbsent(shard, key -> new ArrayList<>()).add(component);
+		}
+		return group.isEmpty() ? Collections.singletonList(components) : group.values();
+	}
+
 	/**
 	 * Helper method. Group everything by directories.
 	 * @param directories The directories to watch.
@@ -0,0 +1,171 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Folds the events of each file into one net event, which is emitted once the file has been quiet for a given window.
+ * For example: a creation followed by modifications is emitted as one creation, while a creation followed by a deletion is dropped.
+ * {@link StorageWatcher#ENTRY_CLOSE_WRITE} isn't folded into the net event, as it tells that the file is complete rather than how it changed.
+ * It's emitted once after the net event instead, unless the file was deleted in the end.
+ * Only used by the watcher thread, and therefore not thread safe.
+ */
+class StorageWatcherCoalescer {
+
+	/**
+	 * Receiver of the net events.
+	 */
+	interface Sink {
+		void accept(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename);
+	}
+
+	private final long quietWindowNanos;
+	// Ordered by the time of the latest event, meaning that the first entry is always the first one to become quiet
+	private final LinkedHashMap<PendingKey, Pending> pending = new LinkedHashMap<>();
+
+	/**
+	 * @param quietWindow Time without events before a file's net event is emitted.
+	 * @param unit Unit of the window.
+	 */
+	StorageWatcherCoalescer(long quietWindow, @NotNull TimeUnit unit) {
+		this.quietWindowNanos = unit.toNanos(quietWindow);
+	}
+
+	/**
+	 * Fold an event into the pending net event of its file.
+	 * @param components Components of the affected directory.
+	 * @param directory The affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 */
+	void offer(StorageWatcherRoutes components, Path directory, WatchEvent.Kind<?> kind, Path filename, long now) {
+		PendingKey key = new PendingKey(directory, filename);
+		Pending previous = pending.remove(key);
+		WatchEvent.Kind<?> netKind;
+		boolean closeWritten;
+		if (kind == StorageWatcher.ENTRY_CLOSE_WRITE) {
+			netKind = previous != null ? previous.kind : null;
+			closeWritten = true;
+		} else {
+			netKind = previous != null && previous.kind != null ? fold(previous.kind, kind) : kind;
+			closeWritten = previous != null && previous.closeWritten && netKind != null && netKind != StandardWatchEventKinds.ENTRY_DELETE;
+		}
+		if (netKind != null || closeWritten) {
+			pending.put(key, new Pending(components, netKind, closeWritten, filename, now + quietWindowNanos));
+		}
+	}
+
+	/**
+	 * Emit the net events of the files that have been quiet for the whole window.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @param sink Receiver of the net events.
+	 */
+	void flush(long now, Sink sink) {
+		for (Iterator<Pending> iterator = pending.values().iterator(); iterator.hasNext(); ) {
+			Pending event = iterator.next();
+			if (event.deadline - now > 0) {
+				return;
+			}
+			iterator.remove();
+			if (event.kind != null) {
+				sink.accept(event.components, event.kind, event.filename);
+			}
+			if (event.closeWritten) {
+				sink.accept(event.components, StorageWatcher.ENTRY_CLOSE_WRITE, event.filename);
+			}
+		}
+	}
+
+	/**
+	 * Get the time until the next net event should be emitted.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @return The time in nanoseconds (0 if already due), or -1 if no events are pending.
+	 */
+	long nanosUntilNextFlush(long now) {
+		if (pending.isEmpty()) {
+			return -1;
+		}
+		return Math.max(0, pending.values().iterator().next().deadline - now);
+	}
+
+	/**
+	 * Check whether two consecutive events of the same file can be combined by {@link #fold(WatchEvent.Kind, WatchEvent.Kind)}.
+	 * {@link StorageWatcher#ENTRY_CLOSE_WRITE} can only be combined with another one, as it would be lost in any other net event.
+	 * @param previous The pending net event.
+	 * @param next The new event.
+	 * @return True if the events can be combined.
+	 */
+	static boolean isFoldable(WatchEvent.Kind<?> previous, WatchEvent.Kind<?> next) {
+		return (previous == StorageWatcher.ENTRY_CLOSE_WRITE) == (next == StorageWatcher.ENTRY_CLOSE_WRITE);
+	}
+
+	/**
+	 * Combine two consecutive events of the same file, if {@link #isFoldable(WatchEvent.Kind, WatchEvent.Kind)}.
+	 * @param previous The pending net event.
+	 * @param next The new event.
+	 * @return The new net event, or null if the events cancel each other out.
+	 */
+	@Nullable
+	static WatchEvent.Kind<?> fold(WatchEvent.Kind<?> previous, WatchEvent.Kind<?> next) {
+		if (previous == StorageWatcher.ENTRY_CLOSE_WRITE) {
+			return StorageWatcher.ENTRY_CLOSE_WRITE; // Closed again
+		} else if (previous == StandardWatchEventKinds.ENTRY_CREATE) {
+			// Created and then changed is still a creation, created and then deleted never existed
+			return next == StandardWatchEventKinds.ENTRY_DELETE ? null : StandardWatchEventKinds.ENTRY_CREATE;
+		} else if (previous == StandardWatchEventKinds.ENTRY_DELETE) {
+			// Deleted and then created again is a replacement of the contents
+			return next == StandardWatchEventKinds.ENTRY_DELETE ? StandardWatchEventKinds.ENTRY_DELETE : StandardWatchEventKinds.ENTRY_MODIFY;
+		}
+		return next == StandardWatchEventKinds.ENTRY_DELETE ? StandardWatchEventKinds.ENTRY_DELETE : StandardWatchEventKinds.ENTRY_MODIFY;
+	}
+
+	private static class PendingKey {
+		private final Path directory;
+		private final Path filename;
+
+		private PendingKey(Path directory, Path filename) {
+			this.directory = directory;
+			this.filename = filename;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof PendingKey)) {
+				return false;
+			}
+			PendingKey other = (PendingKey) object;
+			return directory.equals(other.directory) && filename.equals(other.filename);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(directory, filename);
+		}
+	}
+
+	private static class Pending {
+		private final StorageWatcherRoutes components;
+		/** Null if the file was only closed after writing. */
+		private final WatchEvent.Kind<?> kind;
+		private final boolean closeWritten;
+		private final Path filename;
+		private final long deadline;
+
+		private Pending(StorageWatcherRoutes components, @Nullable WatchEvent.Kind<?> kind, boolean closeWritten, Path filename, long deadline) {
+			this.components = components;
+			this.kind = kind;
+			this.closeWritten = closeWritten;
+			this.filename = filename;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine backed by the {@link WatchService} of the default file system, such as inotify on Linux.
+ * All directories share the one watch service, meaning one inotify instance (and one reading thread) for the whole watcher.
+ */
+class StorageWatcherDefaultEngine implements StorageWatcherEngine {
+
+	/** The watch service that the JDK falls back to on platforms without native support. */
+	private static final String JDK_POLLING_WATCH_SERVICE = "sun.nio.fs.PollingWatchService";
+	/** File system types where changes made by other hosts are never delivered to the native watch service. */
+	private static final Set<String> REMOTE_FILE_SYSTEM_TYPES = new HashSet<>(Arrays.asList(
+			"nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "smb3", "afs", "9p", "fuse.sshfs", "vboxsf", "prl_fs"
+	));
+
+	/**
+	 * What the platform offers for watching directories, used for resolving {@link StorageWatcher.Engine#AUTO}. Replaced in tests.
+	 */
+	interface Platform {
+		/**
+		 * @return False if the JDK only provides its polling fallback as the watch service of the default file system.
+		 * @throws IOException If the watch service couldn't be created.
+		 */
+		boolean hasNativeWatchService() throws IOException;
+
+		/**
+		 * @param directory A directory.
+		 * @return The type of the file store of the directory, such as "ext4" or "nfs".
+		 * @throws IOException If the file store couldn't be looked up.
+		 */
+		String fileStoreType(@NotNull Path directory) throws IOException;
+
+		/**
+		 * @param directory A directory.
+		 * @return The device of the directory, or null if unknown. Directories on the same device share the same file store.
+		 */
+		@Nullable
+		Object deviceOf(@NotNull Path directory);
+	}
+
+	/** The platform that the watcher runs on. */
+	static final Platform PLATFORM = new Platform() {
+		@Override
+		public boolean hasNativeWatchService() throws IOException {
+			try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+				return !watchService.getClass().getName().equals(JDK_POLLING_WATCH_SERVICE);
+			}
+		}
+
+		@Override
+		public String fileStoreType(@NotNull Path directory) throws IOException {
+			return Files.getFileStore(directory).type();
+		}
+
+		@Nullable
+		@Override
+		public Object deviceOf(@NotNull Path directory) {
+			try {
+				return Files.getAttribute(directory, "unix:dev");
+			} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+				return null;
+			}
+		}
+	};
+
+	private final WatchService watchService;
+
+	StorageWatcherDefaultEngine() throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Check whether the platform has native support for all of the directories.
+	 * That's not the case if the JDK only provides its polling fallback, or if any of the directories are on a remote file system.
+	 * @param directories The directories to watch.
+	 * @param platform The platform, normally {@link #PLATFORM}.
+	 * @return False if the directories should be polled instead.
+	 * @throws IOException If the watch service couldn't be created.
+	 */
+	static boolean isNativelySupported(@NotNull Collection<Path> directories, @NotNull Platform platform) throws IOException {
+		return platform.hasNativeWatchService() && !isAnyRemote(directories, platform);
+	}
+
+	/**
+	 * Helper method. Check the file system type of the directories, looking up each device only once.
+	 */
+	private static boolean isAnyRemote(Collection<Path> directories, Platform platform) {
+		Map<Object, Boolean> remoteByDevice = new HashMap<>();
+		for (Path directory : directories) {
+			try {
+				Object device = platform.deviceOf(directory);
+				Boolean remote = device != null ? remoteByDevice.get(device) : null;
+				if (remote == null) {
+					remote = REMOTE_FILE_SYSTEM_TYPES.contains(platform.fileStoreType(directory).toLowerCase(Locale.ROOT));
+					if (device != null) {
+						remoteByDevice.put(device, remote);
+					}
+				}
+				if (remote) {
+					return true;
+				}
+			} catch (IOException e) {
+				// Can't be watched either way, the registration reports it
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Register a directory. {@link StorageWatcher#ENTRY_CLOSE_WRITE} isn't supported by the watch service, and is left out.
+	 * A directory that is only watched for it is registered for modifications instead, which the components don't accept.
+	 */
+	@Override
+	public WatchKey register(@NotNull Path directory, @NotNull WatchEvent.Kind<?>[] events) throws IOException {
+		WatchEvent.Kind<?>[] supportedEvents = Arrays.stream(events)
+				.filter(event -> event != StorageWatcher.ENTRY_CLOSE_WRITE)
+				.toArray(WatchEvent.Kind<?>[]::new);
+		return directory.register(watchService, supportedEvents.length > 0 ? supportedEvents : new WatchEvent.Kind<?>[] { StandardWatchEventKinds.ENTRY_MODIFY });
+	}
+
+	@Override
+	public boolean isScheduled() {
+		return false;
+	}
+
+	@Override
+	public StorageWatcher.Engine getType() {
+		return StorageWatcher.Engine.WATCH_SERVICE;
+	}
+
+	@Override
+	public WatchKey poll() {
+		return watchService.poll();
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return watchService.poll(timeout, unit);
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		return watchService.take();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+}
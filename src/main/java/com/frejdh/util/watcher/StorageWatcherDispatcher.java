@@ -0,0 +1,194 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Runs the callbacks of a watcher, either directly on the watcher thread or on an {@link Executor}.
+ * Callbacks for the same file are always run in order, while callbacks for different files may run concurrently.
+ */
+class StorageWatcherDispatcher {
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	public static final int DEFAULT_MIN_POOL_SIZE = 4;
+
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	private final Map<Object, SerialQueue> queues = new HashMap<>();
+	private final StorageWatcherHistogram callbackLatency;
+	private final LongAdder pendingCallbacks = new LongAdder();
+
+	/**
+	 * @param executor Executor to run the callbacks on. Null = run them directly on the calling thread.
+	 * @param ownsExecutor Whether the executor should be shut down together with the dispatcher.
+	 * @param callbackLatency Histogram for the time spent in the callbacks.
+	 */
+	StorageWatcherDispatcher(@Nullable Executor executor, boolean ownsExecutor, @NotNull StorageWatcherHistogram callbackLatency) {
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.callbackLatency = callbackLatency;
+	}
+
+	/**
+	 * Dispatch a callback.
+	 * @param key Key for the ordering, such as the path of the affected file.
+	 * @param callback Callback to run.
+	 */
+	void dispatch(@NotNull Object key, @NotNull Runnable callback) {
+		if (executor == null) {
+			runAndRecord(callback);
+			return;
+		}
+
+		pendingCallbacks.increment();
+		SerialQueue queue;
+		synchronized (queues) {
+			queue = queues.get(key);
+			if (queue != null) {
+				queue.callbacks.add(callback);
+				return;
+			}
+			queue = new SerialQueue(key);
+			queue.callbacks.add(callback);
+			queues.put(key, queue);
+		}
+
+		try {
+			executor.execute(queue);
+		} catch (RejectedExecutionException e) {
+			synchronized (queues) {
+				queues.remove(key);
+			}
+			pendingCallbacks.add(-queue.callbacks.size());
+			Logger.getGlobal().warning("Callback for " + key + " was rejected by the executor. " + e);
+		}
+	}
+
+	/**
+	 * @return The amount of callbacks that have been dispatched, but not yet run.
+	 */
+	long getPendingCallbacks() {
+		return pendingCallbacks.sum();
+	}
+
+	/**
+	 * Helper method. Run a callback and record its latency.
+	 */
+	private void runAndRecord(Runnable callback) {
+		long start = System.nanoTime();
+		try {
+			callback.run();
+		} finally {
+			callbackLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Check whether callbacks are run on another thread than the one dispatching them.
+	 * @return True if an executor is used.
+	 */
+	boolean isAsynchronous() {
+		return executor != null;
+	}
+
+	/**
+	 * Shut down the executor, if it was created for the watcher.
+	 * Already dispatched callbacks are still run.
+	 */
+	void shutdown() {
+		if (ownsExecutor && executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	/**
+	 * Create the default executor. A bounded pool with one thread per processor (at least {@value #DEFAULT_MIN_POOL_SIZE}, since callbacks tend to block on I/O),
+	 * where the dispatching thread runs the callbacks itself if the pool can't keep up.
+	 * @return A new executor.
+	 */
+	static ExecutorService newDefaultExecutor() {
+		int threads = Math.max(DEFAULT_MIN_POOL_SIZE, Runtime.getRuntime().availableProcessors());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(DEFAULT_QUEUE_CAPACITY),
+				new CallbackThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Create an executor that runs every callback on a new virtual thread.
+	 * Virtual threads require Java 21 or later, on older versions {@link #newDefaultExecutor()} is used instead.
+	 * @return A new executor.
+	 */
+	static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			Logger.getGlobal().info("Virtual threads are not supported by this Java version, using a bounded thread pool instead");
+			return newDefaultExecutor();
+		}
+	}
+
+	/**
+	 * The pending callbacks for one key. Only one instance per key is submitted to the executor at a time.
+	 */
+	private class SerialQueue implements Runnable {
+		private final Object key;
+		private final Queue<Runnable> callbacks = new ArrayDeque<>();
+
+		private SerialQueue(Object key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable callback;
+				synchronized (queues) {
+					callback = callbacks.poll();
+					if (callback == null) {
+						queues.remove(key);
+						return;
+					}
+				}
+
+				pendingCallbacks.decrement();
+				try {
+					runAndRecord(callback);
+				} catch (RuntimeException e) {
+					Logger.getGlobal().severe("Callback for " + key + " failed. " + e);
+				}
+			}
+		}
+	}
+
+	private static class CallbackThreadFactory implements ThreadFactory {
+		private final AtomicInteger counter = new AtomicInteger();
+
+		@Override
+		public Thread newThread(@NotNull Runnable runnable) {
+			Thread thread = new Thread(runnable, "storage-watcher-callback-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
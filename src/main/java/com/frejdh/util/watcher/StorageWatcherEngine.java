@@ -0,0 +1,36 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The source of the events for a watcher. An engine is a {@link WatchService} that also handles the registration of directories,
+ * since custom watch services can't be registered through {@link Path#register(WatchService, WatchEvent.Kind[])}.
+ */
+interface StorageWatcherEngine extends WatchService {
+
+	/**
+	 * Register a directory. Registering the same directory again returns the same key, with its events replaced.
+	 * @param directory The directory.
+	 * @param events The events to watch for.
+	 * @return The key of the directory.
+	 * @throws IOException If the directory couldn't be registered.
+	 */
+	WatchKey register(@NotNull Path directory, @NotNull WatchEvent.Kind<?>[] events) throws IOException;
+
+	/**
+	 * Check whether the engine signals keys on a schedule of its own, meaning that the watcher shouldn't sleep between its checks.
+	 * @return True if the engine is scheduled.
+	 */
+	boolean isScheduled();
+
+	/**
+	 * @return The kind of engine. Never {@link StorageWatcher.Engine#AUTO}.
+	 */
+	StorageWatcher.Engine getType();
+}
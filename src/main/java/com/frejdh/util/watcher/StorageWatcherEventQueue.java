@@ -0,0 +1,294 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock free ring buffer of events between the event loop of a watcher and the thread dispatching them.
+ * Any amount of threads may add events, while one thread takes them. Every slot has a sequence number telling whether it's
+ * free or filled for the current lap, so producers only contend on claiming a position and never on the slots themselves.
+ * What happens when the buffer is full is decided by the {@link StorageWatcher.QueuePolicy}.
+ */
+class StorageWatcherEventQueue {
+
+	private static final long MAX_BLOCKED_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private final StorageWatcher.QueuePolicy policy;
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<Event> slots;
+	// The position that each slot is free for (equal to the position) or filled for (position + 1)
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final LongAdder droppedEvents = new LongAdder();
+	// Only used by COALESCE_BY_PATH. The latest waiting event of each file
+	private final Map<Path, Event> waitingByPath;
+	private volatile Thread waitingConsumer;
+	private volatile boolean closed;
+
+	/**
+	 * @param capacity Max amount of waiting events, rounded up to a power of two.
+	 * @param policy What to do when the buffer is full.
+	 */
+	StorageWatcherEventQueue(int capacity, @NotNull StorageWatcher.QueuePolicy policy) {
+		int size = Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(2, capacity)) - 1) << 1;
+		this.policy = policy;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		this.waitingByPath = policy == StorageWatcher.QueuePolicy.COALESCE_BY_PATH ? new ConcurrentHashMap<>() : null;
+	}
+
+	/**
+	 * Add an event, applying the policy if the buffer is full.
+	 * @param components Components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @return True if the event was queued or merged into a waiting event, false if it was dropped.
+	 */
+	boolean put(@NotNull StorageWatcherRoutes components, @NotNull WatchEvent.Kind<?> kind, @NotNull Path filename) {
+		Path path = waitingByPath != null ? components.get(0).properties.directory.resolve(filename) : null;
+		Event event = new Event(components, kind, filename, path);
+		if (offer(event)) {
+			return true;
+		}
+
+		switch (policy) {
+			case BLOCK:
+				long parkNanos = 1000;
+				while (!offer(event)) {
+					if (Thread.currentThread().isInterrupted()) {
+						droppedEvents.increment(); // The watcher is stopping
+						return false;
+					}
+					LockSupport.parkNanos(this, parkNanos);
+					parkNanos = Math.min(parkNanos * 2, MAX_BLOCKED_PARK_NANOS);
+				}
+				return true;
+			case DROP_OLDEST:
+				while (!offer(event)) {
+					if (poll() != null) {
+						droppedEvents.increment();
+					}
+				}
+				return true;
+			case COALESCE_BY_PATH:
+				Event waiting = waitingByPath.get(path);
+				if (waiting != null && waiting.merge(kind)) {
+					return true;
+				}
+				droppedEvents.increment();
+				return false;
+			default:
+				droppedEvents.increment();
+				return false;
+		}
+	}
+
+	/**
+	 * Helper method. Claim the next position for an event, unless the buffer is full.
+	 */
+	private boolean offer(Event event) {
+		long position = tail.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = tail.get();
+			} else if (difference < 0) {
+				return false; // The slot still holds the event from the previous lap
+			} else {
+				position = tail.get(); // Claimed by another producer
+			}
+		}
+
+		int index = (int) position & mask;
+		if (waitingByPath != null) {
+			waitingByPath.put(event.path, event);
+		}
+		slots.lazySet(index, event);
+		sequences.set(index, position + 1); // Volatile, so that a consumer about to wait either sees the event or gets signalled
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	/**
+	 * Take the oldest event. Usually only called by the consumer, but the producers may drop the oldest event with it.
+	 * @return The event, or null if the buffer is empty.
+	 */
+	@Nullable
+	Event poll() {
+		long position = head.get();
+		while (true) {
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = head.get();
+			} else if (difference < 0) {
+				return null; // Not filled yet
+			} else {
+				position = head.get(); // Taken by another thread
+			}
+		}
+
+		int index = (int) position & mask;
+		Event event = slots.get(index);
+		slots.lazySet(index, null);
+		sequences.lazySet(index, position + capacity);
+		if (waitingByPath != null) {
+			waitingByPath.remove(event.path, event);
+		}
+		return event;
+	}
+
+	/**
+	 * Wait for events to be added, until the timeout or until the queue is closed. Only called by the consumer.
+	 * @param timeoutNanos Max time to wait, or a negative value to wait until signalled.
+	 */
+	void await(long timeoutNanos) {
+		waitingConsumer = Thread.currentThread();
+		try {
+			if (isEmpty() && !closed) {
+				if (timeoutNanos < 0) {
+					LockSupport.park(this);
+				} else if (timeoutNanos > 0) {
+					LockSupport.parkNanos(this, timeoutNanos);
+				}
+			}
+		} finally {
+			waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * Tell the consumer that no more events will be added. The events already waiting are still taken.
+	 */
+	void close() {
+		closed = true;
+		Thread consumer = waitingConsumer;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return The amount of waiting events. Approximate while events are added or taken.
+	 */
+	int size() {
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(capacity, size));
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return The amount of events dropped by the policy.
+	 */
+	long getDroppedEvents() {
+		return droppedEvents.sum();
+	}
+
+	/**
+	 * A waiting event. The kind can be merged with later events of the same file until the consumer takes it.
+	 */
+	static final class Event {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicReferenceFieldUpdater<Event, WatchEvent.Kind> KIND =
+				AtomicReferenceFieldUpdater.newUpdater(Event.class, WatchEvent.Kind.class, "kind");
+		/** Kind of an event that has been taken by the consumer. */
+		private static final WatchEvent.Kind<Void> TAKEN = marker("TAKEN");
+		/** Kind of an event whose merged events cancel each other out, such as a creation followed by a deletion. */
+		private static final WatchEvent.Kind<Void> CANCELLED = marker("CANCELLED");
+
+		final StorageWatcherRoutes components;
+		final Path filename;
+		private final Path path;
+		private volatile WatchEvent.Kind<?> kind;
+
+		private Event(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename, @Nullable Path path) {
+			this.components = components;
+			this.kind = kind;
+			this.filename = filename;
+			this.path = path;
+		}
+
+		/**
+		 * Take the kind of the event, after which nothing can be merged into it anymore. Only called by the consumer.
+		 * @return The net kind, or null if the merged events cancelled each other out.
+		 */
+		@Nullable
+		WatchEvent.Kind<?> take() {
+			WatchEvent.Kind<?> taken = KIND.getAndSet(this, TAKEN);
+			return taken != CANCELLED ? taken : null;
+		}
+
+		/**
+		 * Merge a later event of the same file into this one, see {@link StorageWatcherCoalescer#fold(WatchEvent.Kind, WatchEvent.Kind)}.
+		 * @param next The kind of the later event.
+		 * @return False if the event has already been taken, or if the events can't be combined.
+		 */
+		private boolean merge(WatchEvent.Kind<?> next) {
+			while (true) {
+				WatchEvent.Kind<?> previous = kind;
+				if (previous == TAKEN || (previous != CANCELLED && !StorageWatcherCoalescer.isFoldable(previous, next))) {
+					return false;
+				}
+				WatchEvent.Kind<?> merged = previous == CANCELLED ? next : StorageWatcherCoalescer.fold(previous, next);
+				if (KIND.compareAndSet(this, previous, merged != null ? merged : CANCELLED)) {
+					return true;
+				}
+			}
+		}
+
+		private static WatchEvent.Kind<Void> marker(String name) {
+			return new WatchEvent.Kind<Void>() {
+				@Override
+				public String name() {
+					return name;
+				}
+
+				@Override
+				public Class<Void> type() {
+					return Void.class;
+				}
+			};
+		}
+	}
+}
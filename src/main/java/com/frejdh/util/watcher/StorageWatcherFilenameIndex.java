@@ -0,0 +1,62 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Immutable open addressing hash set of filenames, for matching the filename of an event without converting it to a string.
+ * The table is kept at most half full, so that a lookup usually ends after one or two probes.
+ */
+final class StorageWatcherFilenameIndex {
+
+	private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+	private final Path[] table;
+	private final int shift;
+
+	/**
+	 * @param filenames Names of the files, each relative to their directory.
+	 */
+	StorageWatcherFilenameIndex(@NotNull Collection<Path> filenames) {
+		int bits = 1;
+		while ((1 << bits) < filenames.size() * 2) {
+			bits++;
+		}
+		this.table = new Path[1 << bits];
+		this.shift = Integer.SIZE - bits;
+
+		for (Path filename : filenames) {
+			int slot = slotOf(filename);
+			while (table[slot] != null && !table[slot].equals(filename)) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = filename;
+		}
+	}
+
+	/**
+	 * @param filename Name of the file, relative to its directory.
+	 * @return True if the name is in the index.
+	 */
+	boolean contains(@NotNull Path filename) {
+		int slot = slotOf(filename);
+		Path candidate;
+		while ((candidate = table[slot]) != null) {
+			if (candidate.equals(filename)) {
+				return true;
+			}
+			slot = (slot + 1) & (table.length - 1);
+		}
+		return false;
+	}
+
+	/**
+	 * Helper method. Fibonacci hashing, spreading the bits of {@link Path#hashCode()} over the table.
+	 */
+	private int slotOf(Path filename) {
+		return (filename.hashCode() * GOLDEN_RATIO) >>> shift;
+	}
+
+}
@@ -0,0 +1,342 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a fingerprint (size, modification time and a 64-bit content hash) of every watched file,
+ * so that modifications that rewrite a file with the same contents can be ignored.
+ * The same goes for closing a file after writing it, which is compared with the contents at the previous close instead,
+ * since the modifications of the same write have already updated the fingerprint by then.
+ * The contents are only hashed when the size and modification time can't tell whether they changed,
+ * and files of at least a given size are hashed through a memory mapping, while smaller files are read through a reusable buffer.
+ */
+class StorageWatcherFingerprints {
+
+	static final long DEFAULT_MEMORY_MAP_THRESHOLD = 1 << 20;
+	/** The events that the files are fingerprinted for, see {@link StorageWatcherProperties#maskOf(java.nio.file.WatchEvent.Kind)}. */
+	static final int CHANGE_MASK = StorageWatcherProperties.maskOf(StandardWatchEventKinds.ENTRY_MODIFY)
+			| StorageWatcherProperties.maskOf(StorageWatcher.ENTRY_CLOSE_WRITE);
+	/**
+	 * A modification time this close to when the fingerprint was taken can't be trusted,
+	 * as the file may be written again within the resolution of the modification time.
+	 */
+	private static final long RACY_MODIFICATION_MILLIS = 2000;
+	/** Max size of each memory mapping. A multiple of the stripe size of the hash. */
+	private static final long MAX_MAPPING_SIZE = 1L << 30;
+	/** Size of the buffer that files below the memory map threshold are read through. A multiple of the stripe size of the hash. */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	// Per thread, as the files are fingerprinted in parallel when tracking them
+	private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+	private final long memoryMapThreshold;
+	private final Map<Path, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+	// As of the latest close after writing, or the same as the above until the file is closed
+	private final Map<Path, Fingerprint> closedFingerprints = new ConcurrentHashMap<>();
+
+	/**
+	 * @param memoryMapThreshold Files of at least this size (in bytes) are hashed through a memory mapping.
+	 */
+	StorageWatcherFingerprints(long memoryMapThreshold) {
+		this.memoryMapThreshold = memoryMapThreshold;
+	}
+
+	/**
+	 * Take the fingerprints of the files of the components that watch for modifications or closes after writing, in parallel.
+	 * @param components The components.
+	 */
+	void track(@NotNull Collection<StorageWatcherComponent> components) {
+		components.parallelStream()
+				.filter(component -> (component.properties.getEventMask() & CHANGE_MASK) != 0)
+				.forEach(this::track);
+	}
+
+	private void track(StorageWatcherComponent component) {
+		Path directory = component.properties.directory;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (component.properties.accepts(StandardWatchEventKinds.ENTRY_MODIFY, entry.getFileName())
+						|| component.properties.accepts(StorageWatcher.ENTRY_CLOSE_WRITE, entry.getFileName())) {
+					update(entry);
+				}
+			}
+		} catch (IOException e) {
+			// Fingerprinted on the first event instead
+		}
+	}
+
+	/**
+	 * Take a new fingerprint of a file, such as after it was created.
+	 * @param file The file.
+	 */
+	void update(@NotNull Path file) {
+		try {
+			Fingerprint fingerprint = Fingerprint.of(file, memoryMapThreshold, null);
+			if (fingerprint != null) {
+				fingerprints.put(file, fingerprint);
+				closedFingerprints.put(file, fingerprint);
+			} else {
+				remove(file);
+			}
+		} catch (IOException e) {
+			remove(file);
+		}
+	}
+
+	/**
+	 * Forget a file, such as after it was deleted.
+	 * @param file The file.
+	 */
+	void remove(@NotNull Path file) {
+		fingerprints.remove(file);
+		closedFingerprints.remove(file);
+	}
+
+	/**
+	 * Check whether a modified file still has the same contents as when its fingerprint was taken, and update the fingerprint.
+	 * @param file The modified file.
+	 * @return True if the contents are unchanged. False if they changed, or if the file is unknown or can't be read.
+	 */
+	boolean isUnchanged(@NotNull Path file) {
+		return isUnchanged(fingerprints, file);
+	}
+
+	/**
+	 * Check whether a file that was closed after writing still has the same contents as when it was closed the previous time
+	 * (or when its fingerprint was first taken), and update the fingerprint of the close.
+	 * @param file The closed file.
+	 * @return True if the contents are unchanged. False if they changed, or if the file is unknown or can't be read.
+	 */
+	boolean isUnchangedSinceClosed(@NotNull Path file) {
+		return isUnchanged(closedFingerprints, file);
+	}
+
+	/**
+	 * @return The amount of fingerprinted files.
+	 */
+	int size() {
+		return fingerprints.size();
+	}
+
+	/**
+	 * Helper method. Compare a file with its fingerprint of the given map, and update the fingerprint.
+	 */
+	private boolean isUnchanged(Map<Path, Fingerprint> fingerprints, Path file) {
+		Fingerprint previous = fingerprints.get(file);
+		Fingerprint current;
+		try {
+			current = Fingerprint.of(file, memoryMapThreshold, previous);
+		} catch (IOException e) {
+			fingerprints.remove(file);
+			return false;
+		}
+
+		if (current == null) {
+			fingerprints.remove(file);
+			return false;
+		}
+		fingerprints.put(file, current);
+		return previous != null && previous.isSameAs(current);
+	}
+
+	/**
+	 * Hash the contents of a file.
+	 * @param channel The opened file.
+	 * @param size The size of the file.
+	 * @param memoryMapThreshold Files of at least this size are hashed through a memory mapping.
+	 * @return The hash.
+	 * @throws IOException If the file couldn't be read.
+	 */
+	static long hash(FileChannel channel, long size, long memoryMapThreshold) throws IOException {
+		XxHash64 hash = new XxHash64();
+		if (size >= memoryMapThreshold) {
+			for (long position = 0; position < size; position += MAX_MAPPING_SIZE) {
+				hash.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING_SIZE, size - position)));
+			}
+		} else {
+			ByteBuffer buffer = READ_BUFFER.get();
+			long remaining = size;
+			while (remaining > 0) {
+				buffer.clear();
+				if (remaining < buffer.capacity()) {
+					buffer.limit((int) remaining);
+				}
+				int read = channel.read(buffer);
+				if (read < 0) {
+					break; // Truncated while reading
+				}
+				buffer.flip();
+				hash.update(buffer);
+				remaining -= read;
+			}
+		}
+		return hash.digest();
+	}
+
+	private static final class Fingerprint {
+		private final long size;
+		private final long modifiedTime;
+		/** Null if the contents haven't been hashed, see {@link #of(Path, long, Fingerprint)}. */
+		private final Long hash;
+		private final long takenAt;
+
+		private Fingerprint(long size, long modifiedTime, @Nullable Long hash) {
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.hash = hash;
+			this.takenAt = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return True if the file certainly has the same contents as when this fingerprint was taken.
+		 */
+		private boolean isSameAs(Fingerprint current) {
+			return current == this || (hash != null && size == current.size && hash.equals(current.hash));
+		}
+
+		/**
+		 * Take the fingerprint of a file. The contents are only hashed when the previous fingerprint can't tell whether they changed.
+		 * A changed size always means changed contents, so large files are then left unhashed until their size stays the same.
+		 * @param file The file.
+		 * @param memoryMapThreshold Files of at least this size are hashed through a memory mapping, and only when needed.
+		 * @param previous The previous fingerprint of the file, if any.
+		 * @return The fingerprint, which is the previous one if the file hasn't been written since. Null if the file doesn't exist or isn't a regular file.
+		 * @throws IOException If the file couldn't be read.
+		 */
+		@Nullable
+		private static Fingerprint of(Path file, long memoryMapThreshold, @Nullable Fingerprint previous) throws IOException {
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+			if (!attributes.isRegularFile()) {
+				return null;
+			}
+
+			long size = attributes.size();
+			long modifiedTime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			if (previous != null && previous.size == size && previous.modifiedTime == modifiedTime
+					&& TimeUnit.NANOSECONDS.toMillis(modifiedTime) + RACY_MODIFICATION_MILLIS < previous.takenAt) {
+				return previous; // Neither written nor truncated since
+			} else if (previous != null && previous.size != size && size >= memoryMapThreshold) {
+				return new Fingerprint(size, modifiedTime, null);
+			}
+
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				size = channel.size();
+				return new Fingerprint(size, modifiedTime, hash(channel, size, memoryMapThreshold));
+			}
+		}
+	}
+
+	/**
+	 * Streaming implementation of the 64-bit xxHash, with a seed of 0.
+	 */
+	static final class XxHash64 {
+		private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+		private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+		private static final long PRIME_3 = 0x165667B19E3779F9L;
+		private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+		private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+		private static final int STRIPE_SIZE = 32;
+
+		private long v1 = PRIME_1 + PRIME_2;
+		private long v2 = PRIME_2;
+		private long v3 = 0;
+		private long v4 = -PRIME_1;
+		private long length;
+		// Bytes that didn't fill a whole stripe yet
+		private final ByteBuffer tail = ByteBuffer.allocate(STRIPE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		void update(ByteBuffer input) {
+			ByteBuffer buffer = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			length += buffer.remaining();
+
+			if (tail.position() > 0) {
+				while (tail.hasRemaining() && buffer.hasRemaining()) {
+					tail.put(buffer.get());
+				}
+				if (tail.hasRemaining()) {
+					return;
+				}
+				tail.flip();
+				stripe(tail);
+				tail.clear();
+			}
+
+			while (buffer.remaining() >= STRIPE_SIZE) {
+				stripe(buffer);
+			}
+			tail.put(buffer);
+		}
+
+		long digest() {
+			long hash;
+			if (length >= STRIPE_SIZE) {
+				hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+				hash = merge(hash, v1);
+				hash = merge(hash, v2);
+				hash = merge(hash, v3);
+				hash = merge(hash, v4);
+			} else {
+				hash = PRIME_5;
+			}
+			hash += length;
+
+			ByteBuffer remaining = (ByteBuffer) tail.duplicate().order(ByteOrder.LITTLE_ENDIAN).flip();
+			while (remaining.remaining() >= Long.BYTES) {
+				hash ^= round(0, remaining.getLong());
+				hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+			}
+			if (remaining.remaining() >= Integer.BYTES) {
+				hash ^= (remaining.getInt() & 0xFFFFFFFFL) * PRIME_1;
+				hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+			}
+			while (remaining.hasRemaining()) {
+				hash ^= (remaining.get() & 0xFF) * PRIME_5;
+				hash = Long.rotateLeft(hash, 11) * PRIME_1;
+			}
+
+			hash ^= hash >>> 33;
+			hash *= PRIME_2;
+			hash ^= hash >>> 29;
+			hash *= PRIME_3;
+			hash ^= hash >>> 32;
+			return hash;
+		}
+
+		private void stripe(ByteBuffer buffer) {
+			v1 = round(v1, buffer.getLong());
+			v2 = round(v2, buffer.getLong());
+			v3 = round(v3, buffer.getLong());
+			v4 = round(v4, buffer.getLong());
+		}
+
+		private static long round(long accumulator, long input) {
+			return Long.rotateLeft(accumulator + input * PRIME_2, 31) * PRIME_1;
+		}
+
+		private static long merge(long hash, long value) {
+			return (hash ^ round(0, value)) * PRIME_1 + PRIME_4;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.frejdh.util.watcher;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram with one striped counter per power of two, meaning that recording a value never blocks nor allocates
+ * (beyond the counter cells created on the first contention).
+ */
+class StorageWatcherHistogram implements StorageWatcherMetrics.Histogram {
+
+	// Bucket 0 holds the value 0, and bucket i holds the values in [2^(i-1), 2^i)
+	private final LongAdder[] buckets = new LongAdder[Long.SIZE + 1];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	StorageWatcherHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param value Value to record. Negative values are recorded as 0.
+	 */
+	void record(long value) {
+		long nonNegative = Math.max(0, value);
+		buckets[Long.SIZE - Long.numberOfLeadingZeros(nonNegative)].increment();
+		sum.add(nonNegative);
+		max.accumulate(nonNegative);
+	}
+
+	/**
+	 * @param quantile Quantile between 0 and 1.
+	 * @return The upper bound of the bucket containing the quantile, or 0 if nothing has been recorded.
+	 */
+	long valueAt(double quantile) {
+		long[] counts = new long[buckets.length];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				long upperBound = i == 0 ? 0 : (i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min(upperBound, getMax());
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	@Override
+	public long getSum() {
+		return sum.sum();
+	}
+
+	@Override
+	public long getMax() {
+		return max.get();
+	}
+
+	@Override
+	public long getMedian() {
+		return valueAt(0.5);
+	}
+
+	@Override
+	public long getPercentile90() {
+		return valueAt(0.9);
+	}
+
+	@Override
+	public long getPercentile99() {
+		return valueAt(0.99);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, median=%d, p90=%d, p99=%d, max=%d", getCount(), getMedian(), getPercentile90(), getPercentile99(), getMax());
+	}
+
+}
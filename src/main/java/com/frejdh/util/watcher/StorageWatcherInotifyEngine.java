@@ -0,0 +1,503 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Engine reading inotify directly on Linux, instead of through the watch service of the JDK, which reads the events on a background
+ * thread and queues them until the watcher polls them. All directories share one inotify file descriptor, which is read by the thread
+ * waiting for the keys, in bulk into a reusable direct buffer. The inotify mask of a directory is chosen from the events to watch.
+ * Besides the standard events, files that were written and closed are reported as {@link StorageWatcher#ENTRY_CLOSE_WRITE},
+ * and both halves of a move carry the inotify cookie that pairs them, see {@link #cookieOf(WatchEvent)}.
+ * The system calls are made through the foreign function API, see {@link StorageWatcherNativeSyscalls},
+ * so the engine is only available with Java 22 or later.
+ */
+class StorageWatcherInotifyEngine implements StorageWatcherEngine {
+
+	// Masks of inotify(7)
+	static final int IN_MODIFY = 0x00000002;
+	static final int IN_ATTRIB = 0x00000004;
+	static final int IN_CLOSE_WRITE = 0x00000008;
+	static final int IN_MOVED_FROM = 0x00000040;
+	static final int IN_MOVED_TO = 0x00000080;
+	static final int IN_CREATE = 0x00000100;
+	static final int IN_DELETE = 0x00000200;
+	static final int IN_Q_OVERFLOW = 0x00004000;
+	static final int IN_IGNORED = 0x00008000;
+	static final int IN_ONLYDIR = 0x01000000;
+
+	/** Size of a struct inotify_event without its name: the watch descriptor, mask, cookie and length of the name. */
+	static final int EVENT_HEADER_SIZE = 16;
+	/** Room for hundreds of events even with the longest names, read with a single system call. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/** Longest time to wait in a system call, since such a wait can't be interrupted. */
+	private static final int WAIT_SLICE_MILLIS = 100;
+	/** Charset of the filenames, the same as of the paths of the JDK. */
+	static final Charset FILENAME_CHARSET = filenameCharset();
+
+	private final Syscalls syscalls;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+	private final byte[] name = new byte[BUFFER_SIZE];
+	// Per watch descriptor. Guarded by itself, so that no event is read before the key of its descriptor has been added
+	private final Map<Integer, InotifyKey> keys = new HashMap<>();
+	private final Queue<InotifyKey> signalledKeys = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+	private boolean reading; // Guarded by this
+	private boolean released; // Guarded by this
+
+	StorageWatcherInotifyEngine(@NotNull Syscalls syscalls) {
+		this.syscalls = syscalls;
+	}
+
+	/**
+	 * @return True if inotify can be read directly on this platform.
+	 */
+	static boolean isAvailable() {
+		return StorageWatcherNativeSyscalls.isSupported();
+	}
+
+	/**
+	 * Create an engine with a new inotify instance.
+	 * @return The engine, or null if inotify can't be read directly on this platform.
+	 * @throws IOException If the inotify instance couldn't be created, such as when the limit of instances has been reached.
+	 */
+	@Nullable
+	static StorageWatcherInotifyEngine open() throws IOException {
+		Syscalls syscalls = StorageWatcherNativeSyscalls.open();
+		return syscalls != null ? new StorageWatcherInotifyEngine(syscalls) : null;
+	}
+
+	/**
+	 * Get the inotify cookie of an event, which is the same for the deletion and creation that a move consists of.
+	 * @param event An event from any engine.
+	 * @return The cookie, or 0 if the event isn't a half of a move read by this engine.
+	 */
+	static int cookieOf(WatchEvent<?> event) {
+		return event instanceof InotifyEvent ? ((InotifyEvent<?>) event).cookie : 0;
+	}
+
+	/**
+	 * Get the inotify mask for the events to watch.
+	 * @param events The events.
+	 * @return The mask.
+	 */
+	static int maskOf(WatchEvent.Kind<?>[] events) {
+		int mask = IN_ONLYDIR;
+		for (WatchEvent.Kind<?> kind : events) {
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+				mask |= IN_CREATE | IN_MOVED_TO;
+			} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+				mask |= IN_DELETE | IN_MOVED_FROM;
+			} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+				mask |= IN_MODIFY | IN_ATTRIB;
+			} else if (kind == StorageWatcher.ENTRY_CLOSE_WRITE) {
+				mask |= IN_CLOSE_WRITE;
+			}
+		}
+		return mask;
+	}
+
+	@Override
+	public WatchKey register(@NotNull Path directory, @NotNull WatchEvent.Kind<?>[] events) throws IOException {
+		checkOpen();
+		int mask = maskOf(events);
+		synchronized (keys) {
+			int descriptor = syscalls.addWatch(directory, mask); // Replaces the mask if the directory is already watched
+			InotifyKey key = keys.get(descriptor);
+			if (key == null) {
+				key = new InotifyKey(descriptor, directory);
+				keys.put(descriptor, key);
+			}
+			return key;
+		}
+	}
+
+	@Override
+	public boolean isScheduled() {
+		return false;
+	}
+
+	@Override
+	public StorageWatcher.Engine getType() {
+		return StorageWatcher.Engine.NATIVE;
+	}
+
+	@Override
+	public WatchKey poll() {
+		checkOpen();
+		WatchKey key = signalledKeys.poll();
+		if (key == null) {
+			read(0);
+			key = signalledKeys.poll();
+		}
+		return key;
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return await(unit.toNanos(timeout));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		return await(-1);
+	}
+
+	/**
+	 * Close the engine. A thread waiting for keys notices it once its current wait ends, and releases the inotify instance then.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (reading) {
+				return;
+			}
+		}
+		release();
+	}
+
+	/**
+	 * Helper method. Wait for a signalled key, reading the events meanwhile.
+	 * @param timeoutNanos Longest time to wait, or -1 to wait until a key is signalled.
+	 * @return The key, or null if none was signalled within the timeout.
+	 */
+	private WatchKey await(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while (true) {
+			checkOpen();
+			WatchKey key = signalledKeys.poll();
+			if (key != null) {
+				return key;
+			} else if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+
+			long remainingNanos = timeoutNanos < 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
+			read((int) Math.max(0, Math.min(WAIT_SLICE_MILLIS, TimeUnit.NANOSECONDS.toMillis(remainingNanos))));
+			key = signalledKeys.poll();
+			if (key != null || (timeoutNanos >= 0 && deadline - System.nanoTime() <= 0)) {
+				return key;
+			}
+		}
+	}
+
+	/**
+	 * Helper method. Read the events that are available within the timeout, and signal their keys.
+	 * @param timeoutMillis Longest time to wait for events, 0 to not wait.
+	 */
+	private void read(int timeoutMillis) {
+		synchronized (this) {
+			checkOpen();
+			reading = true;
+		}
+
+		int length;
+		try {
+			buffer.clear();
+			length = syscalls.read(buffer, timeoutMillis);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to read the inotify events", e);
+		} finally {
+			synchronized (this) {
+				reading = false;
+			}
+			if (closed) {
+				release(); // Closed while waiting
+			}
+		}
+
+		checkOpen();
+		buffer.position(0).limit(length);
+		parse();
+	}
+
+	/**
+	 * Helper method. Parse the events in the buffer, and signal them to their keys.
+	 */
+	private void parse() {
+		synchronized (keys) {
+			while (buffer.remaining() >= EVENT_HEADER_SIZE) {
+				int descriptor = buffer.getInt();
+				int mask = buffer.getInt();
+				int cookie = buffer.getInt();
+				int nameLength = buffer.getInt();
+				int nameStart = buffer.position();
+				buffer.position(nameStart + nameLength);
+
+				if ((mask & IN_Q_OVERFLOW) != 0) {
+					keys.values().forEach(key -> key.signal(new InotifyEvent<>(StandardWatchEventKinds.OVERFLOW, null, 0)));
+					continue;
+				}
+
+				InotifyKey key = keys.get(descriptor);
+				if (key == null) {
+					continue; // Cancelled
+				} else if ((mask & IN_IGNORED) != 0) {
+					// The directory is gone, or no longer watched
+					keys.remove(descriptor);
+					key.valid = false;
+					key.signal(null);
+					continue;
+				}
+
+				WatchEvent.Kind<Path> kind = kindOf(mask);
+				if (kind != null && nameLength > 0) {
+					Path filename = filenameOf(key.directory, nameStart, nameLength);
+					key.signal(new InotifyEvent<>(kind, filename, (mask & (IN_MOVED_FROM | IN_MOVED_TO)) != 0 ? cookie : 0));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Helper method. Get the kind of event for an inotify mask.
+	 * @return The kind, or null for events that aren't reported.
+	 */
+	@Nullable
+	private static WatchEvent.Kind<Path> kindOf(int mask) {
+		if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+			return StandardWatchEventKinds.ENTRY_CREATE;
+		} else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+			return StandardWatchEventKinds.ENTRY_DELETE;
+		} else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0) {
+			return StandardWatchEventKinds.ENTRY_MODIFY;
+		} else if ((mask & IN_CLOSE_WRITE) != 0) {
+			return StorageWatcher.ENTRY_CLOSE_WRITE;
+		}
+		return null;
+	}
+
+	/**
+	 * Helper method. Decode the name of an event, which is padded with null bytes.
+	 */
+	private Path filenameOf(Path directory, int start, int length) {
+		int end = 0;
+		while (end < length && buffer.get(start + end) != 0) {
+			name[end] = buffer.get(start + end);
+			end++;
+		}
+		return directory.getFileSystem().getPath(new String(name, 0, end, FILENAME_CHARSET));
+	}
+
+	/**
+	 * Helper method. Release the inotify instance, once.
+	 */
+	private void release() {
+		synchronized (this) {
+			if (released) {
+				return;
+			}
+			released = true;
+		}
+
+		synchronized (keys) {
+			keys.values().forEach(key -> key.valid = false);
+			keys.clear();
+		}
+		signalledKeys.clear();
+		try {
+			syscalls.close();
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to close the inotify instance. " + e);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+	}
+
+	/**
+	 * Helper method. The charset of the filenames, which is the one that the JDK uses for paths.
+	 */
+	private static Charset filenameCharset() {
+		try {
+			String encoding = System.getProperty("sun.jnu.encoding");
+			return encoding != null ? Charset.forName(encoding) : Charset.defaultCharset();
+		} catch (IllegalArgumentException e) {
+			return Charset.defaultCharset();
+		}
+	}
+
+	/**
+	 * The system calls that the engine is made of. Each engine has an inotify instance of its own.
+	 */
+	interface Syscalls extends Closeable {
+
+		/**
+		 * Watch a directory, or replace the mask of a directory that is already watched.
+		 * @param directory The directory.
+		 * @param mask The inotify mask.
+		 * @return The watch descriptor, which is the same for a directory that is already watched.
+		 * @throws IOException If the directory couldn't be watched.
+		 */
+		int addWatch(@NotNull Path directory, int mask) throws IOException;
+
+		/**
+		 * Stop watching a directory. An {@link #IN_IGNORED} event is read for it afterwards.
+		 * @param descriptor The watch descriptor.
+		 * @throws IOException If the descriptor isn't watched, such as when the directory is already gone.
+		 */
+		void removeWatch(int descriptor) throws IOException;
+
+		/**
+		 * Wait until events can be read, and read as many as fit into the buffer.
+		 * @param buffer Direct buffer to read into, from its start.
+		 * @param timeoutMillis Longest time to wait, 0 to not wait.
+		 * @return The amount of bytes read, or 0 if there were no events within the timeout.
+		 * @throws IOException If the events couldn't be read.
+		 */
+		int read(@NotNull ByteBuffer buffer, int timeoutMillis) throws IOException;
+	}
+
+	/**
+	 * Key of a watch descriptor.
+	 */
+	private class InotifyKey implements WatchKey {
+		private final int descriptor;
+		private final Path directory;
+		private volatile boolean valid = true;
+		private List<WatchEvent<?>> pendingEvents = new ArrayList<>();
+		private boolean signalled;
+
+		private InotifyKey(int descriptor, Path directory) {
+			this.descriptor = descriptor;
+			this.directory = directory;
+		}
+
+		/**
+		 * Add an event, merging repeated events of the same file, and signal the key unless it already is.
+		 * @param event The event, or null to just signal the key.
+		 */
+		private synchronized void signal(@Nullable InotifyEvent<?> event) {
+			if (event != null) {
+				WatchEvent<?> last = pendingEvents.isEmpty() ? null : pendingEvents.get(pendingEvents.size() - 1);
+				if (last instanceof InotifyEvent && ((InotifyEvent<?>) last).repeats(event)) {
+					((InotifyEvent<?>) last).count++;
+				} else {
+					pendingEvents.add(event);
+				}
+			}
+			if (!signalled) {
+				signalled = true;
+				signalledKeys.offer(this);
+			}
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid;
+		}
+
+		@Override
+		public synchronized List<WatchEvent<?>> pollEvents() {
+			List<WatchEvent<?>> events = pendingEvents;
+			pendingEvents = new ArrayList<>();
+			return events;
+		}
+
+		@Override
+		public synchronized boolean reset() {
+			if (!valid) {
+				return false;
+			}
+			if (signalled) {
+				if (pendingEvents.isEmpty()) {
+					signalled = false;
+				} else {
+					signalledKeys.offer(this);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (keys) {
+				if (!valid) {
+					return;
+				}
+				valid = false;
+				keys.remove(descriptor, this);
+			}
+			if (!closed) {
+				try {
+					syscalls.removeWatch(descriptor);
+				} catch (IOException e) {
+					// Already removed together with the directory
+				}
+			}
+		}
+
+		@Override
+		public Watchable watchable() {
+			return directory;
+		}
+	}
+
+	/**
+	 * An event read from inotify.
+	 * @param <T> Type of the context, which is the filename for all but {@link StandardWatchEventKinds#OVERFLOW}.
+	 */
+	private static final class InotifyEvent<T> implements WatchEvent<T> {
+		private final Kind<T> kind;
+		private final T context;
+		private final int cookie;
+		private int count = 1;
+
+		private InotifyEvent(Kind<T> kind, @Nullable T context, int cookie) {
+			this.kind = kind;
+			this.context = context;
+			this.cookie = cookie;
+		}
+
+		/**
+		 * @return True if the other event is a repetition of this one, which isn't the case for the halves of moves.
+		 */
+		private boolean repeats(InotifyEvent<?> other) {
+			return kind == other.kind && cookie == 0 && other.cookie == 0 && Objects.equals(context, other.context);
+		}
+
+		@Override
+		public Kind<T> kind() {
+			return kind;
+		}
+
+		@Override
+		public int count() {
+			return count;
+		}
+
+		@Override
+		public T context() {
+			return context;
+		}
+	}
+}
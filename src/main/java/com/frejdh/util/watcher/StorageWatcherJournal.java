@@ -0,0 +1,321 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Persists a snapshot of every watched directory on disk, so that the changes made while the watcher wasn't running
+ * can be reported once it starts again. Every directory has a journal file of its own in the journal directory:
+ * a compact snapshot of its entries (name, size, modification time and a hash of the file key), followed by one record per handled event.
+ * The records are appended through a memory mapping, and thereby survive the process ending without being flushed.
+ * A journal is rewritten as a compact snapshot when it's opened, and whenever its mapping is full.
+ */
+class StorageWatcherJournal {
+
+	private static final int MAGIC = 0x53574A31; // "SWJ1"
+	private static final byte END = 0;
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final int PUT_ATTRIBUTES_SIZE = 3 * Long.BYTES;
+	private static final long MIN_MAPPING_SIZE = 64 * 1024;
+	private static final int MIN_CHANGES_BEFORE_COMPACTING = 64;
+
+	private final Path journalDirectory;
+	private final Map<Path, DirectoryJournal> journals = new ConcurrentHashMap<>();
+
+	/**
+	 * @param journalDirectory Directory to keep the journal files in. Created if it doesn't exist.
+	 */
+	StorageWatcherJournal(@NotNull Path journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	/**
+	 * Open the journal of a directory, and compare the directory with the snapshot from the previous run.
+	 * Without a journal from a previous run, the directory is journaled as it is and no differences are reported.
+	 * @param directory The watched directory.
+	 * @return The changes made since the previous run, which are written to the journal once they have been handled, see {@link #update(Path, Path)}.
+	 * @throws IOException If the directory couldn't be scanned or the journal couldn't be written.
+	 */
+	List<FileEvent> open(@NotNull Path directory) throws IOException {
+		Files.createDirectories(journalDirectory);
+		Path file = journalDirectory.resolve(String.format("%016x.journal", hashOf(directory.toAbsolutePath().toString())));
+		Map<String, StorageWatcherSnapshot.Entry> journaled = read(file, directory);
+		StorageWatcherSnapshot current = StorageWatcherSnapshot.scan(directory).mapFileKeys(StorageWatcherJournal::fileKeyOf);
+
+		DirectoryJournal journal = new DirectoryJournal(directory, file, journaled != null ? StorageWatcherSnapshot.EMPTY.apply(journaled) : current);
+		journal.rewrite();
+		DirectoryJournal previous = journals.put(directory, journal);
+		if (previous != null) {
+			previous.close();
+		}
+
+		List<FileEvent> changes = new ArrayList<>();
+		if (journaled != null) {
+			long timestamp = System.currentTimeMillis();
+			journal.snapshot.diff(current, (kind, name) -> changes.add(new FileEvent(directory, directory.resolve(name), kind, timestamp)));
+		}
+		return changes;
+	}
+
+	/**
+	 * @param directory The watched directory.
+	 * @return True if the journal of the directory is open.
+	 */
+	boolean isOpen(@NotNull Path directory) {
+		return journals.containsKey(directory);
+	}
+
+	/**
+	 * Write the current state of a file to the journal of its directory, once an event for it has been handled.
+	 * @param directory The affected directory.
+	 * @param filename Name of the affected file, relative to the directory.
+	 */
+	void update(@NotNull Path directory, @NotNull Path filename) {
+		DirectoryJournal journal = journals.get(directory);
+		if (journal == null) {
+			return;
+		}
+
+		StorageWatcherSnapshot.Entry entry;
+		try {
+			entry = StorageWatcherSnapshot.Entry.read(directory.resolve(filename));
+		} catch (IOException e) {
+			return; // Reported again when the watcher starts next time
+		}
+
+		try {
+			journal.append(filename.toString(), entry != null
+					? new StorageWatcherSnapshot.Entry(entry.size, entry.modifiedTime, fileKeyOf(entry.fileKey))
+					: StorageWatcherSnapshot.Entry.DELETED);
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to write to the journal of " + directory + ". " + e);
+		}
+	}
+
+	/**
+	 * Close the journal of a directory and delete its file, such as when the directory was deleted.
+	 * @param directory The directory.
+	 */
+	void remove(@NotNull Path directory) {
+		DirectoryJournal journal = journals.remove(directory);
+		if (journal != null) {
+			journal.close();
+			try {
+				Files.deleteIfExists(journal.file);
+			} catch (IOException e) {
+				Logger.getGlobal().warning("Failed to delete the journal of " + directory + ". " + e);
+			}
+		}
+	}
+
+	/**
+	 * Flush and close all journals.
+	 */
+	void close() {
+		journals.values().forEach(DirectoryJournal::close);
+		journals.clear();
+	}
+
+	/**
+	 * Helper method. Read a journal file into the entries it describes.
+	 * @return The entries by name, or null if there's no journal, or if it's unreadable or belongs to another directory.
+	 */
+	@Nullable
+	private static Map<String, StorageWatcherSnapshot.Entry> read(Path file, Path directory) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+
+		Map<String, StorageWatcherSnapshot.Entry> entries = new HashMap<>();
+		try {
+			if (buffer.getInt() != MAGIC || !directory.toAbsolutePath().toString().equals(readString(buffer))) {
+				Logger.getGlobal().warning("Ignoring the journal " + file + ", which doesn't belong to " + directory);
+				return null;
+			}
+
+			// A record that was cut off ends the journal, as its type is written last
+			while (buffer.hasRemaining()) {
+				byte type = buffer.get();
+				if (type == END) {
+					break;
+				}
+				String name = readString(buffer);
+				if (type == PUT) {
+					long size = buffer.getLong();
+					long modifiedTime = buffer.getLong();
+					long fileKey = buffer.getLong();
+					entries.put(name, new StorageWatcherSnapshot.Entry(size, modifiedTime, fileKey != 0 ? fileKey : null));
+				} else if (type == REMOVE) {
+					entries.remove(name);
+				} else {
+					break;
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			// Cut off at the end of the file
+		}
+		return entries;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Helper method. Get a representation of a file key that can be stored, since the file keys themselves are platform specific objects.
+	 * @return A hash of the file key, or null if there is none.
+	 */
+	@Nullable
+	private static Object fileKeyOf(@Nullable Object fileKey) {
+		if (fileKey == null || fileKey instanceof Long) {
+			return fileKey;
+		}
+		long hash = hashOf(fileKey.toString());
+		return hash != 0 ? hash : 1L;
+	}
+
+	private static long hashOf(String value) {
+		StorageWatcherFingerprints.XxHash64 hash = new StorageWatcherFingerprints.XxHash64();
+		hash.update(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+		return hash.digest();
+	}
+
+	/**
+	 * The journal of one directory: its snapshot together with the changes since, both in memory and in the mapped file.
+	 */
+	private static class DirectoryJournal {
+		private final Path directory;
+		private final Path file;
+		private StorageWatcherSnapshot snapshot;
+		private final Map<String, StorageWatcherSnapshot.Entry> changes = new HashMap<>();
+		private MappedByteBuffer mapping;
+		private int position;
+
+		private DirectoryJournal(Path directory, Path file, StorageWatcherSnapshot snapshot) {
+			this.directory = directory;
+			this.file = file;
+			this.snapshot = snapshot;
+		}
+
+		/**
+		 * Append a record for a changed entry, rewriting the journal if the mapping is full.
+		 * @param name Name of the entry.
+		 * @param entry The new attributes of the entry, or {@link StorageWatcherSnapshot.Entry#DELETED}.
+		 */
+		private synchronized void append(String name, StorageWatcherSnapshot.Entry entry) throws IOException {
+			if (mapping == null) {
+				return; // Closed
+			}
+			changes.put(name, entry);
+
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			int length = 1 + Short.BYTES + nameBytes.length + (entry != StorageWatcherSnapshot.Entry.DELETED ? PUT_ATTRIBUTES_SIZE : 0);
+			if (position + length >= mapping.capacity()) {
+				rewrite();
+				return;
+			}
+
+			// The type is written last, so that a record is only read back once it's complete
+			mapping.position(position + 1);
+			mapping.putShort((short) nameBytes.length);
+			mapping.put(nameBytes);
+			if (entry != StorageWatcherSnapshot.Entry.DELETED) {
+				mapping.putLong(entry.size);
+				mapping.putLong(entry.modifiedTime);
+				mapping.putLong(entry.fileKey != null ? (Long) entry.fileKey : 0);
+				mapping.put(position, PUT);
+			} else {
+				mapping.put(position, REMOVE);
+			}
+			position += length;
+
+			if (changes.size() > Math.max(MIN_CHANGES_BEFORE_COMPACTING, snapshot.size() / 4)) {
+				snapshot = snapshot.apply(changes);
+				changes.clear();
+			}
+		}
+
+		/**
+		 * Write the current state as a new, compact journal, which atomically replaces the previous one. Then map it for appending.
+		 */
+		private synchronized void rewrite() throws IOException {
+			snapshot = snapshot.apply(changes);
+			changes.clear();
+
+			byte[] directoryBytes = directory.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+			byte[][] names = new byte[snapshot.size()][];
+			int size = Integer.BYTES + Short.BYTES + directoryBytes.length;
+			for (int i = 0; i < names.length; i++) {
+				names[i] = snapshot.name(i).getBytes(StandardCharsets.UTF_8);
+				size += 1 + Short.BYTES + names[i].length + PUT_ATTRIBUTES_SIZE;
+			}
+
+			ByteBuffer content = ByteBuffer.allocate(size);
+			content.putInt(MAGIC);
+			content.putShort((short) directoryBytes.length);
+			content.put(directoryBytes);
+			for (int i = 0; i < names.length; i++) {
+				StorageWatcherSnapshot.Entry entry = snapshot.get(i);
+				content.put(PUT);
+				content.putShort((short) names[i].length);
+				content.put(names[i]);
+				content.putLong(entry.size);
+				content.putLong(entry.modifiedTime);
+				content.putLong(entry.fileKey != null ? (Long) entry.fileKey : 0);
+			}
+			content.flip();
+
+			Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				while (content.hasRemaining()) {
+					channel.write(content);
+				}
+				channel.force(true);
+			}
+			try {
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			// Room for appending at least as much as the snapshot itself
+			long capacity = Math.min(Integer.MAX_VALUE, Math.max(MIN_MAPPING_SIZE, 2L * size));
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			}
+			position = size;
+		}
+
+		private synchronized void close() {
+			if (mapping != null) {
+				mapping.force();
+				mapping = null;
+			}
+		}
+	}
+}
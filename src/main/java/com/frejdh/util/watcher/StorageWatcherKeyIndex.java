@@ -0,0 +1,325 @@
+package com.frejdh.util.watcher;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Routes the {@link WatchKey}s returned by a shared {@link StorageWatcherEngine} back to the component(s) that they belong to.
+ * Directories may be registered and removed while the watcher is running.
+ */
+class StorageWatcherKeyIndex {
+
+	/** Amount of components that are registered by the same task, instead of being split further. */
+	private static final int COMPONENTS_PER_TASK = 16;
+
+	private final StorageWatcherEngine engine;
+	private final Map<Path, Registration> registrationsByDirectory = new ConcurrentHashMap<>();
+	private final Map<WatchKey, Registration> registrationsByKey = new ConcurrentHashMap<>();
+	private final List<StorageWatcherComponent> requestedComponents;
+
+	private StorageWatcherKeyIndex(StorageWatcherEngine engine, List<StorageWatcherComponent> requestedComponents) {
+		this.engine = engine;
+		this.requestedComponents = Collections.unmodifiableList(new ArrayList<>(requestedComponents));
+	}
+
+	/**
+	 * Register the directories of all components against one engine, in parallel.
+	 * Components sharing a directory are registered once, with the union of their events,
+	 * since registering the same directory twice replaces the events of the previous registration.
+	 * The trees of recursive components are walked and registered in parallel as well.
+	 * Directories that can't be registered are skipped, and listed in the report.
+	 * @param engine The shared engine.
+	 * @param components Components to register.
+	 * @param report Report of the registration, completed once all directories have been registered.
+	 * @return The index for the registered keys.
+	 */
+	static StorageWatcherKeyIndex register(@NotNull StorageWatcherEngine engine, @NotNull List<StorageWatcherComponent> components,
+										   @NotNull StorageWatcherBuildReport report) {
+		StorageWatcherKeyIndex index = new StorageWatcherKeyIndex(engine, components);
+		try {
+			ForkJoinPool.commonPool().invoke(index.new RegisterComponentsTask(index.requestedComponents, report));
+		} finally {
+			report.complete();
+		}
+		return index;
+	}
+
+	/**
+	 * Same as {@link #register(StorageWatcherEngine, List, StorageWatcherBuildReport)}, but returns directly
+	 * while the directories are registered on a background thread.
+	 */
+	static StorageWatcherKeyIndex registerInBackground(@NotNull StorageWatcherEngine engine, @NotNull List<StorageWatcherComponent> components,
+													   @NotNull StorageWatcherBuildReport report) {
+		StorageWatcherKeyIndex index = new StorageWatcherKeyIndex(engine, components);
+		Thread thread = new Thread(() -> {
+			try {
+				ForkJoinPool.commonPool().invoke(index.new RegisterComponentsTask(index.requestedComponents, report));
+			} finally {
+				report.complete();
+			}
+		}, "storage-watcher-registration");
+		thread.setDaemon(true);
+		thread.start();
+		return index;
+	}
+
+	/**
+	 * Register the directory of a component. If the directory is already registered,
+	 * the component is added to the existing key and the key's events are extended.
+	 * @param component Component to register.
+	 * @return False if the directory was already registered for the same configuration, such as by an earlier walk of the same tree.
+	 * @throws IOException If the directory couldn't be registered.
+	 */
+	boolean register(@NotNull StorageWatcherComponent component) throws IOException {
+		boolean[] added = { false };
+		try {
+			registrationsByDirectory.compute(component.properties.directory, (directory, registration) -> {
+				List<StorageWatcherComponent> components = new ArrayList<>();
+				if (registration != null) {
+					for (StorageWatcherComponent existing : registration.components) {
+						if (existing == component || existing.properties.root == component.properties.root) {
+							return registration;
+						}
+					}
+					components.addAll(registration.components);
+				}
+				components.add(component);
+
+				try {
+					Registration updated = new Registration(directory, engine.register(directory, eventsToRegister(components)), components);
+					registrationsByKey.put(updated.key, updated);
+					added[0] = true;
+					return updated;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return added[0];
+	}
+
+	/**
+	 * Register the directory of a recursive component, and every directory below it.
+	 * Each subdirectory gets a component of its own, see {@link StorageWatcherProperties#forSubdirectory(Path)}.
+	 * The tree is walked in parallel, and subdirectories that can't be registered are skipped.
+	 * @param root The component of the root directory.
+	 * @return The components of all newly registered directories, including the root.
+	 * @throws IOException If the root directory couldn't be registered.
+	 */
+	List<StorageWatcherComponent> registerTree(@NotNull StorageWatcherComponent root) throws IOException {
+		if (!register(root)) {
+			return Collections.emptyList();
+		}
+		Queue<StorageWatcherComponent> registered = new ConcurrentLinkedQueue<>();
+		registered.add(root);
+		ForkJoinPool.commonPool().invoke(new RegisterSubdirectoriesTask(root, registered::add, (directory, e) ->
+				Logger.getGlobal().warning("Failed to watch the new directory " + directory + ". " + e)));
+		return new ArrayList<>(registered);
+	}
+
+	/**
+	 * Remove a key, such as when its directory was deleted.
+	 * @param key Key to remove.
+	 */
+	void remove(WatchKey key) {
+		Registration registration = registrationsByKey.remove(key);
+		if (registration != null) {
+			registrationsByDirectory.remove(registration.directory, registration);
+		}
+		key.cancel();
+	}
+
+	/**
+	 * Get the components that a key was registered for.
+	 * @param key Key returned by the watch service.
+	 * @return The components and their routing table, or {@link StorageWatcherRoutes#EMPTY} if the key is unknown.
+	 */
+	@NotNull
+	StorageWatcherRoutes get(WatchKey key) {
+		Registration registration = registrationsByKey.get(key);
+		return registration != null ? registration.components : StorageWatcherRoutes.EMPTY;
+	}
+
+	/**
+	 * Get the components of a registered directory.
+	 * @param directory The directory.
+	 * @return The components and their routing table, or {@link StorageWatcherRoutes#EMPTY} if the directory isn't registered.
+	 */
+	@NotNull
+	StorageWatcherRoutes get(@NotNull Path directory) {
+		Registration registration = registrationsByDirectory.get(directory);
+		return registration != null ? registration.components : StorageWatcherRoutes.EMPTY;
+	}
+
+	/**
+	 * @return The engine that the directories are registered against.
+	 */
+	StorageWatcherEngine engine() {
+		return engine;
+	}
+
+	/**
+	 * @return The components that the index was created for, without the subdirectories of recursive components.
+	 */
+	List<StorageWatcherComponent> requestedComponents() {
+		return requestedComponents;
+	}
+
+	/**
+	 * @return All currently registered components.
+	 */
+	List<StorageWatcherComponent> components() {
+		List<StorageWatcherComponent> components = new ArrayList<>();
+		registrationsByDirectory.values().forEach(registration -> components.addAll(registration.components));
+		return components;
+	}
+
+	/**
+	 * @return All currently registered directories.
+	 */
+	List<Path> directories() {
+		return new ArrayList<>(registrationsByDirectory.keySet());
+	}
+
+	/**
+	 * @return The amount of registered keys (watched directories).
+	 */
+	int size() {
+		return registrationsByKey.size();
+	}
+
+	/**
+	 * Helper method. Get the union of the events of all components, including the events required for recursive watching.
+	 */
+	private static WatchEvent.Kind<?>[] eventsToRegister(List<StorageWatcherComponent> components) {
+		Set<WatchEvent.Kind<?>> events = new LinkedHashSet<>();
+		for (StorageWatcherComponent component : components) {
+			component.properties.eventsToWatch.forEach(events::add);
+			if (component.properties.recursive) {
+				events.add(StandardWatchEventKinds.ENTRY_CREATE);
+			}
+		}
+		return events.toArray(new WatchEvent.Kind<?>[0]);
+	}
+
+	/**
+	 * A registered directory, replaced as a whole whenever components are added to it.
+	 * Its routing table is therefore built once per change, rather than once per event.
+	 */
+	private static class Registration {
+		private final Path directory;
+		private final WatchKey key;
+		private final StorageWatcherRoutes components;
+
+		private Registration(Path directory, WatchKey key, List<StorageWatcherComponent> components) {
+			this.directory = directory;
+			this.key = key;
+			this.components = new StorageWatcherRoutes(components);
+		}
+	}
+
+	/**
+	 * Registers a range of the requested components, splitting the range in halves until it's small enough.
+	 */
+	@SuppressWarnings("serial")
+	private class RegisterComponentsTask extends RecursiveAction {
+		private final List<StorageWatcherComponent> components;
+		private final StorageWatcherBuildReport report;
+
+		private RegisterComponentsTask(List<StorageWatcherComponent> components, StorageWatcherBuildReport report) {
+			this.components = components;
+			this.report = report;
+		}
+
+		@Override
+		protected void compute() {
+			if (components.size() > COMPONENTS_PER_TASK) {
+				int middle = components.size() / 2;
+				invokeAll(new RegisterComponentsTask(components.subList(0, middle), report),
+						new RegisterComponentsTask(components.subList(middle, components.size()), report));
+				return;
+			}
+
+			List<RegisterSubdirectoriesTask> subtasks = new ArrayList<>();
+			for (StorageWatcherComponent component : components) {
+				try {
+					if (register(component)) {
+						report.registered();
+						if (component.properties.recursive) {
+							subtasks.add(new RegisterSubdirectoriesTask(component, registered -> report.registered(), report::failed));
+						}
+					}
+				} catch (IOException | RuntimeException e) {
+					report.failed(component.properties.directory, e);
+				}
+			}
+			invokeAll(subtasks);
+		}
+	}
+
+	/**
+	 * Registers the subdirectories of an already registered directory, forking a task per subdirectory.
+	 */
+	@SuppressWarnings("serial")
+	private class RegisterSubdirectoriesTask extends RecursiveAction {
+		private final StorageWatcherComponent parent;
+		private final Consumer<StorageWatcherComponent> onRegistered;
+		private final BiConsumer<Path, Exception> onFailure;
+
+		private RegisterSubdirectoriesTask(StorageWatcherComponent parent, Consumer<StorageWatcherComponent> onRegistered,
+										   BiConsumer<Path, Exception> onFailure) {
+			this.parent = parent;
+			this.onRegistered = onRegistered;
+			this.onFailure = onFailure;
+		}
+
+		@Override
+		protected void compute() {
+			List<RegisterSubdirectoriesTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(parent.properties.directory)) {
+				for (Path entry : entries) {
+					if (!Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						continue;
+					}
+
+					StorageWatcherComponent component = new StorageWatcherComponent(parent.properties.forSubdirectory(entry));
+					try {
+						if (register(component)) {
+							onRegistered.accept(component);
+							subtasks.add(new RegisterSubdirectoriesTask(component, onRegistered, onFailure));
+						}
+					} catch (IOException | RuntimeException e) {
+						onFailure.accept(entry, e);
+					}
+				}
+			} catch (IOException | UncheckedIOException e) {
+				onFailure.accept(parent.properties.directory, e);
+			}
+			invokeAll(subtasks);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.frejdh.util.watcher;
+
+import javax.management.MXBean;
+
+/**
+ * Live metrics of a watcher, see {@link StorageWatcher#getMetrics()}.
+ * Recording is cheap enough to always be enabled. The metrics can also be registered as an MBean,
+ * see {@link StorageWatcherBuilder#registerMetricsMBean(String)}.
+ * Durations are in nanoseconds.
+ */
+@MXBean
+public interface StorageWatcherMetrics {
+
+	/**
+	 * @return The amount of creation events received from the engine, before filtering.
+	 */
+	long getCreatedEvents();
+
+	/**
+	 * @return The amount of modification events received from the engine, before filtering.
+	 */
+	long getModifiedEvents();
+
+	/**
+	 * @return The amount of deletion events received from the engine, before filtering.
+	 */
+	long getDeletedEvents();
+
+	/**
+	 * @return The amount of events for files closed after writing received from the engine, before filtering.
+	 * Always 0 unless the engine is {@link StorageWatcher.Engine#NATIVE}.
+	 */
+	long getCloseWriteEvents();
+
+	/**
+	 * @return The amount of events that didn't match the files, patterns or events of any listener.
+	 */
+	long getFilteredEvents();
+
+	/**
+	 * @return The amount of times that the engine reported lost events for a directory.
+	 */
+	long getOverflows();
+
+	/**
+	 * @return Time spent running each callback.
+	 */
+	Histogram getCallbackLatency();
+
+	/**
+	 * @return Time spent on each cycle of draining the signalled keys.
+	 */
+	Histogram getDrainCycleDuration();
+
+	/**
+	 * @return The amount of callbacks waiting to run. Always 0 unless the callbacks are asynchronous.
+	 */
+	long getQueueDepth();
+
+	/**
+	 * @return The amount of watched directories.
+	 */
+	int getWatchedKeys();
+
+	/**
+	 * @return The amount of events waiting in the event queue. Always 0 without a queue, see {@link StorageWatcherBuilder#eventQueue(int, StorageWatcher.QueuePolicy)}.
+	 */
+	long getEventQueueDepth();
+
+	/**
+	 * @return The amount of events dropped because the event queue was full.
+	 */
+	long getDroppedEvents();
+
+	/**
+	 * Distribution of recorded values, in power of two buckets. Percentiles are therefore approximate, and rounded up to the end of their bucket.
+	 */
+	interface Histogram {
+		long getCount();
+
+		long getSum();
+
+		long getMax();
+
+		long getMedian();
+
+		long getPercentile90();
+
+		long getPercentile99();
+	}
+
+}
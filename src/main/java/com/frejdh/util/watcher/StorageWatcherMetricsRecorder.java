@@ -0,0 +1,176 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Records the metrics of a watcher with striped counters, so that the watcher and callback threads never contend on them.
+ */
+class StorageWatcherMetricsRecorder implements StorageWatcherMetrics {
+
+	static final String MBEAN_DOMAIN = "com.frejdh.util.watcher";
+
+	private final LongAdder createdEvents = new LongAdder();
+	private final LongAdder modifiedEvents = new LongAdder();
+	private final LongAdder deletedEvents = new LongAdder();
+	private final LongAdder closeWriteEvents = new LongAdder();
+	private final LongAdder filteredEvents = new LongAdder();
+	private final LongAdder overflows = new LongAdder();
+	private final StorageWatcherHistogram callbackLatency;
+	final StorageWatcherHistogram drainCycleDuration = new StorageWatcherHistogram();
+	private final LongSupplier queueDepth;
+	private final IntSupplier watchedKeys;
+	private final LongSupplier eventQueueDepth;
+	private final LongSupplier droppedEvents;
+	@Nullable
+	private ObjectName registeredName;
+
+	/**
+	 * @param callbackLatency Histogram that the dispatcher records the time spent in the callbacks to.
+	 * @param queueDepth Supplier of the amount of pending callbacks.
+	 * @param watchedKeys Supplier of the amount of watched directories.
+	 * @param eventQueueDepth Supplier of the amount of events waiting in the event queues.
+	 * @param droppedEvents Supplier of the amount of events dropped by the event queues.
+	 */
+	StorageWatcherMetricsRecorder(@NotNull StorageWatcherHistogram callbackLatency, @NotNull LongSupplier queueDepth, @NotNull IntSupplier watchedKeys,
+								  @NotNull LongSupplier eventQueueDepth, @NotNull LongSupplier droppedEvents) {
+		this.callbackLatency = callbackLatency;
+		this.queueDepth = queueDepth;
+		this.watchedKeys = watchedKeys;
+		this.eventQueueDepth = eventQueueDepth;
+		this.droppedEvents = droppedEvents;
+	}
+
+	/**
+	 * Count an event received from the engine.
+	 * @param kind The kind of event.
+	 */
+	void eventReceived(WatchEvent.Kind<?> kind) {
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+			createdEvents.increment();
+		} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+			modifiedEvents.increment();
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			deletedEvents.increment();
+		} else if (kind == StorageWatcher.ENTRY_CLOSE_WRITE) {
+			closeWriteEvents.increment();
+		} else if (kind == StandardWatchEventKinds.OVERFLOW) {
+			overflows.increment();
+		}
+	}
+
+	void eventFiltered() {
+		filteredEvents.increment();
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server. Failures are logged, since the watcher works fine without them.
+	 * @param name Name of the watcher, used as the name property of the MBean.
+	 */
+	void registerMBean(@NotNull String name) {
+		try {
+			ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=StorageWatcher,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredName = objectName;
+		} catch (JMException e) {
+			Logger.getGlobal().warning("Failed to register the metrics of the watcher " + name + ". " + e);
+		}
+	}
+
+	/**
+	 * Unregister the metrics, if they were registered by {@link #registerMBean(String)}.
+	 */
+	void unregisterMBean() {
+		if (registeredName == null) {
+			return;
+		}
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(registeredName);
+		} catch (JMException e) {
+			Logger.getGlobal().warning("Failed to unregister the metrics " + registeredName + ". " + e);
+		}
+		registeredName = null;
+	}
+
+	@Override
+	public long getCreatedEvents() {
+		return createdEvents.sum();
+	}
+
+	@Override
+	public long getModifiedEvents() {
+		return modifiedEvents.sum();
+	}
+
+	@Override
+	public long getDeletedEvents() {
+		return deletedEvents.sum();
+	}
+
+	@Override
+	public long getCloseWriteEvents() {
+		return closeWriteEvents.sum();
+	}
+
+	@Override
+	public long getFilteredEvents() {
+		return filteredEvents.sum();
+	}
+
+	@Override
+	public long getOverflows() {
+		return overflows.sum();
+	}
+
+	@Override
+	public Histogram getCallbackLatency() {
+		return callbackLatency;
+	}
+
+	@Override
+	public Histogram getDrainCycleDuration() {
+		return drainCycleDuration;
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return queueDepth.getAsLong();
+	}
+
+	@Override
+	public int getWatchedKeys() {
+		return watchedKeys.getAsInt();
+	}
+
+	@Override
+	public long getEventQueueDepth() {
+		return eventQueueDepth.getAsLong();
+	}
+
+	@Override
+	public long getDroppedEvents() {
+		return droppedEvents.getAsLong();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("created=%d, modified=%d, deleted=%d, filtered=%d, overflows=%d, queueDepth=%d, watchedKeys=%d, eventQueueDepth=%d, dropped=%d, "
+						+ "callbackLatency=[%s], drainCycleDuration=[%s]",
+				getCreatedEvents(), getModifiedEvents(), getDeletedEvents(), getFilteredEvents(), getOverflows(),
+				getQueueDepth(), getWatchedKeys(), getEventQueueDepth(), getDroppedEvents(), callbackLatency, drainCycleDuration);
+	}
+
+}
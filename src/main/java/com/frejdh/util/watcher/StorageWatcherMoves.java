@@ -0,0 +1,217 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs the deletion and creation that a move or rename consists of, by the file key (such as the inode) of the file.
+ * The file key of a deleted file is taken from the snapshot of its directory when the event is read, since the file is gone by then.
+ * Deletions are held back until the end of the drain cycle, and are paired with a creation of the same file key within the cycle.
+ * Several deletions of the same file key (such as of hard links to the same file, or a file key that is reused) are all held,
+ * and a creation is paired with the latest of them.
+ * The events of {@link StorageWatcherInotifyEngine} carry the inotify cookie of the move instead, which pairs the two halves exactly.
+ * Only used by the thread dispatching the events, except for {@link #deleted(Path, Object)} and {@link #moved(Path, boolean, int)}.
+ */
+class StorageWatcherMoves {
+
+	/** How long the file key of a deleted file (or a cookie) is kept, for events that never reach the dispatch (such as dropped or coalesced ones). */
+	private static final long PENDING_KEY_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+	// The file keys (or cookies) of deleted files, from when the events were read until they're dispatched
+	private final Map<Path, PendingKey> deletedFiles = new ConcurrentHashMap<>();
+	// The cookies of files moved to a watched directory, from when the events were read until they're dispatched
+	private final Map<Path, PendingKey> movedFiles = new ConcurrentHashMap<>();
+	// The latest held deletion per file key, chained to the earlier ones of the same file key
+	private final Map<Object, Deletion> heldByFileKey = new HashMap<>();
+	private final Map<Path, Deletion> heldByPath = new LinkedHashMap<>();
+
+	/**
+	 * Remember the file key of a deleted file, when its event is read.
+	 * @param file The deleted file.
+	 * @param fileKey The file key it had, according to the snapshot of its directory.
+	 */
+	void deleted(@NotNull Path file, @NotNull Object fileKey) {
+		deletedFiles.put(file, new PendingKey(fileKey, System.nanoTime()));
+	}
+
+	/**
+	 * Remember the inotify cookie of a half of a move, when its event is read.
+	 * @param file The file moved from or to.
+	 * @param from True for the deletion of the source, false for the creation of the target.
+	 * @param cookie The cookie, which is the same for both halves.
+	 */
+	void moved(@NotNull Path file, boolean from, int cookie) {
+		(from ? deletedFiles : movedFiles).put(file, new PendingKey(new Cookie(cookie), System.nanoTime()));
+	}
+
+	/**
+	 * Hold back a deletion, to be paired with a creation of the same file.
+	 * @param components The components of the affected directory.
+	 * @param filename Name of the deleted file, relative to the directory.
+	 * @return False if the file key of the file is unknown, in which case the deletion can't be paired.
+	 */
+	boolean hold(@NotNull StorageWatcherRoutes components, @NotNull Path filename) {
+		Path file = components.get(0).properties.directory.resolve(filename);
+		PendingKey deleted = deletedFiles.remove(file);
+		if (deleted == null) {
+			return false;
+		}
+
+		Deletion deletion = new Deletion(components, filename, file, deleted.key);
+		deletion.earlier = heldByFileKey.put(deleted.key, deletion);
+		heldByPath.put(file, deletion);
+		return true;
+	}
+
+	/**
+	 * Find the held deletion that a created file was moved from.
+	 * @param file The created file.
+	 * @return The deletion, which is no longer held. Null if the file wasn't moved from a watched directory within the drain cycle.
+	 */
+	@Nullable
+	Deletion pair(@NotNull Path file) {
+		PendingKey moved = movedFiles.isEmpty() ? null : movedFiles.remove(file);
+		if (heldByFileKey.isEmpty()) {
+			return null;
+		}
+
+		Object fileKey;
+		if (moved != null) {
+			fileKey = moved.key;
+		} else {
+			try {
+				fileKey = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+			} catch (IOException e) {
+				return null; // Moved again or deleted since
+			}
+		}
+
+		Deletion deletion = fileKey != null ? heldByFileKey.get(fileKey) : null;
+		if (deletion != null) {
+			heldByPath.remove(deletion.file);
+			unlink(deletion);
+		}
+		return deletion;
+	}
+
+	/**
+	 * Stop holding back the deletion of a file, such as when another event for the same path has to be dispatched after it.
+	 * @param file The file.
+	 * @return The deletion, or null if none was held for the file.
+	 */
+	@Nullable
+	Deletion release(@NotNull Path file) {
+		Deletion deletion = heldByPath.remove(file);
+		if (deletion != null) {
+			unlink(deletion);
+		}
+		return deletion;
+	}
+
+	/**
+	 * Helper method. Remove a deletion from the chain of held deletions of its file key.
+	 * @param deletion The deletion.
+	 */
+	private void unlink(Deletion deletion) {
+		Deletion later = heldByFileKey.get(deletion.fileKey);
+		if (later == deletion) {
+			if (deletion.earlier != null) {
+				heldByFileKey.put(deletion.fileKey, deletion.earlier);
+			} else {
+				heldByFileKey.remove(deletion.fileKey);
+			}
+		} else {
+			while (later.earlier != deletion) {
+				later = later.earlier;
+			}
+			later.earlier = deletion.earlier;
+		}
+		deletion.earlier = null;
+	}
+
+	/**
+	 * Stop holding back all deletions, at the end of the drain cycle. Also forgets the file keys and cookies of files that are long gone.
+	 * @return The deletions, in the order they were held.
+	 */
+	List<Deletion> releaseAll() {
+		if (!deletedFiles.isEmpty() || !movedFiles.isEmpty()) {
+			long now = System.nanoTime();
+			deletedFiles.values().removeIf(deleted -> now - deleted.timestamp > PENDING_KEY_TTL_NANOS);
+			movedFiles.values().removeIf(moved -> now - moved.timestamp > PENDING_KEY_TTL_NANOS);
+		}
+		if (heldByPath.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<Deletion> deletions = new ArrayList<>(heldByPath.values());
+		heldByFileKey.clear();
+		heldByPath.clear();
+		return deletions;
+	}
+
+	/**
+	 * A held deletion.
+	 */
+	static final class Deletion {
+		final StorageWatcherRoutes components;
+		final Path filename;
+		final Path file;
+		private final Object fileKey;
+		private Deletion earlier;
+
+		private Deletion(StorageWatcherRoutes components, Path filename, Path file, Object fileKey) {
+			this.components = components;
+			this.filename = filename;
+			this.file = file;
+			this.fileKey = fileKey;
+		}
+	}
+
+	/**
+	 * The file key or cookie of a file, from when its event was read.
+	 */
+	private static final class PendingKey {
+		private final Object key;
+		private final long timestamp;
+
+		private PendingKey(Object key, long timestamp) {
+			this.key = key;
+			this.timestamp = timestamp;
+		}
+	}
+
+	/**
+	 * An inotify cookie, which is never equal to a file key.
+	 */
+	private static final class Cookie {
+		private final int value;
+
+		private Cookie(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Cookie && ((Cookie) o).value == value;
+		}
+
+		@Override
+		public int hashCode() {
+			return value;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The system calls of {@link StorageWatcherInotifyEngine}. They're made through the foreign function API, so the implementation
+ * is only available on Java 22 or later, through the multi-release jar (see src/main/java22). This version is the one of the
+ * earlier versions of Java, where the engine is never available.
+ */
+final class StorageWatcherNativeSyscalls {
+
+	private StorageWatcherNativeSyscalls() {
+	}
+
+	/**
+	 * @return True if the system calls can be made on this platform.
+	 */
+	static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Create a new inotify instance.
+	 * @return The system calls of the instance, or null if they can't be made on this platform.
+	 */
+	@Nullable
+	static StorageWatcherInotifyEngine.Syscalls open() {
+		return null;
+	}
+}
@@ -0,0 +1,298 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude patterns of a component, each compiled into a single matcher.
+ * Patterns are globs unless prefixed with {@value #REGEX_PREFIX}. Globs without a '/' are matched against the filename,
+ * the others against the path relative to the watched directory, where a leading "**&#47;" matches zero or more directories.
+ * The common forms "name", "*.ext" and "prefix*" are looked up in hash tables, and the rest are combined into one regular expression.
+ */
+final class StorageWatcherPathFilter {
+
+	static final String GLOB_PREFIX = "glob:";
+	static final String REGEX_PREFIX = "regex:";
+	private static final String ANY_DIRECTORIES = "**/";
+	private static final String GLOB_META_CHARS = "*?[]{}\\";
+	private static final String REGEX_META_CHARS = ".^$+()|*?[]{}\\";
+
+	@Nullable
+	private final Matcher includes;
+	@Nullable
+	private final Matcher excludes;
+
+	private StorageWatcherPathFilter(@Nullable Matcher includes, @Nullable Matcher excludes) {
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	/**
+	 * Compile the patterns of a component.
+	 * @param includes Patterns of the files to watch. Empty = all files.
+	 * @param excludes Patterns of the files to ignore, even if they're included.
+	 * @return The filter, or null if there are no patterns.
+	 * @throws IllegalArgumentException If a pattern is invalid.
+	 */
+	@Nullable
+	static StorageWatcherPathFilter compile(@NotNull Collection<String> includes, @NotNull Collection<String> excludes) {
+		if (includes.isEmpty() && excludes.isEmpty()) {
+			return null;
+		}
+		return new StorageWatcherPathFilter(
+				includes.isEmpty() ? null : new Matcher(includes),
+				excludes.isEmpty() ? null : new Matcher(excludes)
+		);
+	}
+
+	/**
+	 * @return True if the relative path of the file is needed, and not only its name.
+	 */
+	boolean isMatchingPaths() {
+		return (includes != null && includes.pathRegex != null) || (excludes != null && excludes.pathRegex != null);
+	}
+
+	/**
+	 * @param relativeDirectory Directory of the file relative to the watched directory, ending with a '/'. Empty for the watched directory itself.
+	 * @param filename Name of the file.
+	 * @return True if the file is included and not excluded.
+	 */
+	boolean accepts(@NotNull String relativeDirectory, @NotNull String filename) {
+		return (includes == null || includes.matches(relativeDirectory, filename))
+				&& (excludes == null || !excludes.matches(relativeDirectory, filename));
+	}
+
+	/**
+	 * Helper class. A set of patterns, split into the forms that can be matched without a regular expression.
+	 */
+	private static final class Matcher {
+		private final Set<String> literals = new HashSet<>();
+		private final AffixTable suffixes;
+		private final AffixTable prefixes;
+		@Nullable
+		private final Pattern nameRegex;
+		@Nullable
+		private final Pattern pathRegex;
+
+		Matcher(Collection<String> patterns) {
+			List<String> suffixes = new ArrayList<>();
+			List<String> prefixes = new ArrayList<>();
+			List<String> nameRegexes = new ArrayList<>();
+			List<String> pathRegexes = new ArrayList<>();
+
+			for (String pattern : patterns) {
+				if (pattern.startsWith(REGEX_PREFIX)) {
+					String regex = pattern.substring(REGEX_PREFIX.length());
+					Pattern.compile(regex); // Fail on the pattern itself, rather than on the combined expression
+					pathRegexes.add(regex);
+					continue;
+				}
+
+				String glob = pattern.startsWith(GLOB_PREFIX) ? pattern.substring(GLOB_PREFIX.length()) : pattern;
+				if (glob.startsWith(ANY_DIRECTORIES) && glob.indexOf('/', ANY_DIRECTORIES.length()) < 0) {
+					glob = glob.substring(ANY_DIRECTORIES.length()); // "**/*.json" is "*.json" at any depth
+				}
+
+				if (glob.indexOf('/') >= 0) {
+					pathRegexes.add(globToRegex(glob));
+				} else if (isLiteral(glob, 0, glob.length())) {
+					literals.add(glob);
+				} else if (glob.startsWith("*") && isLiteral(glob, 1, glob.length())) {
+					suffixes.add(glob.substring(1));
+				} else if (glob.endsWith("*") && isLiteral(glob, 0, glob.length() - 1)) {
+					prefixes.add(glob.substring(0, glob.length() - 1));
+				} else {
+					nameRegexes.add(globToRegex(glob));
+				}
+			}
+
+			this.suffixes = new AffixTable(suffixes, true);
+			this.prefixes = new AffixTable(prefixes, false);
+			this.nameRegex = combine(nameRegexes);
+			this.pathRegex = combine(pathRegexes);
+		}
+
+		boolean matches(String relativeDirectory, String filename) {
+			if (literals.contains(filename) || suffixes.matches(filename) || prefixes.matches(filename)) {
+				return true;
+			} else if (nameRegex != null && nameRegex.matcher(filename).matches()) {
+				return true;
+			}
+			return pathRegex != null && pathRegex.matcher(relativeDirectory.isEmpty() ? filename : relativeDirectory + filename).matches();
+		}
+
+		@Nullable
+		private static Pattern combine(List<String> regexes) {
+			if (regexes.isEmpty()) {
+				return null;
+			}
+			StringBuilder combined = new StringBuilder();
+			for (String regex : regexes) {
+				combined.append(combined.length() == 0 ? "" : "|").append("(?:").append(regex).append(')');
+			}
+			return Pattern.compile(combined.toString());
+		}
+	}
+
+	/**
+	 * Helper class. Open addressing hash table of literal suffixes or prefixes, grouped by their lengths.
+	 * A filename is matched by hashing its region for each distinct length, without allocating any substrings.
+	 */
+	private static final class AffixTable {
+		private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+		private final boolean suffix;
+		private final int[] lengths;
+		private final String[] table;
+		private final int shift;
+
+		AffixTable(Collection<String> affixes, boolean suffix) {
+			this.suffix = suffix;
+			Set<Integer> distinctLengths = new TreeSet<>();
+			affixes.forEach(affix -> distinctLengths.add(affix.length()));
+			this.lengths = distinctLengths.stream().mapToInt(Integer::intValue).toArray();
+
+			int bits = 1;
+			while ((1 << bits) < affixes.size() * 2) {
+				bits++;
+			}
+			this.table = new String[1 << bits];
+			this.shift = Integer.SIZE - bits;
+			for (String affix : new HashSet<>(affixes)) {
+				int slot = slotOf(affix.hashCode());
+				while (table[slot] != null) {
+					slot = (slot + 1) & (table.length - 1);
+				}
+				table[slot] = affix;
+			}
+		}
+
+		boolean matches(String filename) {
+			for (int length : lengths) {
+				if (length > filename.length()) {
+					return false;
+				}
+
+				int offset = suffix ? filename.length() - length : 0;
+				int hash = 0;
+				for (int i = offset; i < offset + length; i++) {
+					hash = 31 * hash + filename.charAt(i); // Same as String.hashCode() of the region
+				}
+
+				String candidate;
+				for (int slot = slotOf(hash); (candidate = table[slot]) != null; slot = (slot + 1) & (table.length - 1)) {
+					if (candidate.length() == length && filename.regionMatches(offset, candidate, 0, length)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private int slotOf(int hash) {
+			return (hash * GOLDEN_RATIO) >>> shift;
+		}
+	}
+
+	/**
+	 * Helper method. Check that a part of a glob doesn't contain any special characters.
+	 */
+	private static boolean isLiteral(String glob, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (GLOB_META_CHARS.indexOf(glob.charAt(i)) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Helper method. Convert a glob to a regular expression, where '*' and '?' never match a '/', but "**" does.
+	 * @param glob The glob.
+	 * @return The regular expression.
+	 * @throws IllegalArgumentException If the glob is invalid.
+	 */
+	static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		boolean inGroup = false;
+		boolean inClass = false;
+
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (inClass) {
+				if (c == ']') {
+					inClass = false;
+				} else if (c == '\\' || c == '[' || c == '&' || c == '^') {
+					regex.append('\\');
+				}
+				regex.append(c);
+				continue;
+			}
+
+			switch (c) {
+				case '*':
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+						boolean wholeDirectories = i + 2 < glob.length() && glob.charAt(i + 2) == '/' && (i == 0 || glob.charAt(i - 1) == '/');
+						regex.append(wholeDirectories ? "(?:.*/)?" : ".*");
+						i += wholeDirectories ? 2 : 1;
+					} else {
+						regex.append("[^/]*");
+					}
+					break;
+				case '?':
+					regex.append("[^/]");
+					break;
+				case '[':
+					inClass = true;
+					regex.append('[');
+					if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+						regex.append("^/");
+						i++;
+					}
+					break;
+				case '{':
+					if (inGroup) {
+						throw new IllegalArgumentException("Nested groups are not supported: " + glob);
+					}
+					inGroup = true;
+					regex.append("(?:");
+					break;
+				case '}':
+					if (!inGroup) {
+						throw new IllegalArgumentException("Unbalanced group: " + glob);
+					}
+					inGroup = false;
+					regex.append(')');
+					break;
+				case ',':
+					regex.append(inGroup ? "|" : ",");
+					break;
+				case '\\':
+					if (++i >= glob.length()) {
+						throw new IllegalArgumentException("Missing character to escape: " + glob);
+					}
+					regex.append(Pattern.quote(String.valueOf(glob.charAt(i))));
+					break;
+				default:
+					if (REGEX_META_CHARS.indexOf(c) >= 0) {
+						regex.append('\\');
+					}
+					regex.append(c);
+			}
+		}
+
+		if (inGroup || inClass) {
+			throw new IllegalArgumentException("Unterminated group or class: " + glob);
+		}
+		return regex.toString();
+	}
+
+}
@@ -0,0 +1,259 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Engine that detects changes by scanning the registered directories on a fixed schedule, and comparing them with their previous snapshot.
+ * Works on every file system, including network mounts (NFS, SMB) and overlay file systems where the native watch service doesn't.
+ * The directories are scanned in parallel.
+ */
+class StorageWatcherPollingEngine implements StorageWatcherEngine {
+
+	private final Map<Path, PollingKey> keys = new ConcurrentHashMap<>();
+	private final BlockingQueue<PollingKey> signalledKeys = new LinkedBlockingQueue<>();
+	private final PollingKey closedMarker = new PollingKey(null, new HashSet<>(), StorageWatcherSnapshot.EMPTY);
+	private final ScheduledExecutorService scheduler;
+	private volatile boolean closed;
+
+	/**
+	 * @param interval Interval between the scans.
+	 * @param intervalUnit Unit of the interval.
+	 */
+	StorageWatcherPollingEngine(long interval, @NotNull TimeUnit intervalUnit) {
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "storage-watcher-polling");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::scan, interval, interval, intervalUnit);
+	}
+
+	@Override
+	public WatchKey register(@NotNull Path directory, @NotNull WatchEvent.Kind<?>[] events) throws IOException {
+		checkOpen();
+		if (!Files.isDirectory(directory)) {
+			throw new NotDirectoryException(directory.toString());
+		}
+
+		Set<WatchEvent.Kind<?>> eventSet = new HashSet<>(Arrays.asList(events));
+		PollingKey existing = keys.get(directory);
+		if (existing != null && existing.isValid()) {
+			existing.events = eventSet;
+			return existing;
+		}
+
+		PollingKey key = new PollingKey(directory, eventSet, StorageWatcherSnapshot.scan(directory));
+		PollingKey raced = keys.putIfAbsent(directory, key);
+		if (raced != null) {
+			raced.events = eventSet;
+			return raced;
+		}
+		return key;
+	}
+
+	@Override
+	public boolean isScheduled() {
+		return true;
+	}
+
+	@Override
+	public StorageWatcher.Engine getType() {
+		return StorageWatcher.Engine.POLLING;
+	}
+
+	@Override
+	public WatchKey poll() {
+		checkOpen();
+		return checkClosed(signalledKeys.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		return checkClosed(signalledKeys.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		checkOpen();
+		return checkClosed(signalledKeys.take());
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		scheduler.shutdownNow();
+		keys.values().forEach(key -> key.valid = false);
+		keys.clear();
+		signalledKeys.clear();
+		signalledKeys.offer(closedMarker); // Wake up any waiting thread
+	}
+
+	/**
+	 * Helper method. Scan all registered directories in parallel.
+	 */
+	private void scan() {
+		try {
+			keys.values().parallelStream().forEach(PollingKey::scan);
+		} catch (RuntimeException e) {
+			Logger.getGlobal().warning("Failed to scan the watched directories. " + e);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new ClosedWatchServiceException();
+		}
+	}
+
+	private PollingKey checkClosed(PollingKey key) {
+		if (key == closedMarker) {
+			signalledKeys.offer(closedMarker);
+			throw new ClosedWatchServiceException();
+		}
+		return key;
+	}
+
+	/**
+	 * Key of one directory. Holds the snapshot from the previous scan, and the events detected since the key was last drained.
+	 */
+	private class PollingKey implements WatchKey {
+		private final Path directory;
+		private volatile Set<WatchEvent.Kind<?>> events;
+		private volatile boolean valid = true;
+		private StorageWatcherSnapshot snapshot; // Only accessed by the scheduled scan
+		private List<WatchEvent<?>> pendingEvents = new ArrayList<>();
+		private boolean signalled;
+
+		private PollingKey(Path directory, Set<WatchEvent.Kind<?>> events, StorageWatcherSnapshot snapshot) {
+			this.directory = directory;
+			this.events = events;
+			this.snapshot = snapshot;
+		}
+
+		private void scan() {
+			if (!valid) {
+				return;
+			}
+
+			StorageWatcherSnapshot current;
+			try {
+				current = StorageWatcherSnapshot.scan(directory);
+			} catch (NoSuchFileException | NotDirectoryException e) {
+				cancel();
+				signal(null); // Lets the watcher notice that the directory is gone
+				return;
+			} catch (IOException e) {
+				Logger.getGlobal().warning("Failed to scan " + directory + ". " + e);
+				return;
+			}
+
+			Set<WatchEvent.Kind<?>> kinds = events;
+			snapshot.diff(current, (kind, name) -> {
+				if (kinds.contains(kind.toWatchEventKind())) {
+					signal(new PollingEvent(kind.toWatchEventKind(), directory.getFileSystem().getPath(name)));
+				}
+			});
+			snapshot = current;
+		}
+
+		private synchronized void signal(WatchEvent<?> event) {
+			if (event != null) {
+				pendingEvents.add(event);
+			}
+			if (!signalled) {
+				signalled = true;
+				signalledKeys.offer(this);
+			}
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid;
+		}
+
+		@Override
+		public synchronized List<WatchEvent<?>> pollEvents() {
+			List<WatchEvent<?>> events = pendingEvents;
+			pendingEvents = new ArrayList<>();
+			return events;
+		}
+
+		@Override
+		public synchronized boolean reset() {
+			if (!valid) {
+				return false;
+			}
+			if (signalled) {
+				if (pendingEvents.isEmpty()) {
+					signalled = false;
+				} else {
+					signalledKeys.offer(this);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void cancel() {
+			valid = false;
+			keys.remove(directory, this);
+		}
+
+		@Override
+		public Watchable watchable() {
+			return directory;
+		}
+	}
+
+	private static class PollingEvent implements WatchEvent<Path> {
+		private final Kind<Path> kind;
+		private final Path context;
+
+		private PollingEvent(Kind<Path> kind, Path context) {
+			this.kind = kind;
+			this.context = context;
+		}
+
+		@Override
+		public Kind<Path> kind() {
+			return kind;
+		}
+
+		@Override
+		public int count() {
+			return 1;
+		}
+
+		@Override
+		public Path context() {
+			return context;
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.util.Collection;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Configuration properties for a watcher component.
@@ -27,15 +28,68 @@ class StorageWatcherProperties {
 	public final ImmutableCollection<WatchEvent.Kind<Path>> eventsToWatch;
 	public final Path directory;
 	public final StorageWatcher.OnChanged onChanged;
+	public final StorageWatcher.OnChangedBatch onChangedBatch;
+	public final boolean recursive;
+	/** The properties of the root directory when watching recursively, otherwise this instance. */
+	public final StorageWatcherProperties root;
+	/** Index over {@link #files}, or null if all files are watched. */
+	@Nullable
+	private final StorageWatcherFilenameIndex filenameIndex;
+	/** Bitmask of {@link #eventsToWatch}, see {@link #maskOf(WatchEvent.Kind)}. */
+	private final int eventMask;
+	/** Include and exclude patterns, or null if there are none. */
+	@Nullable
+	public final StorageWatcherPathFilter filter;
+	/** The directory relative to {@link #root}, with a trailing '/'. Only set if the filter matches paths. */
+	private final String relativeDirectory;
+
+	private StorageWatcherProperties(ImmutableCollection<String> files,
+									 @Nullable ImmutableCollection<WatchEvent.Kind<Path>> eventsToWatch,
+									 Path directory,
+									 @Nullable StorageWatcher.OnChanged onChanged,
+									 @Nullable StorageWatcher.OnChangedBatch onChangedBatch,
+									 boolean recursive,
+									 @Nullable StorageWatcherPathFilter filter,
+									 @Nullable StorageWatcherProperties root) {
+		this.files = files;
+		this.eventsToWatch = eventsToWatch == null || eventsToWatch.isEmpty() ? DEFAULT_WATCH_EVENT : eventsToWatch;
+		this.directory = directory;
+		this.onChanged = onChanged;
+		this.onChangedBatch = onChangedBatch;
+		this.recursive = recursive;
+		this.root = root != null ? root : this;
+		this.filenameIndex = files.isEmpty() ? null : new StorageWatcherFilenameIndex(
+				files.stream().map(file -> directory.getFileSystem().getPath(file)).collect(Collectors.toList()));
+
+		int mask = 0;
+		for (WatchEvent.Kind<Path> kind : this.eventsToWatch) {
+			mask |= maskOf(kind);
+		}
+		this.eventMask = mask;
+
+		this.filter = filter;
+		StringBuilder relativeDirectory = new StringBuilder();
+		if (filter != null && filter.isMatchingPaths() && root != null) {
+			root.directory.relativize(directory).forEach(name -> relativeDirectory.append(name).append('/'));
+		}
+		this.relativeDirectory = relativeDirectory.toString();
+	}
+
+	StorageWatcherProperties(ImmutableCollection<String> files,
+							 @Nullable ImmutableCollection<WatchEvent.Kind<Path>> eventsToWatch,
+							 Path directory,
+							 @Nullable StorageWatcher.OnChanged onChanged,
+							 @Nullable StorageWatcher.OnChangedBatch onChangedBatch,
+							 boolean recursive,
+							 @Nullable StorageWatcherPathFilter filter) {
+		this(files, eventsToWatch, directory, onChanged, onChangedBatch, recursive, filter, null);
+	}
 
 	StorageWatcherProperties(ImmutableCollection<String> files,
 							 @Nullable ImmutableCollection<WatchEvent.Kind<Path>> eventsToWatch,
 							 String directory,
 							 StorageWatcher.OnChanged onChanged) {
-		this.files = files;
-		this.eventsToWatch = eventsToWatch == null || eventsToWatch.isEmpty() ? DEFAULT_WATCH_EVENT : eventsToWatch;
-		this.directory = FileSystems.getDefault().getPath(directory);
-		this.onChanged = onChanged;
+		this(files, eventsToWatch, FileSystems.getDefault().getPath(directory), onChanged, null, false, null);
 	}
 
 	StorageWatcherProperties(Collection<String> files,
@@ -49,6 +103,32 @@ class StorageWatcherProperties {
 		);
 	}
 
+	StorageWatcherProperties(Collection<String> files,
+							 @Nullable Collection<WatchEvent.Kind<Path>> eventsToWatch,
+							 String directory,
+							 @Nullable StorageWatcher.OnChanged onChanged,
+							 @Nullable StorageWatcher.OnChangedBatch onChangedBatch,
+							 boolean recursive,
+							 @Nullable StorageWatcherPathFilter filter) {
+		this(new ImmutableCollection<>(files),
+			 new ImmutableCollection<>(eventsToWatch),
+			 FileSystems.getDefault().getPath(directory),
+			 onChanged,
+			 onChangedBatch,
+			 recursive,
+			 filter
+		);
+	}
+
+	/**
+	 * Create the properties for a subdirectory of a recursively watched directory.
+	 * @param subdirectory The subdirectory.
+	 * @return New properties with the same configuration, but for the subdirectory.
+	 */
+	StorageWatcherProperties forSubdirectory(Path subdirectory) {
+		return new StorageWatcherProperties(files, eventsToWatch, subdirectory, onChanged, onChangedBatch, recursive, filter, root);
+	}
+
 	/**
 	 * Check whether the current configuration is set to checking out all files.
 	 * @return True if all files should be watched inside of the directory.
@@ -57,6 +137,45 @@ class StorageWatcherProperties {
 		return files.size() == 0;
 	}
 
+	/**
+	 * Check whether an event matches the configuration. Without include or exclude patterns it doesn't allocate.
+	 * With patterns, the filename is converted to a string for every event (even for the patterns that are looked up in hash tables),
+	 * and matching a pattern against the relative path allocates as well.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @return True if the event should be passed on to the callbacks.
+	 */
+	boolean accepts(WatchEvent.Kind<?> kind, Path filename) {
+		return (eventMask & maskOf(kind)) != 0
+				&& (filenameIndex == null || filenameIndex.contains(filename))
+				&& (filter == null || filter.accepts(relativeDirectory, filename.toString()));
+	}
+
+	/**
+	 * @return Bitmask of the watched event kinds, see {@link #maskOf(WatchEvent.Kind)}.
+	 */
+	int getEventMask() {
+		return eventMask;
+	}
+
+	/**
+	 * Helper method. Get the bit of an event kind.
+	 * @param kind The kind of event.
+	 * @return The bit, or 0 for unknown kinds.
+	 */
+	static int maskOf(WatchEvent.Kind<?> kind) {
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+			return 1;
+		} else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+			return 1 << 1;
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			return 1 << 2;
+		} else if (kind == StorageWatcher.ENTRY_CLOSE_WRITE) {
+			return 1 << 3;
+		}
+		return 0;
+	}
+
 	static class EventsForFile {
 		public final String filename;
 		public final ImmutableCollection<WatchEvent.Kind<Path>> events;
@@ -0,0 +1,168 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a snapshot of every watched directory up to date with the delivered events, so that events lost to an
+ * {@link StandardWatchEventKinds#OVERFLOW} can be recovered by rescanning the directory and comparing it with the snapshot.
+ */
+class StorageWatcherRecovery {
+
+	private static final int MIN_CHANGES_BEFORE_COMPACTING = 64;
+
+	private final Map<Path, TrackedDirectory> directories = new ConcurrentHashMap<>();
+
+	/**
+	 * Start tracking directories, scanning them in parallel.
+	 * @param directories The directories.
+	 */
+	void track(@NotNull Collection<Path> directories) {
+		directories.parallelStream().forEach(this::track);
+	}
+
+	/**
+	 * Start tracking the directories that aren't already tracked, scanning them in parallel.
+	 * @param directories The directories.
+	 */
+	void trackIfAbsent(@NotNull Collection<Path> directories) {
+		directories.parallelStream()
+				.filter(directory -> !this.directories.containsKey(directory))
+				.forEach(this::track);
+	}
+
+	/**
+	 * Start tracking a directory.
+	 * @param directory The directory.
+	 */
+	void track(@NotNull Path directory) {
+		try {
+			directories.put(directory, new TrackedDirectory(StorageWatcherSnapshot.scan(directory)));
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to take a snapshot of " + directory + ", overflows can't be recovered for it. " + e);
+		}
+	}
+
+	/**
+	 * Stop tracking a directory, such as when it was deleted.
+	 * @param directory The directory.
+	 */
+	void untrack(@NotNull Path directory) {
+		directories.remove(directory);
+	}
+
+	/**
+	 * Update the snapshot of a directory for a delivered event.
+	 * @param directory The affected directory.
+	 * @param filename Name of the affected file, relative to the directory.
+	 */
+	void update(@NotNull Path directory, @NotNull Path filename) {
+		TrackedDirectory tracked = directories.get(directory);
+		if (tracked == null) {
+			return;
+		}
+
+		StorageWatcherSnapshot.Entry entry;
+		try {
+			entry = StorageWatcherSnapshot.Entry.read(directory.resolve(filename));
+		} catch (IOException e) {
+			return; // Corrected by the next rescan of the directory
+		}
+		tracked.changes.put(filename.toString(), entry != null ? entry : StorageWatcherSnapshot.Entry.DELETED);
+
+		if (tracked.changes.size() > Math.max(MIN_CHANGES_BEFORE_COMPACTING, tracked.snapshot.size() / 4)) {
+			tracked.compact();
+		}
+	}
+
+	/**
+	 * Get the file key that a file has according to the snapshot of its directory, such as for a file that was just deleted.
+	 * @param directory The directory.
+	 * @param filename Name of the file, relative to the directory.
+	 * @return The file key, or null if the file or its file key is unknown.
+	 */
+	@Nullable
+	Object fileKeyOf(@NotNull Path directory, @NotNull Path filename) {
+		TrackedDirectory tracked = directories.get(directory);
+		if (tracked == null) {
+			return null;
+		}
+
+		String name = filename.toString();
+		StorageWatcherSnapshot.Entry entry = tracked.changes.get(name);
+		if (entry == null) {
+			int index = tracked.snapshot.indexOf(name);
+			entry = index >= 0 ? tracked.snapshot.get(index) : null;
+		}
+		return entry != null ? entry.fileKey : null;
+	}
+
+	/**
+	 * Mark a file as changed since the snapshot, for events that were delivered but then dropped.
+	 * The next rescan of the directory reports the file again.
+	 * @param directory The affected directory.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @param kind The kind of the dropped event.
+	 */
+	void invalidate(@NotNull Path directory, @NotNull Path filename, @NotNull WatchEvent.Kind<?> kind) {
+		TrackedDirectory tracked = directories.get(directory);
+		if (tracked != null) {
+			// A dropped creation is reported as a creation by leaving it out, anything else as a modification or deletion
+			tracked.changes.put(filename.toString(), kind == StandardWatchEventKinds.ENTRY_CREATE
+					? StorageWatcherSnapshot.Entry.DELETED
+					: StorageWatcherSnapshot.Entry.STALE);
+		}
+	}
+
+	/**
+	 * Rescan a directory and report every difference from its snapshot as an event.
+	 * @param directory The directory.
+	 * @param sink Receiver of the recovered events.
+	 */
+	void recover(@NotNull Path directory, @NotNull StorageWatcherSnapshot.DiffSink sink) {
+		TrackedDirectory tracked = directories.get(directory);
+		if (tracked == null) {
+			return;
+		}
+
+		StorageWatcherSnapshot current;
+		try {
+			current = StorageWatcherSnapshot.scan(directory);
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to rescan " + directory + " after an overflow. " + e);
+			return;
+		}
+
+		tracked.compact();
+		StorageWatcherSnapshot previous = tracked.snapshot;
+		tracked.snapshot = current;
+		previous.diff(current, sink);
+	}
+
+	/**
+	 * A compact snapshot, together with the changes since it was taken.
+	 */
+	private static class TrackedDirectory {
+		private StorageWatcherSnapshot snapshot;
+		private final Map<String, StorageWatcherSnapshot.Entry> changes = new HashMap<>();
+
+		private TrackedDirectory(StorageWatcherSnapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		private void compact() {
+			snapshot = snapshot.apply(changes);
+			changes.clear();
+		}
+	}
+}
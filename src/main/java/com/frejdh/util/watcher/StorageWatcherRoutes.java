@@ -0,0 +1,78 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The components of one registered directory, together with a routing table from filenames to the components that may be interested in them.
+ * Many listeners can share a directory (such as when chaining builders with {@link StorageWatcherBuilder#createNext()}),
+ * and an event is only routed to the components that watch all files or that are limited to the affected file.
+ * Immutable, and replaced as a whole whenever a component is added to the directory.
+ */
+class StorageWatcherRoutes extends AbstractList<StorageWatcherComponent> implements RandomAccess {
+
+	static final StorageWatcherRoutes EMPTY = new StorageWatcherRoutes(Collections.emptyList());
+
+	private final StorageWatcherComponent[] components;
+	/** Components that aren't limited to specific files. */
+	private final StorageWatcherComponent[] unlimited;
+	/** Per filename, the components limited to that file merged with the {@link #unlimited} ones, in registration order. */
+	private final Map<Path, StorageWatcherComponent[]> byFilename = new HashMap<>();
+	/** Union of the event kinds of all components, see {@link StorageWatcherProperties#maskOf(java.nio.file.WatchEvent.Kind)}. */
+	final int eventMask;
+
+	StorageWatcherRoutes(@NotNull List<StorageWatcherComponent> components) {
+		this.components = components.toArray(new StorageWatcherComponent[0]);
+
+		int mask = 0;
+		List<StorageWatcherComponent> unlimited = new ArrayList<>();
+		Map<Path, List<StorageWatcherComponent>> byFilename = new HashMap<>();
+		for (StorageWatcherComponent component : components) {
+			StorageWatcherProperties properties = component.properties;
+			mask |= properties.getEventMask();
+			if (properties.isWatchingAllFiles()) {
+				unlimited.add(component);
+				byFilename.values().forEach(routed -> routed.add(component));
+				continue;
+			}
+
+			for (String file : properties.files) {
+				byFilename.computeIfAbsent(properties.directory.getFileSystem().getPath(file), filename -> new ArrayList<>(unlimited))
+						.add(component);
+			}
+		}
+		this.eventMask = mask;
+		this.unlimited = unlimited.toArray(new StorageWatcherComponent[0]);
+		byFilename.forEach((filename, routed) -> this.byFilename.put(filename, routed.toArray(new StorageWatcherComponent[0])));
+	}
+
+	/**
+	 * Get the components that may be interested in a file. Doesn't allocate.
+	 * Each component still has to check the event against its own configuration, see {@link StorageWatcherProperties#accepts}.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @return The candidate components. Must not be modified.
+	 */
+	StorageWatcherComponent[] route(@NotNull Path filename) {
+		StorageWatcherComponent[] routed = byFilename.isEmpty() ? null : byFilename.get(filename);
+		return routed != null ? routed : unlimited;
+	}
+
+	@Override
+	public StorageWatcherComponent get(int index) {
+		return components[index];
+	}
+
+	@Override
+	public int size() {
+		return components.length;
+	}
+
+}
@@ -0,0 +1,268 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Settings that are shared between all of the components of a watcher.
+ */
+class StorageWatcherSettings {
+
+	public final long interval;
+	public final TimeUnit intervalUnit;
+	public final boolean eventDriven;
+	public final Executor callbackExecutor;
+	public final boolean asyncCallbacks;
+	public final boolean virtualThreadCallbacks;
+	public final long coalesceWindow;
+	public final TimeUnit coalesceWindowUnit;
+	public final int batchMaxSize;
+	public final long batchMaxLatency;
+	public final TimeUnit batchMaxLatencyUnit;
+	public final boolean overflowRecovery;
+	public final StorageWatcher.Engine engine;
+	/** Name of the metrics MBean, or null if the metrics shouldn't be registered. */
+	public final String metricsMBeanName;
+	public final boolean backgroundRegistration;
+	public final int shards;
+	/** Capacity of the queue between the event loop and the dispatch thread, or 0 without a queue. */
+	public final int eventQueueCapacity;
+	public final StorageWatcher.QueuePolicy eventQueuePolicy;
+	public final boolean ignoreUnchangedContent;
+	public final long contentMemoryMapThreshold;
+	/** Directory of the snapshot journals, or null if the snapshots shouldn't be persisted. */
+	public final Path journalDirectory;
+	public final boolean pairMoves;
+	/** Quiet period before a file is reported as stable, or 0 if stable files shouldn't be reported. */
+	public final long stableFileQuietPeriod;
+	public final TimeUnit stableFileQuietPeriodUnit;
+
+	StorageWatcherSettings(@Nullable Long interval,
+						   @Nullable TimeUnit intervalUnit,
+						   @Nullable Boolean eventDriven,
+						   @Nullable Executor callbackExecutor,
+						   @Nullable Boolean asyncCallbacks,
+						   @Nullable Boolean virtualThreadCallbacks,
+						   @Nullable Long coalesceWindow,
+						   @Nullable TimeUnit coalesceWindowUnit,
+						   @Nullable Integer batchMaxSize,
+						   @Nullable Long batchMaxLatency,
+						   @Nullable TimeUnit batchMaxLatencyUnit,
+						   @Nullable Boolean overflowRecovery,
+						   @Nullable StorageWatcher.Engine engine,
+						   @Nullable String metricsMBeanName,
+						   @Nullable Boolean backgroundRegistration,
+						   @Nullable Integer shards,
+						   @Nullable Integer eventQueueCapacity,
+						   @Nullable StorageWatcher.QueuePolicy eventQueuePolicy,
+						   @Nullable Boolean ignoreUnchangedContent,
+						   @Nullable Long contentMemoryMapThreshold,
+						   @Nullable Path journalDirectory,
+						   @Nullable Boolean pairMoves,
+						   @Nullable Long stableFileQuietPeriod,
+						   @Nullable TimeUnit stableFileQuietPeriodUnit) {
+		this.interval = (interval != null) ? interval : StorageWatcher.DEFAULT_INTERVAL;
+		this.intervalUnit = (intervalUnit != null) ? intervalUnit : StorageWatcher.DEFAULT_INTERVAL_UNIT;
+		this.eventDriven = eventDriven != null && eventDriven;
+		this.callbackExecutor = callbackExecutor;
+		this.asyncCallbacks = callbackExecutor != null || (asyncCallbacks != null && asyncCallbacks);
+		this.virtualThreadCallbacks = virtualThreadCallbacks != null && virtualThreadCallbacks;
+		this.coalesceWindow = (coalesceWindow != null && coalesceWindow > 0) ? coalesceWindow : 0;
+		this.coalesceWindowUnit = (coalesceWindowUnit != null) ? coalesceWindowUnit : TimeUnit.MILLISECONDS;
+		this.batchMaxSize = (batchMaxSize != null && batchMaxSize > 0) ? batchMaxSize : 0;
+		this.batchMaxLatency = (batchMaxLatency != null && batchMaxLatency > 0) ? batchMaxLatency : 0;
+		this.batchMaxLatencyUnit = (batchMaxLatencyUnit != null) ? batchMaxLatencyUnit : TimeUnit.MILLISECONDS;
+		this.eventQueueCapacity = (eventQueueCapacity != null && eventQueueCapacity > 0) ? eventQueueCapacity : 0;
+		this.eventQueuePolicy = (eventQueuePolicy != null) ? eventQueuePolicy : StorageWatcher.QueuePolicy.BLOCK;
+		this.pairMoves = pairMoves != null && pairMoves;
+		// Rescanning after dropped events and pairing moves need the same snapshots as recovering from overflows
+		this.overflowRecovery = (overflowRecovery != null && overflowRecovery)
+				|| (this.eventQueueCapacity > 0 && this.eventQueuePolicy == StorageWatcher.QueuePolicy.RESCAN)
+				|| this.pairMoves;
+		this.engine = (engine != null) ? engine : StorageWatcher.Engine.WATCH_SERVICE;
+		this.metricsMBeanName = metricsMBeanName;
+		this.backgroundRegistration = backgroundRegistration != null && backgroundRegistration;
+		this.shards = (shards != null && shards > 0) ? shards : 1;
+		this.ignoreUnchangedContent = ignoreUnchangedContent != null && ignoreUnchangedContent;
+		this.contentMemoryMapThreshold = (contentMemoryMapThreshold != null && contentMemoryMapThreshold >= 0)
+				? contentMemoryMapThreshold : StorageWatcherFingerprints.DEFAULT_MEMORY_MAP_THRESHOLD;
+		this.journalDirectory = journalDirectory;
+		this.stableFileQuietPeriod = (stableFileQuietPeriod != null && stableFileQuietPeriod > 0) ? stableFileQuietPeriod : 0;
+		this.stableFileQuietPeriodUnit = (stableFileQuietPeriodUnit != null) ? stableFileQuietPeriodUnit : TimeUnit.MILLISECONDS;
+	}
+
+	/**
+	 * Settings with the default values.
+	 */
+	StorageWatcherSettings() {
+		this(null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+	}
+
+	/**
+	 * Resolve the configured engine to the one that is used for the directories.
+	 * {@link StorageWatcher.Engine#AUTO} becomes {@link StorageWatcher.Engine#POLLING} if the platform doesn't support all of the directories natively,
+	 * and {@link StorageWatcher.Engine#NATIVE} becomes {@link StorageWatcher.Engine#WATCH_SERVICE} if inotify can't be read directly.
+	 * @param directories The directories that will be registered.
+	 * @param platform The platform, normally {@link StorageWatcherDefaultEngine#PLATFORM}.
+	 * @return The engine. Never {@link StorageWatcher.Engine#AUTO}.
+	 * @throws IOException If the platform couldn't be checked.
+	 */
+	StorageWatcher.Engine resolveEngine(Collection<Path> directories, StorageWatcherDefaultEngine.Platform platform) throws IOException {
+		switch (engine) {
+			case AUTO:
+				return StorageWatcherDefaultEngine.isNativelySupported(directories, platform)
+						? StorageWatcher.Engine.WATCH_SERVICE
+						: StorageWatcher.Engine.POLLING;
+			case NATIVE:
+				if (!StorageWatcherInotifyEngine.isAvailable()) {
+					Logger.getGlobal().fine("Reading inotify directly requires Linux and Java 22 or later, using the watch service instead");
+					return StorageWatcher.Engine.WATCH_SERVICE;
+				}
+				return StorageWatcher.Engine.NATIVE;
+			default:
+				return engine;
+		}
+	}
+
+	/**
+	 * Create an engine that the directories are registered against.
+	 * @param resolvedEngine The resolved engine, see {@link #resolveEngine(Collection, StorageWatcherDefaultEngine.Platform)}.
+	 * @return A new engine.
+	 * @throws IOException If the engine couldn't be created.
+	 */
+	private StorageWatcherEngine newEngine(StorageWatcher.Engine resolvedEngine) throws IOException {
+		switch (resolvedEngine) {
+			case POLLING:
+				return new StorageWatcherPollingEngine(interval, intervalUnit);
+			case NATIVE:
+				StorageWatcherEngine nativeEngine = StorageWatcherInotifyEngine.open();
+				return nativeEngine != null ? nativeEngine : new StorageWatcherDefaultEngine();
+			default:
+				return new StorageWatcherDefaultEngine();
+		}
+	}
+
+	/**
+	 * Create one engine per shard. The engine is resolved once for all of the directories,
+	 * so that every shard uses the same kind of engine.
+	 * @param directories The directories that will be registered, in any of the shards.
+	 * @param count The amount of engines.
+	 * @return The new engines.
+	 * @throws IOException If an engine couldn't be created. The engines created so far are closed.
+	 */
+	List<StorageWatcherEngine> newEngines(Collection<Path> directories, int count) throws IOException {
+		List<StorageWatcherEngine> engines = new ArrayList<>(count);
+		try {
+			StorageWatcher.Engine resolvedEngine = resolveEngine(directories, StorageWatcherDefaultEngine.PLATFORM);
+			while (engines.size() < count) {
+				engines.add(newEngine(resolvedEngine));
+			}
+		} catch (IOException e) {
+			for (StorageWatcherEngine engine : engines) {
+				try {
+					engine.close();
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+			}
+			throw e;
+		}
+		return engines;
+	}
+
+	/**
+	 * Create the coalescing stage for the events, if enabled.
+	 * @return A new coalescer, or null if events shouldn't be coalesced.
+	 */
+	@Nullable
+	StorageWatcherCoalescer newCoalescer() {
+		return coalesceWindow > 0 ? new StorageWatcherCoalescer(coalesceWindow, coalesceWindowUnit) : null;
+	}
+
+	/**
+	 * Create the queue between the event loop and the dispatch thread, if enabled.
+	 * @return A new queue, or null if the events should be dispatched by the event loop itself.
+	 */
+	@Nullable
+	StorageWatcherEventQueue newEventQueue() {
+		return eventQueueCapacity > 0 ? new StorageWatcherEventQueue(eventQueueCapacity, eventQueuePolicy) : null;
+	}
+
+	/**
+	 * Create the snapshots used for recovering from overflows, if enabled.
+	 * @return A new recovery instance, or null if overflows shouldn't be recovered.
+	 */
+	@Nullable
+	StorageWatcherRecovery newRecovery() {
+		return overflowRecovery ? new StorageWatcherRecovery() : null;
+	}
+
+	/**
+	 * Create the fingerprints used for ignoring modifications that leave the contents unchanged, if enabled.
+	 * @return New fingerprints, or null if every modification should be reported.
+	 */
+	@Nullable
+	StorageWatcherFingerprints newFingerprints() {
+		return ignoreUnchangedContent ? new StorageWatcherFingerprints(contentMemoryMapThreshold) : null;
+	}
+
+	/**
+	 * Create the journals that persist the snapshots of the directories, if enabled.
+	 * @return New journals, or null if the snapshots shouldn't be persisted.
+	 */
+	@Nullable
+	StorageWatcherJournal newJournal() {
+		return journalDirectory != null ? new StorageWatcherJournal(journalDirectory) : null;
+	}
+
+	/**
+	 * Create the pairing of deletions and creations into moves, if enabled.
+	 * @return A new pairing stage, or null if moves should be reported as a deletion and a creation.
+	 */
+	@Nullable
+	StorageWatcherMoves newMoves() {
+		return pairMoves ? new StorageWatcherMoves() : null;
+	}
+
+	/**
+	 * Create the detection of files that have stopped changing, if enabled.
+	 * @return A new stability stage, or null if stable files shouldn't be reported.
+	 */
+	@Nullable
+	StorageWatcherStability newStability() {
+		return stableFileQuietPeriod > 0 ? new StorageWatcherStability(stableFileQuietPeriod, stableFileQuietPeriodUnit) : null;
+	}
+
+	/**
+	 * Create the collector of events for batched callbacks.
+	 * @param dispatcher Dispatcher for the batches.
+	 * @return A new batcher.
+	 */
+	StorageWatcherBatcher newBatcher(StorageWatcherDispatcher dispatcher) {
+		return new StorageWatcherBatcher(batchMaxSize, batchMaxLatency, batchMaxLatencyUnit, dispatcher);
+	}
+
+	/**
+	 * Create the dispatcher for the callbacks. Executors that weren't supplied by the user are owned by the dispatcher.
+	 * @param callbackLatency Histogram for the time spent in the callbacks.
+	 * @return A new dispatcher.
+	 */
+	StorageWatcherDispatcher newDispatcher(StorageWatcherHistogram callbackLatency) {
+		if (callbackExecutor != null) {
+			return new StorageWatcherDispatcher(callbackExecutor, false, callbackLatency);
+		} else if (asyncCallbacks) {
+			return new StorageWatcherDispatcher(virtualThreadCallbacks
+					? StorageWatcherDispatcher.newVirtualThreadExecutor()
+					: StorageWatcherDispatcher.newDefaultExecutor(), true, callbackLatency);
+		}
+		return new StorageWatcherDispatcher(null, false, callbackLatency);
+	}
+}
@@ -0,0 +1,700 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One event loop of a watcher, with its own engine, keys, thread and dispatch.
+ * With an event queue, the events are dispatched by a separate thread of the shard, see {@link StorageWatcherBuilder#eventQueue(int, StorageWatcher.QueuePolicy)}.
+ * A watcher consists of one shard by default, see {@link StorageWatcherBuilder#shards(int)}.
+ * All events of a directory are handled by the same shard, which keeps them in order.
+ */
+class StorageWatcherShard {
+
+	/**
+	 * How often to check whether the event queue has room for the rescans of directories with dropped events,
+	 * and whether the registration in the background has completed for opening the journals.
+	 */
+	private static final long RESCAN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final StorageWatcherEngine engine;
+	private final StorageWatcherKeyIndex keyIndex;
+	private final StorageWatcherBuildReport buildReport;
+	private final boolean eventDriven;
+	private final StorageWatcherDispatcher dispatcher;
+	private final StorageWatcherCoalescer coalescer;
+	private final StorageWatcherBatcher batcher;
+	private final StorageWatcherRecovery recovery;
+	private final StorageWatcherFingerprints fingerprints;
+	private final StorageWatcherJournal journal;
+	private final StorageWatcherMoves moves;
+	private final StorageWatcherStability stability;
+	// Only used by the event loop. Whether the journals of the registered directories have been opened
+	private boolean journalsOpened;
+	private final StorageWatcherMetricsRecorder metrics;
+	private final StorageWatcherEventQueue eventQueue;
+	private final Thread dispatchThread;
+	private final boolean rescanDroppedEvents;
+	// Directories with events dropped by the event queue, rescanned once the queue has room again
+	private final Set<StorageWatcherRoutes> pendingRescans = new LinkedHashSet<>();
+	private final Runnable onTerminated;
+	private final long interval;
+	private final TimeUnit intervalUnit;
+	private volatile boolean shouldRun;
+
+	/**
+	 * @param keyIndex Index for routing the keys of the engine of the shard to its components.
+	 * @param settings Settings shared between all of the components.
+	 * @param buildReport Report of the registration, which may still be running in the background.
+	 * @param metrics Metrics shared between all of the shards.
+	 * @param callbackLatency Histogram for the time spent in the callbacks, shared between all of the shards.
+	 * @param onTerminated Run on the thread of the shard once it stops.
+	 */
+	StorageWatcherShard(StorageWatcherKeyIndex keyIndex, StorageWatcherSettings settings, StorageWatcherBuildReport buildReport,
+						StorageWatcherMetricsRecorder metrics, StorageWatcherHistogram callbackLatency, Runnable onTerminated) {
+		this.engine = keyIndex.engine();
+		this.keyIndex = keyIndex;
+		this.buildReport = buildReport;
+		this.eventDriven = settings.eventDriven || engine.isScheduled();
+		this.dispatcher = settings.newDispatcher(callbackLatency);
+		this.coalescer = settings.newCoalescer();
+		this.batcher = settings.newBatcher(dispatcher);
+		this.recovery = settings.newRecovery();
+		this.fingerprints = settings.newFingerprints();
+		this.journal = settings.newJournal();
+		this.moves = settings.newMoves();
+		this.stability = settings.newStability();
+		this.metrics = metrics;
+		this.eventQueue = settings.newEventQueue();
+		this.rescanDroppedEvents = eventQueue != null && settings.eventQueuePolicy == StorageWatcher.QueuePolicy.RESCAN;
+		if (eventQueue != null) {
+			this.dispatchThread = new Thread(this::runDispatch, "storage-watcher-dispatch");
+			this.dispatchThread.setDaemon(true);
+		} else {
+			this.dispatchThread = null;
+		}
+		this.onTerminated = onTerminated;
+		this.interval = settings.interval;
+		this.intervalUnit = settings.intervalUnit;
+
+		if (recovery != null && !buildReport.isComplete()) {
+			// Directories registered in the background after the watcher started
+			buildReport.onCompletion(() -> recovery.trackIfAbsent(keyIndex.directories()));
+		}
+		if (fingerprints != null && !buildReport.isComplete()) {
+			buildReport.onCompletion(() -> fingerprints.track(keyIndex.components()));
+		}
+	}
+
+	private final Thread executionThread = new Thread() {
+		/**
+		 * <strong>Do not use this method to start the thread</strong>. Please use {@link StorageWatcher#start()} instead! <br>
+		 * Original documentation: {@link Thread#run}
+		 */
+		@SuppressWarnings("BusyWait")
+		public void run() {
+			shouldRun = true;
+			try {
+				if (components().isEmpty()) {
+					return;
+				}
+				if (recovery != null) {
+					recovery.track(keyIndex.directories());
+				}
+				if (fingerprints != null) {
+					fingerprints.track(components());
+				}
+				if (journal != null && buildReport.isComplete()) {
+					openJournals();
+				}
+
+				while (shouldRun) {
+					WatchKey wk = nextKey();
+					long drainStart = System.nanoTime();
+
+					// Drain every key that is ready, regardless of how many directories are watched
+					if (wk != null) {
+						while (wk != null) {
+							processKey(wk);
+							wk = engine.poll();
+						}
+						metrics.drainCycleDuration.record(System.nanoTime() - drainStart);
+					}
+
+					if (journal != null && !journalsOpened && buildReport.isComplete()) {
+						openJournals();
+					}
+
+					if (coalescer != null) {
+						coalescer.flush(System.nanoTime(), StorageWatcherShard.this::deliver);
+					}
+					if (!pendingRescans.isEmpty() && eventQueue.size() <= eventQueue.capacity() / 2) {
+						rescanPendingDirectories();
+					}
+					if (eventQueue == null) {
+						releaseHeldDeletions();
+						checkStableFiles();
+						batcher.flush(System.nanoTime());
+					}
+
+					if (!eventDriven) {
+						Thread.sleep(intervalUnit.toMillis(interval));
+					}
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// Stopped while waiting for events
+			} catch (Exception e) {
+				StringWriter errors = new StringWriter();
+				e.printStackTrace(new PrintWriter(errors));
+				String stacktrace = errors.toString();
+				Logger.getGlobal().severe(e.toString() + ". " + stacktrace);
+			} finally {
+				closeEngine();
+				if (eventQueue != null) {
+					eventQueue.close(); // The dispatch thread takes over the shutdown once the queue is empty
+				} else {
+					shutdown();
+				}
+			}
+		}
+	};
+
+	/**
+	 * Helper method. Body of the dispatch thread: take the events from the event queue and dispatch them,
+	 * until the queue has been closed and emptied.
+	 */
+	private void runDispatch() {
+		try {
+			while (true) {
+				StorageWatcherEventQueue.Event event = eventQueue.poll();
+				if (event != null) {
+					WatchEvent.Kind<?> kind = event.take();
+					if (kind != null) {
+						dispatchEvents(event.components, kind, event.filename);
+					}
+					continue;
+				}
+
+				// Drained for now, which ends the current batch
+				releaseHeldDeletions();
+				checkStableFiles();
+				batcher.flush(System.nanoTime());
+				if (eventQueue.isClosed() && eventQueue.isEmpty()) {
+					break;
+				}
+				long now = System.nanoTime();
+				eventQueue.await(earliest(batcher.nanosUntilNextFlush(now), stability != null ? stability.nanosUntilNextCheck(now) : -1));
+			}
+		} catch (RuntimeException e) {
+			Logger.getGlobal().severe("Dispatch thread failed. " + e);
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Helper method. Release the resources of the shard, once all events have been dispatched.
+	 */
+	private void shutdown() {
+		dispatcher.shutdown();
+		if (journal != null) {
+			journal.close();
+		}
+		onTerminated.run();
+	}
+
+	/**
+	 * Helper method. Open the journals of the registered directories that don't have one yet, in parallel,
+	 * and handle the changes made since the previous run as events.
+	 */
+	private void openJournals() {
+		journalsOpened = true;
+		Map<Path, List<FileEvent>> changes = new ConcurrentHashMap<>();
+		keyIndex.directories().parallelStream()
+				.filter(directory -> !journal.isOpen(directory))
+				.forEach(directory -> changes.put(directory, openJournal(directory)));
+
+		changes.forEach((directory, events) -> {
+			StorageWatcherRoutes components = keyIndex.get(directory);
+			for (FileEvent event : events) {
+				handleEvent(components, event.kind.toWatchEventKind(), event.path.getFileName());
+			}
+		});
+	}
+
+	/**
+	 * Helper method. Open the journal of a directory.
+	 * @param directory The directory.
+	 * @return The changes made since the previous run, or none if the journal couldn't be opened.
+	 */
+	private List<FileEvent> openJournal(Path directory) {
+		try {
+			return journal.open(directory);
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to open the journal of " + directory + ", changes made while not watching are missed. " + e);
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Helper method. Handle all pending events of a key, and reset it once they have been drained.
+	 * A key that is no longer valid is retired together with its components, as its directory is gone.
+	 * @param key The signalled key.
+	 */
+	private void processKey(WatchKey key) {
+		StorageWatcherRoutes keyComponents = keyIndex.get(key);
+		boolean overflowed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			WatchEvent.Kind<?> kind = event.kind();
+			metrics.eventReceived(kind);
+			if (kind == StandardWatchEventKinds.OVERFLOW) {
+				overflowed = true; // Rescanned once, after the events that did arrive
+				continue;
+			}
+
+			@SuppressWarnings("unchecked")
+			WatchEvent<Path> ev = (WatchEvent<Path>) event;
+			Path filename = ev.context();
+			if (recovery != null && !keyComponents.isEmpty()) {
+				Path directory = keyComponents.get(0).properties.directory;
+				int cookie = moves != null ? StorageWatcherInotifyEngine.cookieOf(ev) : 0;
+				if (cookie != 0) {
+					moves.moved(directory.resolve(filename), kind == StandardWatchEventKinds.ENTRY_DELETE, cookie);
+				} else if (moves != null && kind == StandardWatchEventKinds.ENTRY_DELETE) {
+					Object fileKey = recovery.fileKeyOf(directory, filename);
+					if (fileKey != null) {
+						moves.deleted(directory.resolve(filename), fileKey);
+					}
+				}
+				recovery.update(directory, filename);
+			}
+			processEvent(keyComponents, kind, filename);
+		}
+
+		if (overflowed && recovery != null) {
+			recoverDirectory(keyComponents);
+		}
+
+		if (!key.reset()) {
+			removeKey(key, keyComponents);
+		}
+	}
+
+	/**
+	 * Helper method. Handle an event for a directory, registering new subdirectories of recursively watched directories.
+	 * @param components The components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 */
+	private void processEvent(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename) {
+		if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+			for (StorageWatcherComponent component : components) {
+				if (component.properties.recursive) {
+					registerNewDirectory(component, filename);
+				}
+			}
+		}
+		handleEvent(components, kind, filename);
+	}
+
+	/**
+	 * Helper method. Rescan a directory after an overflow, and handle the differences from its snapshot as events.
+	 * @param components The components of the affected directory.
+	 */
+	private void recoverDirectory(StorageWatcherRoutes components) {
+		if (components.isEmpty()) {
+			return;
+		}
+
+		Path directory = components.get(0).properties.directory;
+		recovery.recover(directory, (kind, name) ->
+				processEvent(components, kind.toWatchEventKind(), directory.getFileSystem().getPath(name)));
+	}
+
+	/**
+	 * Helper method. Stop watching the directory of a key.
+	 * @param key The key.
+	 * @param components The components of the directory.
+	 */
+	private void removeKey(WatchKey key, StorageWatcherRoutes components) {
+		keyIndex.remove(key);
+		if (recovery != null && !components.isEmpty()) {
+			recovery.untrack(components.get(0).properties.directory);
+		}
+		if (journal != null && !components.isEmpty()) {
+			journal.remove(components.get(0).properties.directory);
+		}
+	}
+
+	/**
+	 * Helper method. Pass an event on to the components of its directory, through the coalescing stage if enabled.
+	 * @param components The components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 */
+	private void handleEvent(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename) {
+		if (components.isEmpty()) {
+			return;
+		}
+
+		if (coalescer != null) {
+			coalescer.offer(components, components.get(0).properties.directory, kind, filename, System.nanoTime());
+		} else {
+			deliver(components, kind, filename);
+		}
+	}
+
+	/**
+	 * Helper method. Hand an event over to the dispatch, through the event queue if enabled.
+	 * @param components The components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 */
+	private void deliver(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename) {
+		if (eventQueue == null) {
+			dispatchEvents(components, kind, filename);
+		} else if (!eventQueue.put(components, kind, filename) && rescanDroppedEvents) {
+			// The snapshot already has the new state of the file, so it's marked as stale for the rescan to report it
+			recovery.invalidate(components.get(0).properties.directory, filename, kind);
+			pendingRescans.add(components);
+		}
+	}
+
+	/**
+	 * Helper method. Rescan the directories that had events dropped by the event queue.
+	 * Directories whose rescan is dropped as well are rescanned again later.
+	 */
+	private void rescanPendingDirectories() {
+		List<StorageWatcherRoutes> directories = new ArrayList<>(pendingRescans);
+		pendingRescans.clear();
+		directories.forEach(this::recoverDirectory);
+	}
+
+	/**
+	 * Helper method. Dispatch an event to the components that the file is routed to, pairing deletions and creations into moves if enabled.
+	 * @param components The components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 */
+	private void dispatchEvents(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename) {
+		if (moves != null) {
+			Path file = components.get(0).properties.directory.resolve(filename);
+			StorageWatcherMoves.Deletion earlier = moves.release(file);
+			if (earlier != null) {
+				dispatchEvents(earlier.components, StandardWatchEventKinds.ENTRY_DELETE, earlier.filename, null, null); // Keeps the order of the path
+			}
+
+			if (kind == StandardWatchEventKinds.ENTRY_DELETE && moves.hold(components, filename)) {
+				return;
+			} else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+				StorageWatcherMoves.Deletion deletion = moves.pair(file);
+				if (deletion != null) {
+					dispatchMove(deletion, components, filename);
+					return;
+				}
+			}
+		}
+		dispatchEvents(components, kind, filename, null, null);
+	}
+
+	/**
+	 * Helper method. Dispatch a move as a deletion to the components of its source, and a creation to the components of its target.
+	 * Batch callbacks get one {@link FileEvent.Kind#MOVED} event, if they accept either of them.
+	 * @param deletion The deletion from the source.
+	 * @param components The components of the target directory.
+	 * @param filename Name of the created file, relative to the target directory.
+	 */
+	private void dispatchMove(StorageWatcherMoves.Deletion deletion, StorageWatcherRoutes components, Path filename) {
+		Path directory = components.get(0).properties.directory;
+		FileEvent move = new FileEvent(directory, directory.resolve(filename), FileEvent.Kind.MOVED, System.currentTimeMillis(), deletion.file);
+		Set<StorageWatcherProperties> batched = new HashSet<>(2);
+		dispatchEvents(deletion.components, StandardWatchEventKinds.ENTRY_DELETE, deletion.filename, move, batched);
+		dispatchEvents(components, StandardWatchEventKinds.ENTRY_CREATE, filename, move, batched);
+	}
+
+	/**
+	 * Helper method. Dispatch the deletions that weren't paired with a creation during the drain cycle.
+	 */
+	private void releaseHeldDeletions() {
+		if (moves != null) {
+			for (StorageWatcherMoves.Deletion deletion : moves.releaseAll()) {
+				dispatchEvents(deletion.components, StandardWatchEventKinds.ENTRY_DELETE, deletion.filename, null, null);
+			}
+		}
+	}
+
+	/**
+	 * Helper method. Report the files that have stopped changing to the batch callbacks that accept their creation or modification.
+	 */
+	private void checkStableFiles() {
+		if (stability != null) {
+			stability.check(System.nanoTime(), this::dispatchStable);
+		}
+	}
+
+	/**
+	 * Helper method. Dispatch a {@link FileEvent.Kind#STABLE} event, once per batch configuration.
+	 * @param components The components of the affected directory.
+	 * @param filename Name of the stable file, relative to the directory.
+	 */
+	private void dispatchStable(StorageWatcherRoutes components, Path filename) {
+		Set<StorageWatcherProperties> batched = new HashSet<>(2);
+		for (StorageWatcherComponent component : components.route(filename)) {
+			StorageWatcherProperties properties = component.properties;
+			if (properties.onChangedBatch != null
+					&& (properties.accepts(StandardWatchEventKinds.ENTRY_CREATE, filename) || properties.accepts(StandardWatchEventKinds.ENTRY_MODIFY, filename))
+					&& batched.add(properties.root)) {
+				FileEvent event = new FileEvent(properties.directory, properties.directory.resolve(filename), FileEvent.Kind.STABLE, System.currentTimeMillis());
+				batcher.add(properties.root, event, System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Helper method. Same as {@link #dispatchEvent(StorageWatcherComponent, WatchEvent.Kind, Path, FileEvent, Set)} for the components that the file is routed to.
+	 */
+	private void dispatchEvents(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename,
+								@Nullable FileEvent move, @Nullable Set<StorageWatcherProperties> batched) {
+		boolean dispatched = false;
+		boolean changed = fingerprints == null || hasNewContent(components, kind, filename);
+		if (changed && (components.eventMask & StorageWatcherProperties.maskOf(kind)) != 0) {
+			for (StorageWatcherComponent component : components.route(filename)) {
+				dispatched |= dispatchEvent(component, kind, filename, move, batched);
+			}
+		}
+		if (!dispatched) {
+			metrics.eventFiltered();
+		}
+		if (stability != null) {
+			trackStability(components, kind, filename, dispatched);
+		}
+		if (journal != null) {
+			journal.update(components.get(0).properties.directory, filename);
+		}
+	}
+
+	/**
+	 * Helper method. Put the files that are being written in flight for the stability checks, and stop tracking the deleted ones.
+	 * @param components The components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @param dispatched Whether the event was dispatched to any of the components.
+	 */
+	private void trackStability(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename, boolean dispatched) {
+		if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			stability.untrack(components.get(0).properties.directory.resolve(filename));
+		} else if (dispatched) {
+			stability.track(components, filename, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Helper method. Keep the fingerprints of the files up to date, and check whether a modification (or a close after writing)
+	 * changed the contents of its file. Only files of directories that are watched for either of them are fingerprinted.
+	 * @param components The components of the affected directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory.
+	 * @return False if the event is a modification or close that left the contents unchanged.
+	 */
+	private boolean hasNewContent(StorageWatcherRoutes components, WatchEvent.Kind<?> kind, Path filename) {
+		if ((components.eventMask & StorageWatcherFingerprints.CHANGE_MASK) == 0) {
+			return true;
+		}
+
+		Path file = components.get(0).properties.directory.resolve(filename);
+		if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+			return !fingerprints.isUnchanged(file);
+		} else if (kind == StorageWatcher.ENTRY_CLOSE_WRITE) {
+			return !fingerprints.isUnchangedSinceClosed(file);
+		} else if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+			fingerprints.update(file);
+		} else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+			fingerprints.remove(file);
+		}
+		return true;
+	}
+
+	/**
+	 * Helper method. Run the callback of a component, if the event matches its configuration.
+	 * @param component The component of the directory.
+	 * @param kind The kind of event.
+	 * @param filename Name of the affected file, relative to the directory of the component.
+	 * @param move The move that the event is a part of, which replaces the event for batch callbacks. Null if it's not part of a move.
+	 * @param batched The batch configurations that the move has already been added to, or null if it's not part of a move.
+	 * @return True if the event matched.
+	 */
+	private boolean dispatchEvent(StorageWatcherComponent component, WatchEvent.Kind<?> kind, Path filename,
+								  @Nullable FileEvent move, @Nullable Set<StorageWatcherProperties> batched) {
+		StorageWatcherProperties properties = component.properties;
+		if (!properties.accepts(kind, filename)) {
+			return false;
+		}
+
+		if (properties.onChangedBatch != null && (batched == null || batched.add(properties.root))) {
+			FileEvent event = move != null
+					? move
+					: new FileEvent(properties.directory, properties.directory.resolve(filename), FileEvent.Kind.of(kind), System.currentTimeMillis());
+			batcher.add(properties.root, event, System.nanoTime());
+		}
+
+		if (properties.onChanged != null) {
+			String directory = properties.directory.toString();
+			String file = filename.toString();
+			// The callbacks of a file are ordered by its path, which isn't needed when they're run directly
+			Object key = dispatcher.isAsynchronous() ? properties.directory.resolve(filename) : properties;
+			dispatcher.dispatch(key, () -> properties.onChanged.onChanged(directory, file));
+		}
+		return true;
+	}
+
+	/**
+	 * Helper method. Register a newly created directory below a recursively watched directory, together with its subdirectories.
+	 * Files may have been created inside of the new directories before they were registered,
+	 * so a creation event is dispatched for every entry found inside of them.
+	 * These files might therefore be reported twice.
+	 * @param parent The component of the recursively watched parent directory.
+	 * @param filename Name of the created entry, relative to the parent directory.
+	 */
+	private void registerNewDirectory(StorageWatcherComponent parent, Path filename) {
+		Path directory = parent.properties.directory.resolve(filename);
+		if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+
+		try {
+			for (StorageWatcherComponent component : keyIndex.registerTree(new StorageWatcherComponent(parent.properties.forSubdirectory(directory)))) {
+				if (recovery != null) {
+					recovery.track(component.properties.directory);
+				}
+				if (journal != null) {
+					openJournal(component.properties.directory); // Its entries are handled as creations below
+				}
+				StorageWatcherRoutes routes = new StorageWatcherRoutes(Collections.singletonList(component));
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(component.properties.directory)) {
+					for (Path entry : entries) {
+						handleEvent(routes, StandardWatchEventKinds.ENTRY_CREATE, entry.getFileName());
+					}
+				}
+			}
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to watch the new directory " + directory + ". " + e);
+		}
+	}
+
+	/**
+	 * Helper method. Wait for the next signalled key.
+	 * In event driven mode the thread blocks until the file system delivers an event, or until coalesced events, batches, stability checks or rescans are due,
+	 * otherwise the watch service is polled briefly once per interval.
+	 * @return The signalled key, or null if none was signalled in time.
+	 * @throws InterruptedException If the watcher was stopped while waiting.
+	 */
+	private WatchKey nextKey() throws InterruptedException {
+		if (!eventDriven) {
+			return engine.poll(50, TimeUnit.MILLISECONDS);
+		}
+
+		long now = System.nanoTime();
+		long nanosUntilFlush = earliest(coalescer != null ? coalescer.nanosUntilNextFlush(now) : -1,
+				eventQueue == null ? batcher.nanosUntilNextFlush(now) : -1);
+		if (stability != null && eventQueue == null) {
+			nanosUntilFlush = earliest(nanosUntilFlush, stability.nanosUntilNextCheck(now));
+		}
+		if (!pendingRescans.isEmpty() || (journal != null && !journalsOpened)) {
+			nanosUntilFlush = earliest(nanosUntilFlush, RESCAN_RETRY_NANOS);
+		}
+		return nanosUntilFlush < 0
+				? engine.take()
+				: engine.poll(nanosUntilFlush, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Helper method. Get the earliest of two optional durations.
+	 * @return The shortest duration, or -1 if both are -1.
+	 */
+	private static long earliest(long nanos, long otherNanos) {
+		if (nanos < 0 || otherNanos < 0) {
+			return Math.max(nanos, otherNanos);
+		}
+		return Math.min(nanos, otherNanos);
+	}
+
+	private void closeEngine() {
+		try {
+			engine.close();
+		} catch (IOException e) {
+			Logger.getGlobal().warning("Failed to close the engine. " + e);
+		}
+	}
+
+	void start() {
+		if (dispatchThread != null) {
+			dispatchThread.start();
+		}
+		executionThread.start();
+	}
+
+	void stop() {
+		shouldRun = false;
+		executionThread.interrupt();
+	}
+
+	/**
+	 * Release the resources of a shard that was never started.
+	 */
+	void close() {
+		closeEngine();
+		dispatcher.shutdown();
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * @return The components of the shard. Only the requested ones while the registration is still running in the background.
+	 */
+	List<StorageWatcherComponent> components() {
+		return buildReport.isComplete() ? keyIndex.components() : keyIndex.requestedComponents();
+	}
+
+	boolean isEventDriven() {
+		return eventDriven;
+	}
+
+	StorageWatcher.Engine getEngine() {
+		return engine.getType();
+	}
+
+	long getPendingCallbacks() {
+		return dispatcher.getPendingCallbacks();
+	}
+
+	int getWatchedKeys() {
+		return keyIndex.size();
+	}
+
+	long getEventQueueDepth() {
+		return eventQueue != null ? eventQueue.size() : 0;
+	}
+
+	long getDroppedEvents() {
+		return eventQueue != null ? eventQueue.getDroppedEvents() : 0;
+	}
+
+	Thread getExecutionThread() {
+		return executionThread;
+	}
+}
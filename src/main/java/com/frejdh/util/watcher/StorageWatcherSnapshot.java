@@ -0,0 +1,228 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Immutable, compact snapshot of the entries of one directory: name, size, modification time and file key (such as the inode).
+ * Stored as a sorted name table with parallel primitive arrays, instead of an object per entry.
+ */
+final class StorageWatcherSnapshot {
+
+	/**
+	 * Receiver of the differences between two snapshots.
+	 */
+	interface DiffSink {
+		void accept(FileEvent.Kind kind, String name);
+	}
+
+	static final StorageWatcherSnapshot EMPTY = new StorageWatcherSnapshot(new String[0], new long[0], new long[0], new Object[0]);
+
+	private final String[] names;
+	private final long[] sizes;
+	private final long[] modifiedTimes;
+	private final Object[] fileKeys;
+
+	private StorageWatcherSnapshot(String[] names, long[] sizes, long[] modifiedTimes, Object[] fileKeys) {
+		this.names = names;
+		this.sizes = sizes;
+		this.modifiedTimes = modifiedTimes;
+		this.fileKeys = fileKeys;
+	}
+
+	/**
+	 * Take a snapshot of a directory. Entries that disappear while scanning are skipped.
+	 * @param directory The directory to scan.
+	 * @return The snapshot.
+	 * @throws IOException If the directory couldn't be read.
+	 */
+	static StorageWatcherSnapshot scan(@NotNull Path directory) throws IOException {
+		List<String> entries = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			stream.forEach(entry -> entries.add(entry.getFileName().toString()));
+		}
+		entries.sort(null);
+
+		String[] names = new String[entries.size()];
+		long[] sizes = new long[names.length];
+		long[] modifiedTimes = new long[names.length];
+		Object[] fileKeys = new Object[names.length];
+		int count = 0;
+		for (String name : entries) {
+			Entry attributes = Entry.read(directory.resolve(name));
+			if (attributes != null) {
+				names[count] = name;
+				sizes[count] = attributes.size;
+				modifiedTimes[count] = attributes.modifiedTime;
+				fileKeys[count] = attributes.fileKey;
+				count++;
+			}
+		}
+
+		return count == names.length
+				? new StorageWatcherSnapshot(names, sizes, modifiedTimes, fileKeys)
+				: new StorageWatcherSnapshot(Arrays.copyOf(names, count), Arrays.copyOf(sizes, count), Arrays.copyOf(modifiedTimes, count), Arrays.copyOf(fileKeys, count));
+	}
+
+	/**
+	 * Apply changes on top of this snapshot.
+	 * @param changes Changed entries by name, where {@link Entry#DELETED} removes the entry.
+	 * @return A new snapshot, or this instance if there are no changes.
+	 */
+	StorageWatcherSnapshot apply(Map<String, Entry> changes) {
+		if (changes.isEmpty()) {
+			return this;
+		}
+
+		Map<String, Entry> merged = new TreeMap<>();
+		for (int i = 0; i < names.length; i++) {
+			merged.put(names[i], new Entry(sizes[i], modifiedTimes[i], fileKeys[i]));
+		}
+		changes.forEach((name, entry) -> {
+			if (entry == Entry.DELETED) {
+				merged.remove(name);
+			} else {
+				merged.put(name, entry);
+			}
+		});
+
+		String[] newNames = new String[merged.size()];
+		long[] newSizes = new long[newNames.length];
+		long[] newModifiedTimes = new long[newNames.length];
+		Object[] newFileKeys = new Object[newNames.length];
+		int i = 0;
+		for (Map.Entry<String, Entry> entry : merged.entrySet()) {
+			newNames[i] = entry.getKey();
+			newSizes[i] = entry.getValue().size;
+			newModifiedTimes[i] = entry.getValue().modifiedTime;
+			newFileKeys[i] = entry.getValue().fileKey;
+			i++;
+		}
+		return new StorageWatcherSnapshot(newNames, newSizes, newModifiedTimes, newFileKeys);
+	}
+
+	/**
+	 * Compare this (older) snapshot with a newer one, by walking both sorted name tables at once.
+	 * Entries with a changed size, modification time or file key are reported as modified.
+	 * @param newer The newer snapshot.
+	 * @param sink Receiver of the differences.
+	 */
+	void diff(@NotNull StorageWatcherSnapshot newer, @NotNull DiffSink sink) {
+		int i = 0;
+		int j = 0;
+		while (i < names.length || j < newer.names.length) {
+			int comparison = i >= names.length ? 1 : j >= newer.names.length ? -1 : names[i].compareTo(newer.names[j]);
+			if (comparison < 0) {
+				sink.accept(FileEvent.Kind.DELETE, names[i++]);
+			} else if (comparison > 0) {
+				sink.accept(FileEvent.Kind.CREATE, newer.names[j++]);
+			} else {
+				if (sizes[i] != newer.sizes[j] || modifiedTimes[i] != newer.modifiedTimes[j] || !Objects.equals(fileKeys[i], newer.fileKeys[j])) {
+					sink.accept(FileEvent.Kind.MODIFY, names[i]);
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Replace the file keys of the entries, such as with a representation that can be stored.
+	 * @param mapping Mapping of each file key, which may be null.
+	 * @return A new snapshot with the mapped file keys.
+	 */
+	StorageWatcherSnapshot mapFileKeys(@NotNull Function<Object, Object> mapping) {
+		Object[] newFileKeys = new Object[fileKeys.length];
+		for (int i = 0; i < fileKeys.length; i++) {
+			newFileKeys[i] = mapping.apply(fileKeys[i]);
+		}
+		return new StorageWatcherSnapshot(names, sizes, modifiedTimes, newFileKeys);
+	}
+
+	/**
+	 * Find an entry by name.
+	 * @param name Name of the entry.
+	 * @return The index of the entry, or a negative value if it doesn't exist.
+	 */
+	int indexOf(String name) {
+		return Arrays.binarySearch(names, name);
+	}
+
+	/**
+	 * Get an entry by index.
+	 * @param index Index of the entry, see {@link #indexOf(String)}.
+	 * @return The attributes of the entry.
+	 */
+	Entry get(int index) {
+		return new Entry(sizes[index], modifiedTimes[index], fileKeys[index]);
+	}
+
+	/**
+	 * Get the name of an entry by index.
+	 * @param index Index of the entry, in the sorted order of the names.
+	 * @return The name of the entry.
+	 */
+	String name(int index) {
+		return names[index];
+	}
+
+	/**
+	 * @return The amount of entries.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * The attributes of one entry.
+	 */
+	static final class Entry {
+		/** Marker for an entry that was deleted. */
+		static final Entry DELETED = new Entry(-1, -1, null);
+		/** Marker for an entry whose state is unknown, which differs from any existing file. */
+		static final Entry STALE = new Entry(-1, -1, null);
+
+		final long size;
+		/** In nanoseconds since the epoch, as precise as the file system allows. */
+		final long modifiedTime;
+		final Object fileKey;
+
+		Entry(long size, long modifiedTime, @Nullable Object fileKey) {
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.fileKey = fileKey;
+		}
+
+		/**
+		 * Read the attributes of a file, without following symbolic links.
+		 * @param path The file.
+		 * @return The attributes, or null if the file doesn't exist (anymore).
+		 * @throws IOException If the attributes couldn't be read.
+		 */
+		@Nullable
+		static Entry read(Path path) throws IOException {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				return new Entry(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.fileKey());
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects when the files that are being written have become stable, meaning that they have stopped growing and changing.
+ * Every created or modified file is in flight until it has been quiet for a given period, after which its size and
+ * modification time are checked with a stat. A file that still changes is checked again after another quiet period,
+ * so only the files in flight are ever polled, and their deadlines are kept in a timer wheel.
+ * Only used by the thread dispatching the events, and therefore not thread safe.
+ */
+class StorageWatcherStability {
+
+	/** Amount of ticks per quiet period, which is the precision of the checks. */
+	private static final int TICKS_PER_PERIOD = 8;
+
+	/**
+	 * Receiver of the files that have become stable.
+	 */
+	interface Sink {
+		void accept(StorageWatcherRoutes components, Path filename);
+	}
+
+	private final long quietPeriodNanos;
+	private final Map<Path, InFlight> inFlight = new HashMap<>();
+	private final StorageWatcherTimerWheel<Path> checks;
+
+	/**
+	 * @param quietPeriod Time that a file has to stay the same before it's stable.
+	 * @param unit Unit of the period.
+	 */
+	StorageWatcherStability(long quietPeriod, @NotNull TimeUnit unit) {
+		this.quietPeriodNanos = unit.toNanos(quietPeriod);
+		this.checks = new StorageWatcherTimerWheel<>(Math.max(TimeUnit.MILLISECONDS.toNanos(1), quietPeriodNanos / TICKS_PER_PERIOD),
+				TimeUnit.NANOSECONDS, System.nanoTime());
+	}
+
+	/**
+	 * Put a file in flight after it was created or modified, or postpone its check if it already is.
+	 * @param components The components of the affected directory.
+	 * @param filename Name of the file, relative to the directory.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 */
+	void track(@NotNull StorageWatcherRoutes components, @NotNull Path filename, long now) {
+		Path file = components.get(0).properties.directory.resolve(filename);
+		inFlight.computeIfAbsent(file, key -> new InFlight(components, filename));
+		checks.schedule(file, now + quietPeriodNanos);
+	}
+
+	/**
+	 * Stop tracking a file, such as after it was deleted or moved away.
+	 * @param file The file.
+	 */
+	void untrack(@NotNull Path file) {
+		if (inFlight.remove(file) != null) {
+			checks.cancel(file);
+		}
+	}
+
+	/**
+	 * Check the files that have been quiet for the whole period. Files that still change are checked again after another period,
+	 * and files that are gone or aren't regular files are no longer tracked.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @param sink Receiver of the files that have become stable.
+	 */
+	void check(long now, @NotNull Sink sink) {
+		checks.advance(now, file -> {
+			InFlight entry = inFlight.get(file);
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				inFlight.remove(file); // Deleted, which is reported separately
+				return;
+			}
+			if (!attributes.isRegularFile()) {
+				inFlight.remove(file);
+				return;
+			}
+
+			long size = attributes.size();
+			long modifiedTime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			boolean unchanged = entry.size == size && entry.modifiedTime == modifiedTime;
+			long modifiedAgo = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - modifiedTime;
+			if (unchanged || (entry.size < 0 && modifiedAgo >= quietPeriodNanos)) {
+				inFlight.remove(file);
+				sink.accept(entry.components, entry.filename);
+			} else {
+				entry.size = size;
+				entry.modifiedTime = modifiedTime;
+				checks.schedule(file, now + quietPeriodNanos);
+			}
+		});
+	}
+
+	/**
+	 * Get the time until the next files should be checked.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @return The time in nanoseconds (0 if already due), or -1 if no files are in flight.
+	 */
+	long nanosUntilNextCheck(long now) {
+		return checks.nanosUntilNextDeadline(now);
+	}
+
+	/**
+	 * @return The amount of files in flight.
+	 */
+	int size() {
+		return inFlight.size();
+	}
+
+	private static class InFlight {
+		private final StorageWatcherRoutes components;
+		private final Path filename;
+		// As of the latest check, or -1 before the first one
+		private long size = -1;
+		private long modifiedTime;
+
+		private InFlight(StorageWatcherRoutes components, Path filename) {
+			this.components = components;
+			this.filename = filename;
+		}
+	}
+}
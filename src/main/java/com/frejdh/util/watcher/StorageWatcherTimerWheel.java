@@ -0,0 +1,252 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel for deadlines keyed by path (or any other key), such as the stability checks of files.
+ * Each level is a ring of 64 slots, where a slot of level 0 spans one tick and a slot of every further level spans
+ * a whole rotation of the level below it. A deadline is hashed into the lowest level that reaches it, and moved down
+ * (cascaded) once its slot becomes current. Scheduling, rescheduling and cancelling are therefore O(1) regardless of
+ * how many deadlines are pending, and advancing skips the empty slots through one bitmap per level instead of visiting
+ * every elapsed tick. Deadlines are rounded up to the next tick.
+ * Driven by the thread that owns it, and therefore not thread safe.
+ * @param <K> Type of the keys.
+ */
+class StorageWatcherTimerWheel<K> {
+
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 6;
+	/** Reach of the wheel, such as two years with a tick of one millisecond. Deadlines further away wait on the top level until they're in reach. */
+	private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+	private final long tickNanos;
+	private final Timer<K>[][] slots;
+	// One bit per slot with any timers, per level
+	private final long[] occupied = new long[LEVELS];
+	private final Map<K, Timer<K>> timers = new HashMap<>();
+	/** The next tick to process. */
+	private long currentTick;
+
+	/**
+	 * @param tick Duration of one tick, which is the precision of the deadlines.
+	 * @param tickUnit Unit of the tick.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	StorageWatcherTimerWheel(long tick, @NotNull TimeUnit tickUnit, long now) {
+		this.tickNanos = Math.max(1, tickUnit.toNanos(tick));
+		this.slots = (Timer<K>[][]) new Timer[LEVELS][SLOTS];
+		this.currentTick = Math.floorDiv(now, tickNanos);
+	}
+
+	/**
+	 * Schedule the deadline of a key, replacing its current deadline if it has one.
+	 * A deadline that is already due (at or before the last call to {@link #advance(long, Consumer)}) is moved to the tick after
+	 * the last advance, so it's passed on by the first advance that reaches that tick, instead of by an earlier one.
+	 * @param key The key.
+	 * @param deadline The deadline, in {@link System#nanoTime()}.
+	 */
+	void schedule(@NotNull K key, long deadline) {
+		Timer<K> timer = timers.get(key);
+		if (timer == null) {
+			timer = new Timer<>(key);
+			timers.put(key, timer);
+		} else {
+			unlink(timer);
+		}
+
+		timer.tick = Math.max(currentTick, -Math.floorDiv(-deadline, tickNanos));
+		link(timer);
+	}
+
+	/**
+	 * Cancel the deadline of a key.
+	 * @param key The key.
+	 * @return False if the key had no deadline.
+	 */
+	boolean cancel(@NotNull K key) {
+		Timer<K> timer = timers.remove(key);
+		if (timer == null) {
+			return false;
+		}
+		unlink(timer);
+		return true;
+	}
+
+	/**
+	 * @param key The key.
+	 * @return True if the key has a deadline.
+	 */
+	boolean contains(@NotNull K key) {
+		return timers.containsKey(key);
+	}
+
+	/**
+	 * Remove the keys whose deadlines have passed, and pass them on. The action may schedule the keys again.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @param action Receiver of the keys whose deadlines have passed.
+	 */
+	void advance(long now, @NotNull Consumer<K> action) {
+		long targetTick = Math.floorDiv(now, tickNanos);
+		List<Timer<K>> expired = null;
+		while (!timers.isEmpty()) {
+			long tick = nextBusyTick();
+			if (tick > targetTick) {
+				break;
+			}
+			currentTick = tick;
+
+			// From the top, so that the deadlines can fall through multiple levels at once
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					cascade(level, (int) (tick >> (SLOT_BITS * level)) & SLOT_MASK);
+				}
+			}
+
+			int index = (int) tick & SLOT_MASK;
+			Timer<K> timer = slots[0][index];
+			if (timer != null) {
+				if (expired == null) {
+					expired = new ArrayList<>();
+				}
+				for (; timer != null; timer = timer.next) {
+					timers.remove(timer.key);
+					timer.linked = false;
+					expired.add(timer);
+				}
+				slots[0][index] = null;
+				occupied[0] &= ~(1L << index);
+			}
+			currentTick = tick + 1;
+		}
+		currentTick = Math.max(currentTick, targetTick + 1);
+
+		// Run after the slots have been updated, as the action may schedule and cancel other keys
+		if (expired != null) {
+			for (Timer<K> timer : expired) {
+				if (!timers.containsKey(timer.key)) {
+					action.accept(timer.key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the time until the next deadline is due. Deadlines on the higher levels may cause an earlier wake-up, for cascading them.
+	 * @param now Current time, in {@link System#nanoTime()}.
+	 * @return The time in nanoseconds (0 if already due), or -1 if there are no deadlines.
+	 */
+	long nanosUntilNextDeadline(long now) {
+		if (timers.isEmpty()) {
+			return -1;
+		}
+		return Math.max(0, nextBusyTick() * tickNanos - now);
+	}
+
+	/**
+	 * @return The amount of pending deadlines.
+	 */
+	int size() {
+		return timers.size();
+	}
+
+	/**
+	 * Helper method. Get the next tick with deadlines due on level 0, or with an occupied slot of a higher level becoming current.
+	 * @return The tick, or {@link Long#MAX_VALUE} if there are no deadlines.
+	 */
+	private long nextBusyTick() {
+		long next = Long.MAX_VALUE;
+		for (int level = 0; level < LEVELS; level++) {
+			if (occupied[level] == 0) {
+				continue;
+			}
+			int shift = SLOT_BITS * level;
+			long block = currentTick >> shift;
+			// The slots of the higher levels become current at the start of their block, which has passed for the current block unless at its start
+			long first = (currentTick & ((1L << shift) - 1)) == 0 ? block : block + 1;
+			long bits = Long.rotateRight(occupied[level], (int) first & SLOT_MASK);
+			next = Math.min(next, (first + Long.numberOfTrailingZeros(bits)) << shift);
+		}
+		return next;
+	}
+
+	/**
+	 * Helper method. Move the deadlines of a slot that became current to the levels that reach them now.
+	 */
+	private void cascade(int level, int index) {
+		Timer<K> timer = slots[level][index];
+		slots[level][index] = null;
+		occupied[level] &= ~(1L << index);
+		while (timer != null) {
+			Timer<K> next = timer.next;
+			timer.previous = timer.next = null;
+			link(timer);
+			timer = next;
+		}
+	}
+
+	private void link(Timer<K> timer) {
+		long delta = Math.min(timer.tick - currentTick, MAX_TICKS - 1);
+		int level = 0;
+		while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+			level++;
+		}
+		int index = (int) ((currentTick + delta) >> (SLOT_BITS * level)) & SLOT_MASK;
+
+		Timer<K> head = slots[level][index];
+		timer.next = head;
+		if (head != null) {
+			head.previous = timer;
+		}
+		slots[level][index] = timer;
+		occupied[level] |= 1L << index;
+		timer.level = level;
+		timer.index = index;
+		timer.linked = true;
+	}
+
+	private void unlink(Timer<K> timer) {
+		if (!timer.linked) {
+			return;
+		}
+		timer.linked = false;
+		if (timer.previous != null) {
+			timer.previous.next = timer.next;
+		} else {
+			slots[timer.level][timer.index] = timer.next;
+			if (timer.next == null) {
+				occupied[timer.level] &= ~(1L << timer.index);
+			}
+		}
+		if (timer.next != null) {
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = timer.next = null;
+	}
+
+	/**
+	 * A pending deadline, linked into a slot of the level that reaches it.
+	 */
+	private static final class Timer<K> {
+		private final K key;
+		private long tick;
+		private boolean linked;
+		private int level;
+		private int index;
+		private Timer<K> previous;
+		private Timer<K> next;
+
+		private Timer(K key) {
+			this.key = key;
+		}
+	}
+}
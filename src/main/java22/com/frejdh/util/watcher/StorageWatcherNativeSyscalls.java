@@ -0,0 +1,273 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * The system calls of {@link StorageWatcherInotifyEngine}, made through the foreign function API of Java 22 on 64-bit Linux.
+ * Compiled into META-INF/versions/22 of the multi-release jar, in place of the version in src/main/java that is never available.
+ * The calls are restricted methods, so the JVM warns about them unless started with <code>--enable-native-access=ALL-UNNAMED</code>
+ * (or the module of the library). If native access is denied, the system calls aren't supported and the engine isn't available.
+ */
+final class StorageWatcherNativeSyscalls implements StorageWatcherInotifyEngine.Syscalls {
+
+	// inotify_init1(2) and poll(2)
+	private static final int IN_NONBLOCK = 0x00000800;
+	private static final int IN_CLOEXEC = 0x00080000;
+	private static final short POLLIN = 0x0001;
+	// errno(3)
+	private static final int ENOENT = 2;
+	private static final int EINTR = 4;
+	private static final int EAGAIN = 11;
+	private static final int EACCES = 13;
+	private static final int ENOTDIR = 20;
+	private static final int EMFILE = 24;
+	private static final int ENOSPC = 28;
+
+	private static final Functions FUNCTIONS = Functions.load();
+
+	private final int descriptor;
+	// Memory of the thread reading the events, freed when closing
+	private final Arena arena;
+	private final MemorySegment readState;
+	private final MemorySegment pollDescriptor;
+	private volatile boolean closed;
+
+	private StorageWatcherNativeSyscalls(int descriptor, Arena arena) {
+		this.descriptor = descriptor;
+		this.arena = arena;
+		this.readState = arena.allocate(FUNCTIONS.stateLayout);
+		this.pollDescriptor = arena.allocate(8, 4); // struct pollfd
+		pollDescriptor.set(JAVA_INT, 0, descriptor);
+		pollDescriptor.set(ValueLayout.JAVA_SHORT, 4, POLLIN);
+	}
+
+	/**
+	 * @return True if the system calls can be made on this platform.
+	 */
+	static boolean isSupported() {
+		return FUNCTIONS != null;
+	}
+
+	/**
+	 * Create a new inotify instance.
+	 * @return The system calls of the instance, or null if they can't be made on this platform.
+	 * @throws IOException If the instance couldn't be created, such as when the limit of instances has been reached.
+	 */
+	@Nullable
+	static StorageWatcherInotifyEngine.Syscalls open() throws IOException {
+		if (FUNCTIONS == null) {
+			return null;
+		}
+
+		Arena arena = Arena.ofShared();
+		int descriptor;
+		int errno;
+		try {
+			MemorySegment state = arena.allocate(FUNCTIONS.stateLayout);
+			descriptor = (int) FUNCTIONS.inotifyInit1.invokeExact(state, IN_NONBLOCK | IN_CLOEXEC);
+			errno = FUNCTIONS.errnoOf(state);
+		} catch (Throwable e) {
+			arena.close();
+			throw new IllegalStateException("Failed to call inotify_init1", e);
+		}
+
+		if (descriptor < 0) {
+			arena.close();
+			throw exceptionOf(errno, null, "inotify_init1");
+		}
+		return new StorageWatcherNativeSyscalls(descriptor, arena);
+	}
+
+	@Override
+	public int addWatch(@NotNull Path directory, int mask) throws IOException {
+		byte[] filename = directory.toAbsolutePath().toString().getBytes(StorageWatcherInotifyEngine.FILENAME_CHARSET);
+		int watchDescriptor;
+		int errno;
+		try (Arena callArena = Arena.ofConfined()) {
+			MemorySegment state = callArena.allocate(FUNCTIONS.stateLayout);
+			MemorySegment pathname = callArena.allocateFrom(ValueLayout.JAVA_BYTE, Arrays.copyOf(filename, filename.length + 1)); // Null terminated
+			watchDescriptor = (int) FUNCTIONS.inotifyAddWatch.invokeExact(state, descriptor, pathname, mask);
+			errno = FUNCTIONS.errnoOf(state);
+		} catch (Throwable e) {
+			throw new IllegalStateException("Failed to call inotify_add_watch", e);
+		}
+
+		if (watchDescriptor < 0) {
+			throw exceptionOf(errno, directory, "inotify_add_watch");
+		}
+		return watchDescriptor;
+	}
+
+	@Override
+	public void removeWatch(int watchDescriptor) throws IOException {
+		if (closed) {
+			return;
+		}
+
+		int result;
+		int errno;
+		try (Arena callArena = Arena.ofConfined()) {
+			MemorySegment state = callArena.allocate(FUNCTIONS.stateLayout);
+			result = (int) FUNCTIONS.inotifyRmWatch.invokeExact(state, descriptor, watchDescriptor);
+			errno = FUNCTIONS.errnoOf(state);
+		} catch (Throwable e) {
+			throw new IllegalStateException("Failed to call inotify_rm_watch", e);
+		}
+
+		if (result < 0) {
+			throw exceptionOf(errno, null, "inotify_rm_watch");
+		}
+	}
+
+	@Override
+	public int read(@NotNull ByteBuffer buffer, int timeoutMillis) throws IOException {
+		MemorySegment target = MemorySegment.ofBuffer(buffer);
+		long length;
+		int errno;
+		try {
+			if (timeoutMillis > 0) {
+				int ready = (int) FUNCTIONS.poll.invokeExact(readState, pollDescriptor, 1L, timeoutMillis);
+				if (ready <= 0) {
+					errno = FUNCTIONS.errnoOf(readState);
+					if (ready == 0 || errno == EINTR) {
+						return 0;
+					}
+					throw exceptionOf(errno, null, "poll");
+				}
+			}
+			length = (long) FUNCTIONS.read.invokeExact(readState, descriptor, target, target.byteSize());
+			errno = FUNCTIONS.errnoOf(readState);
+		} catch (IOException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Failed to read the inotify events", e);
+		}
+
+		if (length < 0) {
+			if (errno == EAGAIN || errno == EINTR) {
+				return 0; // Non-blocking, with nothing to read
+			}
+			throw exceptionOf(errno, null, "read");
+		}
+		return (int) length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+
+		int result;
+		try {
+			result = (int) FUNCTIONS.close.invokeExact(descriptor);
+		} catch (Throwable e) {
+			throw new IllegalStateException("Failed to call close", e);
+		} finally {
+			arena.close();
+		}
+
+		if (result < 0) {
+			throw new IOException("Failed to close the inotify instance");
+		}
+	}
+
+	/**
+	 * Helper method. Get the exception for a failed system call.
+	 */
+	private static IOException exceptionOf(int errno, @Nullable Path file, String call) {
+		String filename = file != null ? file.toString() : null;
+		switch (errno) {
+			case ENOENT:
+				return new NoSuchFileException(filename);
+			case ENOTDIR:
+				return new NotDirectoryException(filename);
+			case EACCES:
+				return new AccessDeniedException(filename);
+			case ENOSPC:
+				return new FileSystemException(filename, null, "User limit of inotify watches reached, see /proc/sys/fs/inotify/max_user_watches");
+			case EMFILE:
+				return new FileSystemException(filename, null, "User limit of inotify instances reached, see /proc/sys/fs/inotify/max_user_instances");
+			default:
+				return new FileSystemException(filename, null, call + " failed with errno " + errno);
+		}
+	}
+
+	/**
+	 * Handles of the C functions, whose errno is captured into a segment passed as the first argument.
+	 */
+	private static final class Functions {
+		private final StructLayout stateLayout = Linker.Option.captureStateLayout();
+		private final long errnoOffset = stateLayout.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+		private final MethodHandle inotifyInit1;
+		private final MethodHandle inotifyAddWatch;
+		private final MethodHandle inotifyRmWatch;
+		private final MethodHandle poll;
+		private final MethodHandle read;
+		private final MethodHandle close;
+
+		private Functions(Linker linker, SymbolLookup lookup) {
+			Linker.Option errno = Linker.Option.captureCallState("errno");
+			this.inotifyInit1 = linker.downcallHandle(lookup.find("inotify_init1").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, JAVA_INT), errno);
+			this.inotifyAddWatch = linker.downcallHandle(lookup.find("inotify_add_watch").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT), errno);
+			this.inotifyRmWatch = linker.downcallHandle(lookup.find("inotify_rm_watch").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), errno);
+			this.poll = linker.downcallHandle(lookup.find("poll").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT), errno); // nfds_t is an unsigned long
+			this.read = linker.downcallHandle(lookup.find("read").orElseThrow(),
+					FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), errno);
+			this.close = linker.downcallHandle(lookup.find("close").orElseThrow(),
+					FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+		}
+
+		/**
+		 * @return The functions, or null if they can't be called on this platform.
+		 */
+		@Nullable
+		private static Functions load() {
+			if (!"Linux".equals(System.getProperty("os.name")) || ADDRESS.byteSize() != 8) {
+				return null;
+			}
+			try {
+				Linker linker = Linker.nativeLinker();
+				return new Functions(linker, linker.defaultLookup());
+			} catch (RuntimeException e) { // Such as IllegalCallerException, when native access is denied
+				Logger.getGlobal().fine("Can't read inotify directly. " + e);
+				return null;
+			}
+		}
+
+		private int errnoOf(MemorySegment state) {
+			return state.get(JAVA_INT, errnoOffset);
+		}
+	}
+}
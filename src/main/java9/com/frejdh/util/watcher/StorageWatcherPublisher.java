@@ -0,0 +1,300 @@
+package com.frejdh.util.watcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the events of a watcher as a {@link Flow.Publisher}, honoring the demand of the subscriber.
+ * Every subscription builds and starts a watcher of its own from the builder, which is stopped when the subscription is cancelled.
+ * Events that the subscriber hasn't requested yet are buffered. Once the buffer is full the watcher thread is paused,
+ * meaning that no more keys are drained until the subscriber requests more (the file system queues the events meanwhile,
+ * see {@link StorageWatcherBuilder#recoverFromOverflow(boolean)} for when that queue overflows).
+ * The callbacks of the watcher are therefore always run synchronously, regardless of {@link StorageWatcherBuilder#dispatchAsync()}.
+ * With an event queue (see {@link StorageWatcherBuilder#eventQueue(int, StorageWatcher.QueuePolicy)}) it's the dispatch thread that is paused,
+ * and the policy of the queue decides what happens once the queue is full as well.
+ * With {@link WhenFull#COALESCE}, events for files that are already buffered are merged into the buffered event instead of pausing.
+ * <p>
+ * Only available on Java 9 or later, through the multi-release jar. There is deliberately no Java 8 version of the class,
+ * as its API is based on {@link Flow}, which means that <code>jar --validate</code> reports it as a new public class of the versioned entries.
+ */
+public final class StorageWatcherPublisher implements Flow.Publisher<FileEvent> {
+
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	/**
+	 * What to do with new events when the buffer of a subscription is full.
+	 */
+	public enum WhenFull {
+		/** Pause the watcher thread until the subscriber requests more events. */
+		PAUSE,
+		/**
+		 * Merge the event into a buffered event for the same file, such as a modification into a buffered creation. Otherwise pause.
+		 * {@link FileEvent.Kind#CLOSE_WRITE} is only merged into a buffered close, and the other kinds never into one.
+		 */
+		COALESCE
+	}
+
+	private final StorageWatcherBuilder builder;
+	private final int bufferSize;
+	private final WhenFull whenFull;
+
+	/**
+	 * Same as {@link #StorageWatcherPublisher(StorageWatcherBuilder, int, WhenFull)} with a buffer of {@value #DEFAULT_BUFFER_SIZE} events
+	 * and {@link WhenFull#PAUSE}.
+	 */
+	public StorageWatcherPublisher(@NotNull StorageWatcherBuilder builder) {
+		this(builder, DEFAULT_BUFFER_SIZE, WhenFull.PAUSE);
+	}
+
+	/**
+	 * @param builder Builder of the watchers, including any chained builders. Their batch callbacks are replaced by the subscription.
+	 * @param bufferSize Max amount of events to buffer per subscription, at least 1.
+	 * @param whenFull What to do when the buffer is full.
+	 */
+	public StorageWatcherPublisher(@NotNull StorageWatcherBuilder builder, int bufferSize, @NotNull WhenFull whenFull) {
+		this.builder = builder;
+		this.bufferSize = Math.max(1, bufferSize);
+		this.whenFull = whenFull;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super FileEvent> subscriber) {
+		Subscription subscription = new Subscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		if (subscription.cancelled) {
+			return; // Cancelled from onSubscribe, so no watcher is needed
+		}
+		try {
+			StorageWatcher watcher = builder.build(subscription::offer);
+			subscription.start(watcher);
+		} catch (RuntimeException e) {
+			subscription.fail(e);
+		}
+	}
+
+	/**
+	 * A buffered event, which may be merged with later events for the same file.
+	 */
+	private static class Pending {
+		private final Path path;
+		/** Null if the merged events cancelled each other out. */
+		private FileEvent event;
+
+		private Pending(FileEvent event) {
+			this.path = event.path;
+			this.event = event;
+		}
+	}
+
+	private class Subscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super FileEvent> subscriber;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition notFull = lock.newCondition();
+		private final Queue<Pending> buffer = new ArrayDeque<>();
+		// Only used by COALESCE. The latest buffered event of each file
+		private final Map<Path, Pending> bufferedByPath = new HashMap<>();
+		// Serializes the signals to the subscriber, whichever thread drains the buffer
+		private final AtomicInteger drainers = new AtomicInteger();
+		private long demand;
+		private volatile boolean cancelled;
+		// Signalled by the drain loop, serially with the events
+		private Throwable error;
+		private StorageWatcher watcher;
+
+		private Subscription(Flow.Subscriber<? super FileEvent> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		private void start(StorageWatcher watcher) {
+			lock.lock();
+			try {
+				if (!cancelled) {
+					this.watcher = watcher;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (this.watcher == watcher) {
+				watcher.start();
+			} else {
+				watcher.close(); // Cancelled while it was being built
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Requested " + n + " events, must be positive"));
+				return;
+			}
+
+			lock.lock();
+			try {
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+			} finally {
+				lock.unlock();
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			terminate(null);
+		}
+
+		/**
+		 * Cancel the subscription, and signal an error to the subscriber through the drain loop.
+		 * @param error The error.
+		 */
+		private void fail(Throwable error) {
+			if (terminate(error)) {
+				drain();
+			}
+		}
+
+		/**
+		 * Helper method. Cancel the subscription and stop its watcher.
+		 * @param error Error to signal to the subscriber, or null if the subscriber cancelled.
+		 * @return False if the subscription was already cancelled.
+		 */
+		private boolean terminate(@Nullable Throwable error) {
+			StorageWatcher watcher;
+			lock.lock();
+			try {
+				if (cancelled) {
+					return false;
+				}
+				cancelled = true;
+				this.error = error;
+				watcher = this.watcher;
+				buffer.clear();
+				bufferedByPath.clear();
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (watcher != null) {
+				watcher.stop();
+			}
+			return true;
+		}
+
+		/**
+		 * Buffer the events of a batch, pausing the calling watcher thread while the buffer is full.
+		 * @param events The events, in order.
+		 */
+		private void offer(List<FileEvent> events) {
+			for (FileEvent event : events) {
+				lock.lock();
+				try {
+					while (!cancelled && buffer.size() >= bufferSize && !(whenFull == WhenFull.COALESCE && merge(event))) {
+						notFull.await();
+					}
+					if (cancelled) {
+						return;
+					}
+					if (buffer.size() < bufferSize) {
+						Pending pending = new Pending(event);
+						buffer.add(pending);
+						if (whenFull == WhenFull.COALESCE) {
+							bufferedByPath.put(event.path, pending);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt(); // The watcher is stopping
+					return;
+				} finally {
+					lock.unlock();
+				}
+				drain();
+			}
+		}
+
+		/**
+		 * Helper method. Merge an event into the buffered event of the same file, while holding the lock.
+		 * @return True if merged.
+		 */
+		private boolean merge(FileEvent event) {
+			Pending pending = bufferedByPath.get(event.path);
+			if (pending == null || event.kind.toWatchEventKind() == null || (pending.event != null && pending.event.kind.toWatchEventKind() == null)) {
+				return false; // Moves and stable files aren't folded
+			} else if (pending.event == null) {
+				pending.event = event; // The buffered events cancelled each other out
+				return true;
+			} else if (!StorageWatcherCoalescer.isFoldable(pending.event.kind.toWatchEventKind(), event.kind.toWatchEventKind())) {
+				return false; // A close after writing would be lost in the other event
+			}
+
+			WatchEvent.Kind<?> kind = StorageWatcherCoalescer.fold(pending.event.kind.toWatchEventKind(), event.kind.toWatchEventKind());
+			pending.event = kind != null ? new FileEvent(event.directory, event.path, FileEvent.Kind.of(kind), event.timestamp) : null;
+			return true;
+		}
+
+		/**
+		 * Helper method. Signal the buffered events to the subscriber, as far as the demand allows, or the error that terminated the subscription.
+		 * Only one thread drains at a time, while other threads just make it drain once more, so that the signals are never concurrent.
+		 */
+		private void drain() {
+			if (drainers.getAndIncrement() != 0) {
+				return;
+			}
+
+			int missed = 1;
+			do {
+				while (true) {
+					FileEvent event = null;
+					Throwable terminal;
+					lock.lock();
+					try {
+						terminal = error;
+						error = null;
+						if (terminal == null) {
+							if (cancelled || demand == 0 || buffer.isEmpty()) {
+								break;
+							}
+							Pending pending = buffer.poll();
+							bufferedByPath.remove(pending.path, pending);
+							notFull.signal();
+							event = pending.event;
+							if (event == null) {
+								continue;
+							}
+							if (demand != Long.MAX_VALUE) {
+								demand--;
+							}
+						}
+					} finally {
+						lock.unlock();
+					}
+
+					if (terminal != null) {
+						subscriber.onError(terminal);
+						return; // Keeps the drain loop claimed, as there are no more signals
+					}
+					try {
+						subscriber.onNext(event);
+					} catch (RuntimeException e) {
+						Logger.getGlobal().severe("Subscriber failed, cancelling the subscription. " + e);
+						cancel();
+						return;
+					}
+				}
+				missed = drainers.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
@@ -33,13 +33,17 @@ public class FileHelper {
 		return String.format(FILENAME_BASE, filenameCounter++);
 	}
 
+	public static String getFullPath(String filename) {
+		return classpath + filename;
+	}
+
 	public static void cleanup() throws Exception {
 		for (FileToCleanup file : new ArrayList<>(files)) {
 			String fullpath = classpath + file.filename;
 			switch (file.cleanupAction) {
 				case REMOVE:
 					Logger.getGlobal().info("Cleanup - Removing file: " + fullpath);
-					new File(fullpath).delete();
+					delete(new File(fullpath));
 					break;
 				case EMPTY:
 					Logger.getGlobal().info("Cleanup - Emptying file: " + fullpath);
@@ -64,6 +68,25 @@ public class FileHelper {
 		}
 	}
 
+	public static void createDirectories(String directory) throws Exception {
+		String fullpath = classpath + directory;
+		Logger.getGlobal().info("Creating directories: " + fullpath);
+		if (!new File(fullpath).mkdirs()) {
+			throw new IOException("Directory already exists");
+		}
+		files.add(new FileToCleanup(directory, CleanupAction.REMOVE));
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
 	public static void createFile(String filename) throws Exception {
 		createFile(filename, CleanupAction.REMOVE);
 	}
@@ -0,0 +1,126 @@
+package com.frejdh.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ImmutableCollectionTests {
+
+	@Test
+	public void containsBelowTheThreshold() {
+		ImmutableCollection<String> collection = new ImmutableCollection<>("a", "b", null, "c");
+		Assert.assertTrue(collection.contains("a"));
+		Assert.assertTrue(collection.contains("c"));
+		Assert.assertTrue(collection.contains(null));
+		Assert.assertFalse(collection.contains("d"));
+	}
+
+	@Test
+	public void containsAboveTheThreshold() {
+		List<String> elements = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			elements.add("element_" + i);
+		}
+		elements.add(null);
+		elements.add("Aa"); // Same hash code as "BB"
+		ImmutableCollection<String> collection = ImmutableCollection.listOf(elements);
+
+		for (String element : elements) {
+			Assert.assertTrue("Not found: " + element, collection.contains(element));
+		}
+		Assert.assertFalse(collection.contains("element_1000"));
+		Assert.assertFalse(collection.contains("BB"));
+		Assert.assertTrue(collection.containsAll(Arrays.asList("element_0", "element_999", null)));
+		Assert.assertFalse(collection.containsAll(Arrays.asList("element_0", "BB")));
+	}
+
+	@Test
+	public void setOfRemovesDuplicates() {
+		ImmutableCollection<String> set = ImmutableCollection.setOf(Arrays.asList("b", "a", "b", "c", "a"));
+		Assert.assertTrue(set.isSet());
+		Assert.assertEquals(3, set.size());
+		Assert.assertEquals(Arrays.asList("b", "a", "c"), new ArrayList<>(set.cloneToMutable()));
+
+		ImmutableCollection<String> list = ImmutableCollection.listOf(Arrays.asList("b", "a", "b"));
+		Assert.assertFalse(list.isSet());
+		Assert.assertEquals(3, list.size());
+	}
+
+	@Test
+	public void copiesKeepTheSemanticsOfTheSource() {
+		Assert.assertTrue(new ImmutableCollection<>(new LinkedHashSet<>(Arrays.asList("a", "b"))).isSet());
+		Assert.assertFalse(new ImmutableCollection<>(Arrays.asList("a", "b")).isSet());
+		Assert.assertFalse(new ImmutableCollection<>("a", "b").isSet());
+		Assert.assertTrue(new ImmutableCollection<String>((Collection<String>) null).isEmpty());
+	}
+
+	@Test
+	public void elementsAreCopied() {
+		String[] elements = { "a", "b" };
+		ImmutableCollection<String> collection = new ImmutableCollection<>(elements);
+		elements[0] = "changed";
+		Assert.assertTrue(collection.contains("a"));
+
+		Collection<String> mutable = collection.cloneToMutable();
+		mutable.add("c");
+		Assert.assertEquals(2, collection.size());
+	}
+
+	@Test
+	public void toArrayWithMixedSubtypes() {
+		ImmutableCollection<Number> numbers = new ImmutableCollection<>(1, 2L, 3.0);
+		Number[] array = numbers.toArray();
+		Assert.assertEquals(Number.class, array.getClass().getComponentType());
+		Assert.assertArrayEquals(new Number[] { 1, 2L, 3.0 }, array);
+
+		ImmutableCollection<Number> withNull = new ImmutableCollection<>(null, 1, 2L);
+		Assert.assertArrayEquals(new Number[] { null, 1, 2L }, withNull.toArray());
+		Assert.assertEquals(0, new ImmutableCollection<Number>().toArray(Number[]::new).length);
+	}
+
+	@Test
+	public void toArrayOfElementsSharingOnlyAnInterface() {
+		ImmutableCollection<CharSequence> sequences = new ImmutableCollection<>("a", new StringBuilder("b"));
+		CharSequence[] generated = sequences.toArray(CharSequence[]::new);
+		Assert.assertEquals(CharSequence.class, generated.getClass().getComponentType());
+		Assert.assertEquals(2, generated.length);
+
+		CharSequence[] given = sequences.toArray(new CharSequence[3]);
+		Assert.assertEquals(3, given.length);
+		Assert.assertEquals("a", given[0]);
+		Assert.assertNull(given[2]);
+	}
+
+	@Test
+	public void listEqualsOtherLists() {
+		ImmutableCollection<String> list = new ImmutableCollection<>("a", "b", "a");
+		List<String> other = Arrays.asList("a", "b", "a");
+		Assert.assertEquals(list, other);
+		Assert.assertEquals(other.hashCode(), list.hashCode());
+		Assert.assertEquals(list, ImmutableCollection.listOf(other));
+
+		Assert.assertNotEquals(list, Arrays.asList("a", "a", "b"));
+		Assert.assertNotEquals(list, new HashSet<>(other));
+		Assert.assertNotEquals(list, ImmutableCollection.setOf(other));
+	}
+
+	@Test
+	public void setEqualsOtherSets() {
+		ImmutableCollection<String> set = ImmutableCollection.setOf(Arrays.asList("a", "b", "c"));
+		Set<String> other = new HashSet<>(Arrays.asList("c", "b", "a"));
+		Assert.assertEquals(set, other);
+		Assert.assertEquals(other.hashCode(), set.hashCode());
+		Assert.assertEquals(set, ImmutableCollection.setOf(Arrays.asList("c", "a", "b")));
+
+		Assert.assertNotEquals(set, new HashSet<>(Arrays.asList("a", "b")));
+		Assert.assertNotEquals(set, new HashSet<>(Arrays.asList("a", "b", "d")));
+		Assert.assertNotEquals(set, Arrays.asList("a", "b", "c"));
+	}
+}
@@ -1,13 +1,34 @@
 package com.frejdh.util;
 
+import com.frejdh.util.watcher.FileEvent;
 import com.frejdh.util.watcher.StorageWatcher;
+import com.frejdh.util.watcher.StorageWatcherBuildReport;
 import com.frejdh.util.watcher.StorageWatcherBuilder;
+import com.frejdh.util.watcher.StorageWatcherMetrics;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardWatchEventKinds;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
@@ -85,6 +106,81 @@ public class WatcherTests {
 		Assert.assertTrue("Flag Modify not set", flagModify);
 	}
 
+	@Test
+	public void listenersOnTheSameDirectoryOnlyGetTheirFiles() throws Exception {
+		String filename = FileHelper.nextFilename();
+		String otherFilename = FileHelper.nextFilename();
+		List<String> firstListener = new CopyOnWriteArrayList<>();
+		List<String> secondListener = new CopyOnWriteArrayList<>();
+
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchFile(filename)
+				.onChanged((dir, file) -> firstListener.add(file))
+				.createNext()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchFile(otherFilename)
+				.onChanged((dir, file) -> secondListener.add(file))
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(filename);
+		FileHelper.createFile(otherFilename);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals(Collections.singletonList(filename), firstListener);
+		Assert.assertEquals(Collections.singletonList(otherFilename), secondListener);
+	}
+
+	@Test
+	public void onlyTheSpecifiedFilenamesAndEventsAreReported() throws Exception {
+		String root = "filename_index_test";
+		FileHelper.createDirectories(root);
+		Path directory = Paths.get(FileHelper.getFullPath(root));
+		int amountOfFiles = 200;
+		List<String> watchedFiles = new ArrayList<>();
+		for (int i = 0; i < amountOfFiles; i++) {
+			watchedFiles.add(root + "/watched_" + i + ".txt");
+		}
+		Set<String> events = ConcurrentHashMap.newKeySet();
+		Set<String> modifiedFiles = ConcurrentHashMap.newKeySet();
+		// The other listener of the directory routes every file and modification to the components, which then have to check their own filenames and events
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.specifyEvents(StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE)
+				.watchFiles(watchedFiles)
+				.onChangedBatch(batch -> batch.forEach(event -> events.add(event.kind + " " + event.path.getFileName())))
+				.createNext()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_MODIFY)
+				.watchDirectory(root)
+				.onChanged((dir, file) -> modifiedFiles.add(file))
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		Set<String> expectedEvents = new HashSet<>();
+		for (int i = 0; i < amountOfFiles; i++) {
+			Files.createFile(directory.resolve("watched_" + i + ".txt"));
+			Files.createFile(directory.resolve("other_" + i + ".txt"));
+			Files.createFile(directory.resolve("watched_" + i + ".txt.tmp"));
+			expectedEvents.add("CREATE watched_" + i + ".txt");
+		}
+		for (int i = 0; i < amountOfFiles; i++) {
+			Files.write(directory.resolve("watched_" + i + ".txt"), "modification".getBytes());
+			if (i % 2 == 0) {
+				Files.delete(directory.resolve("watched_" + i + ".txt"));
+				Files.delete(directory.resolve("other_" + i + ".txt"));
+				expectedEvents.add("DELETE watched_" + i + ".txt");
+			}
+		}
+		for (int i = 0; i < 30 && events.size() < expectedEvents.size(); i++) {
+			Thread.sleep(100);
+		}
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals(expectedEvents, events);
+		Assert.assertTrue("Modifications not reported to the other listener", modifiedFiles.contains("watched_1.txt"));
+	}
+
 	@Test
 	public void watchDirectoryForModifications() throws Exception {
 		String filename = FileHelper.nextFilename();
@@ -197,4 +293,544 @@ public class WatcherTests {
 		FileHelper.writeToExistingFile(filename, "test of watcher", CleanupAction.EMPTY);
 		Assert.assertFalse("Flag Delete set, but shouldn't have been", flagModify);
 	}
+
+	@Test
+	public void eventDrivenWatcherCreateAndStop() throws Exception {
+		String filename = FileHelper.nextFilename();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchFile(filename)
+				.onChanged((directory, file) -> {
+					flagCreate = true;
+					logger.info(String.format("Flag create set for %s, %s", directory, file));
+				})
+				.build();
+
+		watcher.start();
+		FileHelper.createFile(filename);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Flag Create not set", flagCreate);
+
+		watcher.stop();
+		Thread.sleep(100);
+		Assert.assertFalse("Blocked watcher thread was not stopped", watcher.getExecutionThread().isAlive());
+	}
+
+	@Test
+	public void asyncCallbacksDoNotBlockOtherFiles() throws Exception {
+		String slowFilename = FileHelper.nextFilename();
+		String filename = FileHelper.nextFilename();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.dispatchAsync()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchFiles(slowFilename, filename)
+				.onChanged((directory, file) -> {
+					if (file.equals(slowFilename)) {
+						try {
+							Thread.sleep(DEFAULT_SLEEP * 2);
+						} catch (InterruptedException ignored) { }
+					}
+					else {
+						flagCreate = true;
+						logger.info(String.format("Flag create set for %s, %s", directory, file));
+					}
+				})
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(slowFilename);
+		FileHelper.createFile(filename);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Flag Create not set while another callback was running", flagCreate);
+	}
+
+	@Test
+	public void watchDirectoryRecursively() throws Exception {
+		String root = "recursive_test";
+		FileHelper.createDirectories(root + "/existing");
+		Set<String> createdFiles = ConcurrentHashMap.newKeySet();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectoryRecursively(root)
+				.onChanged((directory, file) -> {
+					createdFiles.add(Paths.get(directory, file).toString());
+					logger.info(String.format("Create registered for %s, %s", directory, file));
+				})
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(root + "/existing/" + FileHelper.nextFilename());
+		FileHelper.createDirectories(root + "/new/nested");
+		String nestedFilename = FileHelper.nextFilename();
+		FileHelper.createFile(root + "/new/nested/" + nestedFilename);
+		Thread.sleep(DEFAULT_SLEEP);
+
+		Assert.assertTrue("Creation in existing subdirectory not registered",
+				createdFiles.stream().anyMatch(path -> path.contains("existing" + File.separator + "test_file_")));
+		Assert.assertTrue("Creation in new subdirectory not registered",
+				createdFiles.stream().anyMatch(path -> path.endsWith("nested" + File.separator + nestedFilename)));
+	}
+
+	@Test
+	public void includeAndExcludePatterns() throws Exception {
+		String root = "pattern_test";
+		FileHelper.createDirectories(root + "/nested");
+		Set<String> createdFiles = ConcurrentHashMap.newKeySet();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectoryRecursively(root)
+				.includePatterns("**/*.json")
+				.excludePatterns(".~lock*")
+				.onChanged((directory, file) -> createdFiles.add(file))
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(root + "/top.json");
+		FileHelper.createFile(root + "/nested/deep.json");
+		FileHelper.createFile(root + "/nested/other.txt");
+		FileHelper.createFile(root + "/nested/.~lock.deep.json");
+		Thread.sleep(DEFAULT_SLEEP);
+
+		Assert.assertEquals(new HashSet<>(Arrays.asList("top.json", "deep.json")), createdFiles);
+	}
+
+	@Test
+	public void shardedWatcherKeepsTheOrderPerDirectory() throws Exception {
+		String root = "shard_test";
+		List<String> directories = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			directories.add(root + "/directory_" + i);
+			FileHelper.createDirectories(root + "/directory_" + i);
+		}
+		Map<String, List<String>> eventsPerDirectory = new ConcurrentHashMap<>();
+
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.shards(4)
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectories(directories)
+				.onChanged((directory, file) -> eventsPerDirectory.computeIfAbsent(directory, key -> new CopyOnWriteArrayList<>()).add(file))
+				.build();
+		watcher.start();
+		Assert.assertTrue("Not sharded", watcher.getExecutionThreads().size() > 1);
+
+		List<String> filenames = Arrays.asList("a.txt", "b.txt", "c.txt", "d.txt");
+		for (String filename : filenames) {
+			for (String directory : directories) {
+				FileHelper.createFile(directory + "/" + filename);
+			}
+		}
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals(directories.size(), eventsPerDirectory.size());
+		eventsPerDirectory.values().forEach(events -> Assert.assertEquals(filenames, events));
+
+		watcher.stop();
+		for (Thread thread : watcher.getExecutionThreads()) {
+			thread.join(DEFAULT_SLEEP);
+			Assert.assertFalse("Shard was not stopped", thread.isAlive());
+		}
+	}
+
+	@Test
+	public void failedDirectoriesAreReportedWhenRegisteringInBackground() throws Exception {
+		String root = "report_test";
+		FileHelper.createDirectories(root + "/watched");
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.registerInBackground()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectories(root + "/watched", root + "/missing")
+				.onChanged((directory, file) -> flagCreate = true)
+				.build();
+		watcher.start();
+
+		StorageWatcherBuildReport report = watcher.getBuildReport();
+		Assert.assertTrue("Registration not completed", report.awaitCompletion(DEFAULT_SLEEP, TimeUnit.MILLISECONDS));
+		logger.info("Build report: " + report);
+		Assert.assertEquals(1, report.getRegisteredDirectories());
+		Assert.assertEquals(1, report.getFailures().size());
+		Assert.assertTrue(report.getFailures().get(0).directory.endsWith("missing"));
+
+		FileHelper.createFile(root + "/watched/" + FileHelper.nextFilename());
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Flag Create not set", flagCreate);
+	}
+
+	@Test
+	public void coalescedEventsAreReportedOnce() throws Exception {
+		String filename = FileHelper.nextFilename();
+		String deletedFilename = FileHelper.nextFilename();
+		AtomicInteger numberOfInvokes = new AtomicInteger();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.coalesce(200, TimeUnit.MILLISECONDS)
+				.watchFiles(filename, deletedFilename)
+				.onChanged((directory, file) -> {
+					flagDelete |= file.equals(deletedFilename);
+					numberOfInvokes.getAndIncrement();
+					logger.info(String.format("Coalesced event for %s, %s", directory, file));
+				})
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(filename);
+		for (int i = 0; i < 40; i++) {
+			FileHelper.writeToExistingFile(filename, "modification " + i);
+		}
+		FileHelper.createFile(deletedFilename);
+		FileHelper.deleteFile(deletedFilename);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected amount of invokes", 1, numberOfInvokes.get());
+		Assert.assertFalse("Created and deleted file reported", flagDelete);
+	}
+
+	@Test
+	public void batchedEventsAreDeliveredTogether() throws Exception {
+		String root = "batch_test";
+		FileHelper.createDirectories(root);
+		List<List<FileEvent>> batches = new CopyOnWriteArrayList<>();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.batchLimits(null, 500L, TimeUnit.MILLISECONDS)
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectory(root)
+				.onChangedBatch(events -> {
+					batches.add(events);
+					logger.info("Batch delivered with " + events.size() + " events");
+				})
+				.build();
+		watcher.start();
+
+		for (int i = 0; i < 20; i++) {
+			FileHelper.createFile(root + "/" + FileHelper.nextFilename());
+		}
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected amount of batches", 1, batches.size());
+		Assert.assertEquals("Unexpected amount of events", 20, batches.get(0).size());
+		Assert.assertEquals(FileEvent.Kind.CREATE, batches.get(0).get(0).kind);
+	}
+
+	@Test
+	public void overflowIsRecovered() throws Exception {
+		String root = "overflow_test";
+		FileHelper.createDirectories(root);
+		Set<String> createdFiles = ConcurrentHashMap.newKeySet();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.interval(DEFAULT_SLEEP, TimeUnit.MILLISECONDS)
+				.recoverFromOverflow()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectory(root)
+				.onChanged((directory, file) -> createdFiles.add(file))
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		// More events than the watch service can queue for one directory, while the watcher is sleeping
+		int amountOfFiles = 1000;
+		for (int i = 0; i < amountOfFiles; i++) {
+			FileHelper.createFile(root + "/" + FileHelper.nextFilename());
+		}
+		Thread.sleep(DEFAULT_SLEEP * 2);
+		Assert.assertEquals("Lost events were not recovered", amountOfFiles, createdFiles.size());
+	}
+
+	@Test
+	public void eventsDroppedByAFullQueueAreRescanned() throws Exception {
+		String root = "queue_test";
+		FileHelper.createDirectories(root);
+		Set<String> createdFiles = ConcurrentHashMap.newKeySet();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.eventQueue(4, StorageWatcher.QueuePolicy.RESCAN)
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectory(root)
+				.onChanged((directory, file) -> {
+					createdFiles.add(file);
+					try {
+						Thread.sleep(10); // Slow consumer
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				})
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		int amountOfFiles = 100;
+		for (int i = 0; i < amountOfFiles; i++) {
+			FileHelper.createFile(root + "/" + FileHelper.nextFilename());
+		}
+		Thread.sleep(DEFAULT_SLEEP * 2);
+		logger.info("Metrics: " + watcher.getMetrics());
+		Assert.assertTrue("No events were dropped", watcher.getMetrics().getDroppedEvents() > 0);
+		Assert.assertEquals("Dropped events were not rescanned", amountOfFiles, createdFiles.size());
+		Assert.assertEquals(0, watcher.getMetrics().getEventQueueDepth());
+	}
+
+	@Test
+	public void modificationsWithUnchangedContentAreIgnored() throws Exception {
+		String filename = FileHelper.nextFilename();
+		FileHelper.createFile(filename);
+		FileHelper.writeToExistingFile(filename, "original content");
+		AtomicInteger numberOfInvokes = new AtomicInteger();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.ignoreUnchangedContent()
+				.coalesce(100, TimeUnit.MILLISECONDS) // Not to hash the truncated file in the middle of the rewrite
+				.specifyEvent(StandardWatchEventKinds.ENTRY_MODIFY)
+				.watchFile(filename)
+				.onChanged((dir, file) -> numberOfInvokes.incrementAndGet())
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		FileHelper.writeToExistingFile(filename, "original content");
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Rewriting the same content was reported", 0, numberOfInvokes.get());
+
+		FileHelper.writeToExistingFile(filename, "modified content");
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Changed content was not reported", numberOfInvokes.get() > 0);
+	}
+
+	@Test
+	public void changesWhileStoppedAreReportedOnRestart() throws Exception {
+		String root = "journal_test";
+		FileHelper.createDirectories(root + "/watched");
+		Path directory = Paths.get(FileHelper.getFullPath(root + "/watched"));
+		Files.write(directory.resolve("modified.txt"), "original content".getBytes());
+		Files.write(directory.resolve("deleted.txt"), "original content".getBytes());
+		Files.write(directory.resolve("unchanged.txt"), "original content".getBytes());
+		List<String> events = new CopyOnWriteArrayList<>();
+		StorageWatcherBuilder builder = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.journalSnapshots(Paths.get(FileHelper.getFullPath(root)).resolve("journals"))
+				.watchDirectory(root + "/watched")
+				.onChangedBatch(batch -> batch.forEach(event -> events.add(event.kind + " " + event.getFilename())));
+
+		watcher = builder.build();
+		watcher.start();
+		Thread.sleep(200);
+		watcher.stop();
+		Thread.sleep(200);
+		Assert.assertTrue("Existing files were reported on the first run", events.isEmpty());
+
+		Files.write(directory.resolve("modified.txt"), "modified content, which is longer".getBytes());
+		Files.delete(directory.resolve("deleted.txt"));
+		Files.write(directory.resolve("created.txt"), "new content".getBytes());
+		watcher = builder.build();
+		watcher.start();
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals(new HashSet<>(Arrays.asList("CREATE created.txt", "MODIFY modified.txt", "DELETE deleted.txt")), new HashSet<>(events));
+		Assert.assertEquals("Unexpected amount of events", 3, events.size());
+	}
+
+	@Test
+	public void movedFilesArePaired() throws Exception {
+		String root = "move_test";
+		FileHelper.createDirectories(root + "/from");
+		FileHelper.createDirectories(root + "/to");
+		Path directory = Paths.get(FileHelper.getFullPath(root));
+		Files.write(directory.resolve("from/a.tmp"), "content".getBytes());
+		List<FileEvent> events = new CopyOnWriteArrayList<>();
+		List<String> legacyCallbacks = new CopyOnWriteArrayList<>();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.pairMoves()
+				.watchDirectoryRecursively(root)
+				.onChangedBatch(events::addAll)
+				.createNext()
+				.watchDirectoryRecursively(root)
+				.onChanged((dir, file) -> legacyCallbacks.add(file))
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		Files.move(directory.resolve("from/a.tmp"), directory.resolve("to/a.json"), StandardCopyOption.ATOMIC_MOVE);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + events, 1, events.size());
+		Assert.assertEquals(FileEvent.Kind.MOVED, events.get(0).kind);
+		Assert.assertEquals(directory.resolve("from/a.tmp"), events.get(0).previousPath);
+		Assert.assertEquals(directory.resolve("to/a.json"), events.get(0).path);
+		Assert.assertEquals(new HashSet<>(Arrays.asList("a.tmp", "a.json")), new HashSet<>(legacyCallbacks));
+	}
+
+	@Test
+	public void deletedHardLinksAreAllReported() throws Exception {
+		String root = "hard_link_test";
+		FileHelper.createDirectories(root);
+		Path directory = Paths.get(FileHelper.getFullPath(root));
+		Files.write(directory.resolve("original.txt"), "content".getBytes());
+		Files.createLink(directory.resolve("link.txt"), directory.resolve("original.txt"));
+		List<FileEvent> events = new CopyOnWriteArrayList<>();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.pairMoves(true)
+				.specifyEvent(StandardWatchEventKinds.ENTRY_DELETE)
+				.watchDirectory(root)
+				.onChangedBatch(events::addAll)
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		// Both deletions have the same file key, and are read within the same drain cycle
+		Files.delete(directory.resolve("original.txt"));
+		Files.delete(directory.resolve("link.txt"));
+		Thread.sleep(DEFAULT_SLEEP);
+		Set<Path> deleted = new HashSet<>();
+		events.forEach(event -> {
+			Assert.assertEquals(FileEvent.Kind.DELETE, event.kind);
+			deleted.add(event.path);
+		});
+		Assert.assertEquals("Unexpected events " + events, 2, events.size());
+		Assert.assertEquals(new HashSet<>(Arrays.asList(directory.resolve("original.txt"), directory.resolve("link.txt"))), deleted);
+	}
+
+	@Test
+	public void stableFileIsReportedOnceItStopsGrowing() throws Exception {
+		String root = "stable_test";
+		FileHelper.createDirectories(root);
+		Path file = Paths.get(FileHelper.getFullPath(root)).resolve("upload.bin");
+		List<FileEvent> stableEvents = new CopyOnWriteArrayList<>();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.reportStableFiles(300, TimeUnit.MILLISECONDS)
+				.watchDirectory(root)
+				.onChangedBatch(events -> events.stream()
+						.filter(event -> event.kind == FileEvent.Kind.STABLE)
+						.forEach(stableEvents::add))
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		try (OutputStream output = Files.newOutputStream(file)) {
+			for (int i = 0; i < 10; i++) {
+				output.write(new byte[64 * 1024]);
+				output.flush();
+				Thread.sleep(100);
+			}
+			Assert.assertTrue("Reported as stable while growing", stableEvents.isEmpty());
+		}
+
+		for (int i = 0; i < 30 && stableEvents.isEmpty(); i++) {
+			Thread.sleep(100);
+		}
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + stableEvents, 1, stableEvents.size());
+		Assert.assertEquals(file, stableEvents.get(0).path);
+		Assert.assertEquals(10 * 64 * 1024, Files.size(file));
+	}
+
+	@Test
+	public void burstOfEventsInOneDirectoryIsDrained() throws Exception {
+		String root = "burst_test";
+		FileHelper.createDirectories(root);
+		Set<String> createdFiles = ConcurrentHashMap.newKeySet();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.recoverFromOverflow()
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchDirectory(root)
+				.onChanged((directory, file) -> createdFiles.add(file))
+				.build();
+		watcher.start();
+		Thread.sleep(200);
+
+		Path directory = Paths.get(FileHelper.getFullPath(root));
+		int amountOfEvents = 100_000;
+		for (int i = 0; i < amountOfEvents; i++) {
+			Files.createFile(directory.resolve("burst_" + i));
+		}
+		for (int i = 0; i < 300 && createdFiles.size() < amountOfEvents; i++) {
+			Thread.sleep(100);
+		}
+		Assert.assertEquals("Events of the burst were lost", amountOfEvents, createdFiles.size());
+
+		// The key must still be registered after the burst
+		Files.createFile(directory.resolve("after_burst"));
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Directory is no longer watched after the burst", createdFiles.contains("after_burst"));
+	}
+
+	@Test
+	public void metricsAreRecordedAndRegistered() throws Exception {
+		String filename = FileHelper.nextFilename();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.registerMetricsMBean("metrics_test")
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.watchFile(filename)
+				.onChanged((directory, file) -> logger.info("Created " + file))
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(filename);
+		FileHelper.createFile(FileHelper.nextFilename());
+		Thread.sleep(DEFAULT_SLEEP);
+
+		StorageWatcherMetrics metrics = watcher.getMetrics();
+		logger.info("Metrics: " + metrics);
+		Assert.assertEquals(2, metrics.getCreatedEvents());
+		Assert.assertEquals(1, metrics.getFilteredEvents());
+		Assert.assertEquals(1, metrics.getCallbackLatency().getCount());
+		Assert.assertEquals(1, metrics.getWatchedKeys());
+
+		ObjectName name = new ObjectName("com.frejdh.util.watcher:type=StorageWatcher,name=\"metrics_test\"");
+		Assert.assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CreatedEvents"));
+		CompositeData callbackLatency = (CompositeData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CallbackLatency");
+		Assert.assertEquals(1L, callbackLatency.get("count"));
+		watcher.stop();
+		watcher.getExecutionThread().join(DEFAULT_SLEEP);
+		Assert.assertFalse("MBean not unregistered", ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+	}
+
+	@Test
+	public void pollingEngineDetectsChanges() throws Exception {
+		String filename = FileHelper.nextFilename();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.engine(StorageWatcher.Engine.POLLING)
+				.interval(100, TimeUnit.MILLISECONDS)
+				.watchFile(filename)
+				.onChangedBatch(events -> events.forEach(event -> {
+					flagCreate |= event.kind == FileEvent.Kind.CREATE;
+					flagModify |= event.kind == FileEvent.Kind.MODIFY;
+					flagDelete |= event.kind == FileEvent.Kind.DELETE;
+					logger.info("Polled " + event);
+				}))
+				.build();
+		watcher.start();
+
+		FileHelper.createFile(filename);
+		Thread.sleep(500);
+		FileHelper.writeToExistingFile(filename, "file_to_watch.txt of modification");
+		Thread.sleep(500);
+		FileHelper.deleteFile(filename);
+		Thread.sleep(500);
+		Assert.assertTrue("Flag Create not set", flagCreate);
+		Assert.assertTrue("Flag Modify not set", flagModify);
+		Assert.assertTrue("Flag Delete not set", flagDelete);
+	}
+
+	@Test
+	public void engineIsReportedAsResolved() throws Exception {
+		String root = "engine_test";
+		FileHelper.createDirectories(root);
+		for (StorageWatcher.Engine engine : StorageWatcher.Engine.values()) {
+			watcher = StorageWatcherBuilder.getBuilder()
+					.engine(engine)
+					.watchDirectory(root)
+					.onChanged((directory, filename) -> { })
+					.build();
+			watcher.start();
+			Assert.assertNotEquals(StorageWatcher.Engine.AUTO, watcher.getEngine());
+			if (engine == StorageWatcher.Engine.POLLING || engine == StorageWatcher.Engine.WATCH_SERVICE) {
+				Assert.assertEquals(engine, watcher.getEngine());
+			}
+			watcher.stop();
+		}
+	}
 }
@@ -0,0 +1,91 @@
+package com.frejdh.util.watcher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static com.frejdh.util.watcher.StorageWatcher.ENTRY_CLOSE_WRITE;
+
+public class CoalescerTests {
+
+	private static final Path DIRECTORY = Paths.get("/watched");
+	private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	public void standardEventsAreFoldedIntoOneNetEvent() {
+		Assert.assertEquals(Collections.singletonList("ENTRY_CREATE"), coalesce(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_MODIFY));
+		Assert.assertEquals(Collections.emptyList(), coalesce(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+		Assert.assertEquals(Collections.singletonList("ENTRY_MODIFY"), coalesce(ENTRY_DELETE, ENTRY_CREATE));
+	}
+
+	@Test
+	public void closeAfterWritingIsReportedAfterTheNetEvent() {
+		Assert.assertEquals(Arrays.asList("ENTRY_CREATE", "ENTRY_CLOSE_WRITE"), coalesce(ENTRY_CREATE, ENTRY_CLOSE_WRITE));
+		Assert.assertEquals(Arrays.asList("ENTRY_CREATE", "ENTRY_CLOSE_WRITE"), coalesce(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_CLOSE_WRITE, ENTRY_MODIFY));
+		Assert.assertEquals(Arrays.asList("ENTRY_MODIFY", "ENTRY_CLOSE_WRITE"), coalesce(ENTRY_MODIFY, ENTRY_CLOSE_WRITE, ENTRY_CLOSE_WRITE));
+		Assert.assertEquals(Collections.singletonList("ENTRY_CLOSE_WRITE"), coalesce(ENTRY_CLOSE_WRITE, ENTRY_CLOSE_WRITE));
+	}
+
+	@Test
+	public void closeAfterWritingIsDroppedForDeletedFiles() {
+		Assert.assertEquals(Collections.emptyList(), coalesce(ENTRY_CREATE, ENTRY_CLOSE_WRITE, ENTRY_DELETE));
+		Assert.assertEquals(Collections.singletonList("ENTRY_DELETE"), coalesce(ENTRY_MODIFY, ENTRY_CLOSE_WRITE, ENTRY_DELETE));
+		Assert.assertEquals(Collections.singletonList("ENTRY_DELETE"), coalesce(ENTRY_CLOSE_WRITE, ENTRY_DELETE));
+		// Written again after being deleted
+		Assert.assertEquals(Arrays.asList("ENTRY_MODIFY", "ENTRY_CLOSE_WRITE"), coalesce(ENTRY_CLOSE_WRITE, ENTRY_DELETE, ENTRY_CREATE, ENTRY_CLOSE_WRITE));
+	}
+
+	@Test
+	public void closeAfterWritingIsOnlyFoldableIntoAnotherClose() {
+		Assert.assertTrue(StorageWatcherCoalescer.isFoldable(ENTRY_CLOSE_WRITE, ENTRY_CLOSE_WRITE));
+		Assert.assertEquals(ENTRY_CLOSE_WRITE, StorageWatcherCoalescer.fold(ENTRY_CLOSE_WRITE, ENTRY_CLOSE_WRITE));
+		Assert.assertTrue(StorageWatcherCoalescer.isFoldable(ENTRY_CREATE, ENTRY_MODIFY));
+		for (WatchEvent.Kind<?> kind : Arrays.asList(ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE)) {
+			Assert.assertFalse(StorageWatcherCoalescer.isFoldable(kind, ENTRY_CLOSE_WRITE));
+			Assert.assertFalse(StorageWatcherCoalescer.isFoldable(ENTRY_CLOSE_WRITE, kind));
+		}
+	}
+
+	@Test
+	public void filesAreCoalescedSeparately() {
+		StorageWatcherCoalescer coalescer = new StorageWatcherCoalescer(WINDOW_NANOS, TimeUnit.NANOSECONDS);
+		coalescer.offer(null, DIRECTORY, ENTRY_CREATE, Paths.get("first.txt"), 0);
+		coalescer.offer(null, DIRECTORY, ENTRY_CREATE, Paths.get("second.txt"), 10);
+		coalescer.offer(null, DIRECTORY, ENTRY_CLOSE_WRITE, Paths.get("first.txt"), 20);
+
+		List<String> events = new ArrayList<>();
+		coalescer.flush(WINDOW_NANOS + 10, (components, kind, filename) -> events.add(kind.name() + " " + filename));
+		Assert.assertEquals(Collections.singletonList("ENTRY_CREATE second.txt"), events);
+		Assert.assertEquals(10, coalescer.nanosUntilNextFlush(WINDOW_NANOS + 10));
+		coalescer.flush(WINDOW_NANOS + 20, (components, kind, filename) -> events.add(kind.name() + " " + filename));
+		Assert.assertEquals(Arrays.asList("ENTRY_CREATE second.txt", "ENTRY_CREATE first.txt", "ENTRY_CLOSE_WRITE first.txt"), events);
+		Assert.assertEquals(-1, coalescer.nanosUntilNextFlush(WINDOW_NANOS + 20));
+	}
+
+	/**
+	 * Coalesce consecutive events of one file, and flush them once quiet.
+	 */
+	private static List<String> coalesce(WatchEvent.Kind<?>... kinds) {
+		StorageWatcherCoalescer coalescer = new StorageWatcherCoalescer(WINDOW_NANOS, TimeUnit.NANOSECONDS);
+		long now = 0;
+		for (WatchEvent.Kind<?> kind : kinds) {
+			coalescer.offer(null, DIRECTORY, kind, Paths.get("file.txt"), now++);
+		}
+
+		List<String> events = new ArrayList<>();
+		coalescer.flush(now + WINDOW_NANOS, (components, kind, filename) -> events.add(kind.name()));
+		Assert.assertEquals(-1, coalescer.nanosUntilNextFlush(now + WINDOW_NANOS));
+		return events;
+	}
+}
@@ -0,0 +1,315 @@
+package com.frejdh.util.watcher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.frejdh.util.watcher.StorageWatcherInotifyEngine.*;
+
+public class EngineTests {
+
+	private static final Path FIRST = Paths.get("/watched/first");
+	private static final Path SECOND = Paths.get("/watched/second");
+
+	@Test
+	public void autoPollsWhenTheJdkOnlyPolls() throws IOException {
+		FakePlatform platform = new FakePlatform(false);
+		Assert.assertEquals(StorageWatcher.Engine.POLLING, settingsWith(StorageWatcher.Engine.AUTO).resolveEngine(Arrays.asList(FIRST, SECOND), platform));
+	}
+
+	@Test
+	public void autoPollsWhenAnyDirectoryIsRemote() throws IOException {
+		FakePlatform platform = new FakePlatform(true);
+		platform.types.put(FIRST, "ext4");
+		platform.types.put(SECOND, "NFS4");
+		Assert.assertEquals(StorageWatcher.Engine.POLLING, settingsWith(StorageWatcher.Engine.AUTO).resolveEngine(Arrays.asList(FIRST, SECOND), platform));
+
+		platform.types.put(SECOND, "xfs");
+		Assert.assertEquals(StorageWatcher.Engine.WATCH_SERVICE, settingsWith(StorageWatcher.Engine.AUTO).resolveEngine(Arrays.asList(FIRST, SECOND), platform));
+	}
+
+	@Test
+	public void autoLooksUpEachDeviceOnce() throws IOException {
+		FakePlatform platform = new FakePlatform(true);
+		platform.types.put(FIRST, "ext4");
+		platform.types.put(SECOND, "cifs"); // Not looked up, as it's on the same device as the first one
+		platform.devices.put(FIRST, 1L);
+		platform.devices.put(SECOND, 1L);
+		Assert.assertEquals(StorageWatcher.Engine.WATCH_SERVICE, settingsWith(StorageWatcher.Engine.AUTO).resolveEngine(Arrays.asList(FIRST, SECOND), platform));
+		Assert.assertEquals(Collections.singletonList(FIRST), platform.lookedUp);
+	}
+
+	@Test
+	public void configuredEnginesAreNeverAuto() throws IOException {
+		FakePlatform platform = new FakePlatform(true);
+		for (StorageWatcher.Engine engine : StorageWatcher.Engine.values()) {
+			StorageWatcher.Engine resolved = settingsWith(engine).resolveEngine(Collections.singletonList(FIRST), platform);
+			Assert.assertNotEquals(StorageWatcher.Engine.AUTO, resolved);
+			if (engine == StorageWatcher.Engine.NATIVE) {
+				Assert.assertEquals(StorageWatcherInotifyEngine.isAvailable() ? engine : StorageWatcher.Engine.WATCH_SERVICE, resolved);
+			} else if (engine != StorageWatcher.Engine.AUTO) {
+				Assert.assertEquals(engine, resolved);
+			}
+		}
+	}
+
+	@Test
+	public void inotifyMaskFollowsTheEvents() {
+		Assert.assertEquals(IN_ONLYDIR | IN_CREATE | IN_MOVED_TO, maskOf(kinds(StandardWatchEventKinds.ENTRY_CREATE)));
+		Assert.assertEquals(IN_ONLYDIR | IN_DELETE | IN_MOVED_FROM | IN_MODIFY | IN_ATTRIB,
+				maskOf(kinds(StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY)));
+		Assert.assertEquals(IN_ONLYDIR | IN_CLOSE_WRITE, maskOf(kinds(StorageWatcher.ENTRY_CLOSE_WRITE)));
+	}
+
+	@Test
+	public void closesAfterWritingAreCounted() {
+		StorageWatcherMetricsRecorder metrics = new StorageWatcherMetricsRecorder(new StorageWatcherHistogram(), () -> 0, () -> 0, () -> 0, () -> 0);
+		metrics.eventReceived(StorageWatcher.ENTRY_CLOSE_WRITE);
+		metrics.eventReceived(StorageWatcher.ENTRY_CLOSE_WRITE);
+		metrics.eventReceived(StandardWatchEventKinds.ENTRY_MODIFY);
+		Assert.assertEquals(2, metrics.getCloseWriteEvents());
+		Assert.assertEquals(1, metrics.getModifiedEvents());
+	}
+
+	@Test
+	public void inotifyEventsAreReadInBulk() throws Exception {
+		FakeSyscalls syscalls = new FakeSyscalls();
+		StorageWatcherInotifyEngine engine = new StorageWatcherInotifyEngine(syscalls);
+		WatchKey first = engine.register(FIRST, kinds(StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY));
+		WatchKey second = engine.register(SECOND, kinds(StandardWatchEventKinds.ENTRY_DELETE, StorageWatcher.ENTRY_CLOSE_WRITE));
+		Assert.assertSame(first, engine.register(FIRST, kinds(StandardWatchEventKinds.ENTRY_CREATE)));
+		Assert.assertEquals(IN_ONLYDIR | IN_CREATE | IN_MOVED_TO, (int) syscalls.masks.get(FIRST));
+		Assert.assertEquals(FIRST, first.watchable());
+
+		syscalls.events(
+				event(1, IN_CREATE, 0, "created.txt"),
+				event(1, IN_MODIFY, 0, "created.txt"),
+				event(1, IN_MODIFY, 0, "created.txt"), // Merged into the previous one
+				event(2, IN_CLOSE_WRITE, 0, "written-with-a-longer-name.txt"),
+				event(2, IN_MOVED_FROM, 42, "moved.txt"),
+				event(1, IN_MOVED_TO, 42, "moved.txt"),
+				event(3, IN_CREATE, 0, "cancelled.txt"), // Unknown descriptor
+				event(1, IN_CREATE | 0x40000000, 0, "directory")); // IN_ISDIR
+		Assert.assertSame(first, engine.take());
+		Assert.assertSame(second, engine.take());
+		Assert.assertNull(engine.poll());
+
+		List<WatchEvent<?>> firstEvents = first.pollEvents();
+		Assert.assertEquals(Arrays.asList("ENTRY_CREATE created.txt 1 0", "ENTRY_MODIFY created.txt 2 0", "ENTRY_CREATE moved.txt 1 42",
+				"ENTRY_CREATE directory 1 0"), describe(firstEvents));
+		Assert.assertEquals(Arrays.asList("ENTRY_CLOSE_WRITE written-with-a-longer-name.txt 1 0", "ENTRY_DELETE moved.txt 1 42"),
+				describe(second.pollEvents()));
+		Assert.assertEquals(FileEvent.Kind.CLOSE_WRITE, FileEvent.Kind.of(StorageWatcher.ENTRY_CLOSE_WRITE));
+
+		// Signalled again on a reset only with new events
+		Assert.assertTrue(first.reset());
+		Assert.assertTrue(second.reset());
+		Assert.assertNull(engine.poll(10, TimeUnit.MILLISECONDS));
+		syscalls.events(event(2, IN_DELETE, 0, "deleted.txt"));
+		Assert.assertSame(second, engine.poll(1, TimeUnit.SECONDS));
+		Assert.assertEquals(Collections.singletonList("ENTRY_DELETE deleted.txt 1 0"), describe(second.pollEvents()));
+		engine.close();
+	}
+
+	@Test
+	public void inotifyOverflowAndRemovedDirectories() throws Exception {
+		FakeSyscalls syscalls = new FakeSyscalls();
+		StorageWatcherInotifyEngine engine = new StorageWatcherInotifyEngine(syscalls);
+		WatchKey first = engine.register(FIRST, kinds(StandardWatchEventKinds.ENTRY_CREATE));
+		WatchKey second = engine.register(SECOND, kinds(StandardWatchEventKinds.ENTRY_CREATE));
+
+		syscalls.events(event(-1, IN_Q_OVERFLOW, 0, null), event(2, IN_IGNORED, 0, null));
+		Assert.assertSame(first, engine.poll());
+		Assert.assertSame(second, engine.poll());
+		Assert.assertEquals(Collections.singletonList("OVERFLOW null 1 0"), describe(first.pollEvents()));
+		Assert.assertEquals(Collections.singletonList("OVERFLOW null 1 0"), describe(second.pollEvents()));
+		Assert.assertFalse(second.isValid());
+		Assert.assertFalse(second.reset());
+		Assert.assertTrue(first.reset());
+
+		first.cancel();
+		Assert.assertFalse(first.isValid());
+		Assert.assertEquals(Collections.singletonList(1), syscalls.removed);
+		syscalls.events(event(1, IN_CREATE, 0, "after-cancel.txt"));
+		Assert.assertNull(engine.poll());
+		engine.close();
+		Assert.assertTrue(syscalls.closed);
+	}
+
+	@Test
+	public void inotifyIsReleasedOnceTheReaderIsDone() throws Exception {
+		FakeSyscalls syscalls = new FakeSyscalls();
+		StorageWatcherInotifyEngine engine = new StorageWatcherInotifyEngine(syscalls);
+		engine.register(FIRST, kinds(StandardWatchEventKinds.ENTRY_CREATE));
+
+		CountDownLatch closed = new CountDownLatch(1);
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		Thread reader = new Thread(() -> {
+			try {
+				engine.take();
+			} catch (Throwable e) {
+				failures.add(e);
+			}
+			closed.countDown();
+		});
+		reader.start();
+		syscalls.reading.await(1, TimeUnit.SECONDS);
+		engine.close();
+		Assert.assertTrue(closed.await(1, TimeUnit.SECONDS));
+		Assert.assertTrue(syscalls.closed);
+		Assert.assertFalse("Released during the read", syscalls.closedWhileReading);
+		Assert.assertEquals(1, failures.size());
+		Assert.assertTrue(failures.get(0) instanceof ClosedWatchServiceException);
+
+		// Interrupted between the waits
+		StorageWatcherInotifyEngine interrupted = new StorageWatcherInotifyEngine(new FakeSyscalls());
+		Thread.currentThread().interrupt();
+		try {
+			interrupted.take();
+			Assert.fail("Not interrupted");
+		} catch (InterruptedException e) {
+			// Expected
+		} finally {
+			interrupted.close();
+		}
+	}
+
+	private static StorageWatcherSettings settingsWith(StorageWatcher.Engine engine) {
+		return new StorageWatcherSettings(null, null, null, null, null, null, null, null, null, null, null, null,
+				engine, null, null, null, null, null, null, null, null, null, null, null);
+	}
+
+	private static WatchEvent.Kind<?>[] kinds(WatchEvent.Kind<?>... kinds) {
+		return kinds;
+	}
+
+	private static List<String> describe(List<WatchEvent<?>> events) {
+		List<String> descriptions = new ArrayList<>();
+		for (WatchEvent<?> event : events) {
+			descriptions.add(event.kind().name() + " " + event.context() + " " + event.count() + " " + cookieOf(event));
+		}
+		return descriptions;
+	}
+
+	/**
+	 * A struct inotify_event, with its name padded like the kernel does.
+	 */
+	private static byte[] event(int descriptor, int mask, int cookie, String name) {
+		byte[] bytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : new byte[0];
+		int length = name != null ? (bytes.length / 16 + 1) * 16 : 0;
+		ByteBuffer buffer = ByteBuffer.allocate(EVENT_HEADER_SIZE + length).order(java.nio.ByteOrder.nativeOrder());
+		buffer.putInt(descriptor).putInt(mask).putInt(cookie).putInt(length).put(bytes);
+		return buffer.array();
+	}
+
+	private static class FakePlatform implements StorageWatcherDefaultEngine.Platform {
+		private final boolean nativeWatchService;
+		private final Map<Path, String> types = new HashMap<>();
+		private final Map<Path, Object> devices = new HashMap<>();
+		private final List<Path> lookedUp = new ArrayList<>();
+
+		private FakePlatform(boolean nativeWatchService) {
+			this.nativeWatchService = nativeWatchService;
+		}
+
+		@Override
+		public boolean hasNativeWatchService() {
+			return nativeWatchService;
+		}
+
+		@Override
+		public String fileStoreType(Path directory) {
+			lookedUp.add(directory);
+			return types.getOrDefault(directory, "ext4");
+		}
+
+		@Override
+		public Object deviceOf(Path directory) {
+			return devices.get(directory);
+		}
+	}
+
+	private static class FakeSyscalls implements StorageWatcherInotifyEngine.Syscalls {
+		private final Map<Path, Integer> descriptors = new HashMap<>();
+		private final Map<Path, Integer> masks = new HashMap<>();
+		private final Queue<byte[]> pending = new ArrayDeque<>();
+		private final List<Integer> removed = new ArrayList<>();
+		private final CountDownLatch reading = new CountDownLatch(1);
+		private volatile boolean inRead;
+		private volatile boolean closed;
+		private volatile boolean closedWhileReading;
+
+		/**
+		 * Queue events, which are all read by the next read.
+		 */
+		private synchronized void events(byte[]... events) {
+			ByteBuffer buffer = ByteBuffer.allocate(Arrays.stream(events).mapToInt(event -> event.length).sum());
+			for (byte[] event : events) {
+				buffer.put(event);
+			}
+			pending.add(buffer.array());
+		}
+
+		@Override
+		public synchronized int addWatch(Path directory, int mask) {
+			masks.put(directory, mask);
+			return descriptors.computeIfAbsent(directory, key -> descriptors.size() + 1);
+		}
+
+		@Override
+		public synchronized void removeWatch(int descriptor) {
+			removed.add(descriptor);
+		}
+
+		@Override
+		public int read(ByteBuffer buffer, int timeoutMillis) throws IOException {
+			inRead = true;
+			try {
+				reading.countDown();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+				do {
+					synchronized (this) {
+						byte[] events = pending.poll();
+						if (events != null) {
+							buffer.put(events);
+							return events.length;
+						}
+					}
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						throw new IOException(e); // The real system calls aren't interrupted
+					}
+				} while (System.nanoTime() - deadline < 0);
+				return 0;
+			} finally {
+				inRead = false;
+			}
+		}
+
+		@Override
+		public void close() {
+			closedWhileReading |= inRead;
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.frejdh.util.watcher;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class FingerprintsTests {
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws Exception {
+		directory = Files.createTempDirectory("fingerprints_test");
+	}
+
+	@After
+	public void deleteDirectory() throws Exception {
+		try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void closesAreComparedWithThePreviousClose() throws Exception {
+		Path file = Files.write(directory.resolve("file.txt"), new byte[0]);
+		StorageWatcherFingerprints fingerprints = new StorageWatcherFingerprints(StorageWatcherFingerprints.DEFAULT_MEMORY_MAP_THRESHOLD);
+		fingerprints.update(file);
+
+		// Written, so both the modification and the close changed the contents
+		Files.write(file, "content".getBytes());
+		Assert.assertFalse(fingerprints.isUnchanged(file));
+		Assert.assertFalse(fingerprints.isUnchangedSinceClosed(file));
+
+		// Rewritten with the same contents
+		Files.write(file, "content".getBytes());
+		Assert.assertTrue(fingerprints.isUnchanged(file));
+		Assert.assertTrue(fingerprints.isUnchangedSinceClosed(file));
+
+		// The modifications of a write have already been checked by the time that the file is closed
+		Files.write(file, "other content".getBytes());
+		Assert.assertFalse(fingerprints.isUnchanged(file));
+		Assert.assertTrue(fingerprints.isUnchanged(file));
+		Assert.assertFalse(fingerprints.isUnchangedSinceClosed(file));
+
+		fingerprints.remove(file);
+		Assert.assertFalse("Unknown files are changed", fingerprints.isUnchangedSinceClosed(file));
+	}
+
+	@Test
+	public void filesAreHashedTheSameWithAndWithoutMemoryMapping() throws Exception {
+		byte[] contents = new byte[200_003]; // Several reads through the buffer, and a partial stripe at the end
+		new Random(42).nextBytes(contents);
+		Path file = Files.write(directory.resolve("file.bin"), contents);
+		StorageWatcherFingerprints.XxHash64 expected = new StorageWatcherFingerprints.XxHash64();
+		expected.update(ByteBuffer.wrap(contents));
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			Assert.assertEquals(expected.digest(), StorageWatcherFingerprints.hash(channel, contents.length, 0));
+			Assert.assertEquals(expected.digest(), StorageWatcherFingerprints.hash(channel, contents.length, Long.MAX_VALUE));
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// Larger than the heap arrays that the file could be read into at once, and truncated while reading
+			Assert.assertEquals(expected.digest(), StorageWatcherFingerprints.hash(channel, 3L << 30, Long.MAX_VALUE));
+		}
+	}
+}
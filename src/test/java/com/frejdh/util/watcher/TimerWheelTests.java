@@ -0,0 +1,173 @@
+package com.frejdh.util.watcher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class TimerWheelTests {
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long MAX_TICKS = 1L << 36;
+
+	@Test
+	public void deadlinesOnEveryLevelAreDueOnTime() {
+		long[] deltas = { 1, 63, 64, 65, 4095, 4096, 4097, 262_143, 262_144, 16_777_215, 16_777_216, 1L << 30, MAX_TICKS - 1 };
+		for (long start : new long[] { 0, 1_000_003 }) {
+			for (long delta : deltas) {
+				StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, at(start));
+				wheel.schedule("key", at(start + delta));
+				Assert.assertEquals("Due early, delta " + delta, Collections.emptyList(), advance(wheel, start + delta - 1));
+				Assert.assertTrue(wheel.contains("key"));
+				Assert.assertEquals("Not due, delta " + delta, Collections.singletonList("key"), advance(wheel, start + delta));
+				Assert.assertEquals(0, wheel.size());
+			}
+		}
+	}
+
+	@Test
+	public void wakeUpsForCascadingNeverPassTheDeadline() {
+		long start = 1_000_003;
+		long deadline = start + 16_777_216 + 4097;
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, at(start));
+		wheel.schedule("key", at(deadline));
+
+		long now = at(start);
+		List<String> fired = new ArrayList<>();
+		int wakeUps = 0;
+		while (fired.isEmpty()) {
+			long wait = wheel.nanosUntilNextDeadline(now);
+			Assert.assertTrue("Woke up too late", now + wait <= at(deadline));
+			now += wait;
+			wheel.advance(now, fired::add);
+			wakeUps++;
+		}
+		Assert.assertEquals(at(deadline), now);
+		Assert.assertTrue("Too many wake-ups: " + wakeUps, wakeUps <= 6);
+	}
+
+	@Test
+	public void keysOnHigherLevelsCanBeRescheduledAndCancelled() {
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, 0);
+		wheel.schedule("earlier", at(5000));
+		wheel.schedule("cancelled", at(5000));
+		wheel.schedule("later", at(3));
+
+		wheel.schedule("earlier", at(10));
+		wheel.schedule("later", at(70_000));
+		Assert.assertTrue(wheel.cancel("cancelled"));
+		Assert.assertFalse(wheel.cancel("cancelled"));
+		Assert.assertEquals(2, wheel.size());
+
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 9));
+		Assert.assertEquals(Collections.singletonList("earlier"), advance(wheel, 10));
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 69_999));
+		Assert.assertEquals(Collections.singletonList("later"), advance(wheel, 70_000));
+		Assert.assertFalse(wheel.cancel("later"));
+	}
+
+	@Test
+	public void deadlinesBeyondTheReachOfTheWheel() {
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.NANOSECONDS, 0);
+		wheel.schedule("beyond", MAX_TICKS + 1000);
+		wheel.schedule("far beyond", 3 * MAX_TICKS);
+
+		Assert.assertEquals(Collections.emptyList(), advanceNanos(wheel, MAX_TICKS - 1));
+		Assert.assertEquals(Collections.emptyList(), advanceNanos(wheel, MAX_TICKS + 999));
+		Assert.assertEquals(Collections.singletonList("beyond"), advanceNanos(wheel, MAX_TICKS + 1000));
+		Assert.assertEquals(Collections.emptyList(), advanceNanos(wheel, 3 * MAX_TICKS - 1));
+		Assert.assertEquals(Collections.singletonList("far beyond"), advanceNanos(wheel, 3 * MAX_TICKS));
+	}
+
+	@Test
+	public void advanceOverALongIdleGap() {
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, 0);
+		wheel.schedule("first", at(10));
+		wheel.schedule("second", at(100_000));
+		Assert.assertEquals(Arrays.asList("first", "second"), sorted(advance(wheel, 50_000_000)));
+
+		// Deadlines after the gap are relative to the time that was advanced to
+		wheel.schedule("after gap", at(50_000_064));
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 50_000_063));
+		Assert.assertEquals(Collections.singletonList("after gap"), advance(wheel, 50_000_064));
+
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 90_000_000)); // Empty wheel
+		wheel.schedule("after empty gap", at(90_004_097));
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 90_004_096));
+		Assert.assertEquals(Collections.singletonList("after empty gap"), advance(wheel, 90_004_097));
+
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 95_000_000));
+		wheel.schedule("already due", at(90_000_000));
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 95_000_000));
+		Assert.assertEquals(Collections.singletonList("already due"), advance(wheel, 95_000_001));
+	}
+
+	@Test
+	public void emptyWheelHasNoNextDeadline() {
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, 0);
+		Assert.assertEquals(-1, wheel.nanosUntilNextDeadline(0));
+
+		wheel.schedule("key", at(20));
+		Assert.assertEquals(at(20), wheel.nanosUntilNextDeadline(0));
+		wheel.cancel("key");
+		Assert.assertEquals(-1, wheel.nanosUntilNextDeadline(0));
+
+		wheel.schedule("key", at(20));
+		advance(wheel, 20);
+		Assert.assertEquals(-1, wheel.nanosUntilNextDeadline(at(20)));
+	}
+
+	@Test
+	public void deadlinesAreRoundedUpToTheNextTick() {
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, 0);
+		wheel.schedule("key", at(5) + 1);
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 5));
+		Assert.assertEquals(Collections.singletonList("key"), advance(wheel, 6));
+	}
+
+	@Test
+	public void actionCanRescheduleKeysWhileAdvancing() {
+		StorageWatcherTimerWheel<String> wheel = new StorageWatcherTimerWheel<>(1, TimeUnit.MILLISECONDS, 0);
+		wheel.schedule("a", at(10));
+		wheel.schedule("b", at(10));
+		List<String> fired = new ArrayList<>();
+		wheel.advance(at(10), key -> {
+			fired.add(key);
+			wheel.schedule(key, at(110)); // Itself, again
+			wheel.schedule(key.equals("a") ? "b" : "a", at(50)); // The other one, which is then no longer due
+			wheel.schedule("due", at(0)); // Already due, so it's due on the next tick
+		});
+		Assert.assertEquals("Unexpected keys " + fired, 1, fired.size());
+		String first = fired.get(0);
+		String second = first.equals("a") ? "b" : "a";
+
+		Assert.assertEquals(Collections.emptyList(), advance(wheel, 10));
+		Assert.assertEquals(Collections.singletonList("due"), advance(wheel, 11));
+		Assert.assertEquals(Collections.singletonList(second), advance(wheel, 50));
+		Assert.assertEquals(Collections.singletonList(first), advance(wheel, 110));
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	private static long at(long tick) {
+		return tick * TICK_NANOS;
+	}
+
+	private static List<String> advance(StorageWatcherTimerWheel<String> wheel, long tick) {
+		return advanceNanos(wheel, at(tick));
+	}
+
+	private static List<String> advanceNanos(StorageWatcherTimerWheel<String> wheel, long now) {
+		List<String> fired = new ArrayList<>();
+		wheel.advance(now, fired::add);
+		return fired;
+	}
+
+	private static List<String> sorted(List<String> keys) {
+		Collections.sort(keys);
+		return keys;
+	}
+}
@@ -0,0 +1,63 @@
+package com.frejdh.util;
+
+import com.frejdh.util.watcher.FileEvent;
+import com.frejdh.util.watcher.StorageWatcher;
+import com.frejdh.util.watcher.StorageWatcherBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class NativeEngineTests {
+
+	private final long DEFAULT_SLEEP = 1500;
+	private StorageWatcher watcher;
+
+	@After
+	public void cleanup() throws Exception {
+		if (watcher != null) {
+			watcher.stop();
+		}
+		FileHelper.cleanup();
+	}
+
+	@Test
+	public void writtenFilesAndMovesAreReported() throws Exception {
+		Assume.assumeTrue("inotify is only available on Linux", "Linux".equals(System.getProperty("os.name")));
+		String root = "native_engine_test";
+		FileHelper.createDirectories(root);
+		Path directory = Paths.get(FileHelper.getFullPath(root));
+		List<FileEvent> events = new CopyOnWriteArrayList<>();
+		watcher = StorageWatcherBuilder.getBuilder()
+				.engine(StorageWatcher.Engine.NATIVE)
+				.eventDriven()
+				.pairMoves(true)
+				.specifyEvents(StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StorageWatcher.ENTRY_CLOSE_WRITE)
+				.watchDirectory(root)
+				.onChangedBatch(events::addAll)
+				.build();
+		watcher.start();
+		Assert.assertEquals(StorageWatcher.Engine.NATIVE, watcher.getEngine());
+		Thread.sleep(200);
+
+		Files.write(directory.resolve("written.txt"), "content".getBytes());
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Not closed after writing " + events, events.stream()
+				.anyMatch(event -> event.kind == FileEvent.Kind.CLOSE_WRITE && event.path.equals(directory.resolve("written.txt"))));
+
+		events.clear();
+		Files.move(directory.resolve("written.txt"), directory.resolve("renamed.txt"));
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + events, 1, events.size());
+		Assert.assertEquals(FileEvent.Kind.MOVED, events.get(0).kind);
+		Assert.assertEquals(directory.resolve("written.txt"), events.get(0).previousPath);
+		Assert.assertEquals(directory.resolve("renamed.txt"), events.get(0).path);
+	}
+}
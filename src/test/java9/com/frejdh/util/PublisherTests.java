@@ -0,0 +1,179 @@
+package com.frejdh.util;
+
+import com.frejdh.util.watcher.FileEvent;
+import com.frejdh.util.watcher.StorageWatcherBuilder;
+import com.frejdh.util.watcher.StorageWatcherPublisher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+public class PublisherTests {
+
+	private final long DEFAULT_SLEEP = 1500;
+	private TestSubscriber subscriber;
+
+	@After
+	public void cleanup() throws Exception {
+		if (subscriber != null && subscriber.subscription != null) {
+			subscriber.subscription.cancel();
+		}
+		FileHelper.cleanup();
+	}
+
+	@Test
+	public void onlyRequestedEventsAreSignalled() throws Exception {
+		Path directory = createDirectory("publisher_demand_test");
+		subscriber = new TestSubscriber(subscription -> subscription.request(2));
+		publisher(directory, StorageWatcherPublisher.DEFAULT_BUFFER_SIZE, StorageWatcherPublisher.WhenFull.PAUSE).subscribe(subscriber);
+		Thread.sleep(200);
+
+		createFiles(directory, 5);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + subscriber.events, 2, subscriber.events.size());
+
+		subscriber.subscription.request(3);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + subscriber.events, 5, subscriber.events.size());
+		Assert.assertTrue(subscriber.errors.isEmpty());
+	}
+
+	@Test
+	public void pausedWatcherDeliversAllEventsOnceRequested() throws Exception {
+		Path directory = createDirectory("publisher_pause_test");
+		subscriber = new TestSubscriber(subscription -> { });
+		publisher(directory, 2, StorageWatcherPublisher.WhenFull.PAUSE).subscribe(subscriber);
+		Thread.sleep(200);
+
+		createFiles(directory, 10);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertTrue("Signalled without demand " + subscriber.events, subscriber.events.isEmpty());
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		Thread.sleep(DEFAULT_SLEEP);
+		Set<Path> files = new HashSet<>();
+		subscriber.events.forEach(event -> files.add(event.path));
+		Assert.assertEquals("Unexpected events " + subscriber.events, 10, files.size());
+	}
+
+	@Test
+	public void eventsForBufferedFilesAreCoalesced() throws Exception {
+		Path directory = createDirectory("publisher_coalesce_test");
+		subscriber = new TestSubscriber(subscription -> { });
+		publisher(directory, 1, StorageWatcherPublisher.WhenFull.COALESCE).subscribe(subscriber);
+		Thread.sleep(200);
+
+		Path file = directory.resolve("coalesced.txt");
+		Files.write(file, "created".getBytes());
+		Thread.sleep(100);
+		for (int i = 0; i < 5; i++) {
+			Files.write(file, ("modification " + i).getBytes());
+			Thread.sleep(50);
+		}
+		Thread.sleep(DEFAULT_SLEEP);
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + subscriber.events, 1, subscriber.events.size());
+		Assert.assertEquals(FileEvent.Kind.CREATE, subscriber.events.get(0).kind);
+		Assert.assertEquals(file, subscriber.events.get(0).path);
+	}
+
+	@Test
+	public void cancelledSubscriptionIsNotSignalled() throws Exception {
+		Path directory = createDirectory("publisher_cancel_test");
+		subscriber = new TestSubscriber(subscription -> subscription.request(Long.MAX_VALUE));
+		publisher(directory, StorageWatcherPublisher.DEFAULT_BUFFER_SIZE, StorageWatcherPublisher.WhenFull.PAUSE).subscribe(subscriber);
+		Thread.sleep(200);
+
+		createFiles(directory, 1);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Unexpected events " + subscriber.events, 1, subscriber.events.size());
+		Assert.assertFalse("Signalled from an asynchronous callback, which bypasses the backpressure",
+				subscriber.threads.get(0).startsWith("storage-watcher-callback"));
+
+		subscriber.subscription.cancel();
+		Files.createFile(directory.resolve("after_cancel"));
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals("Signalled after cancel " + subscriber.events, 1, subscriber.events.size());
+		Assert.assertTrue(subscriber.errors.isEmpty());
+	}
+
+	@Test
+	public void invalidRequestIsSignalledAsError() throws Exception {
+		Path directory = createDirectory("publisher_error_test");
+		subscriber = new TestSubscriber(subscription -> subscription.request(0));
+		publisher(directory, StorageWatcherPublisher.DEFAULT_BUFFER_SIZE, StorageWatcherPublisher.WhenFull.PAUSE).subscribe(subscriber);
+		Thread.sleep(200);
+
+		createFiles(directory, 1);
+		Thread.sleep(DEFAULT_SLEEP);
+		Assert.assertEquals(1, subscriber.errors.size());
+		Assert.assertTrue(subscriber.errors.get(0) instanceof IllegalArgumentException);
+		Assert.assertTrue("Signalled after the error " + subscriber.events, subscriber.events.isEmpty());
+	}
+
+	private static StorageWatcherPublisher publisher(Path directory, int bufferSize, StorageWatcherPublisher.WhenFull whenFull) {
+		return new StorageWatcherPublisher(StorageWatcherBuilder.getBuilder()
+				.eventDriven()
+				.dispatchAsync() // Ignored by the publisher, which needs the callbacks to block the watcher
+				.specifyEvent(StandardWatchEventKinds.ENTRY_CREATE)
+				.specifyEvent(StandardWatchEventKinds.ENTRY_MODIFY)
+				.watchDirectory(directory.toString()), bufferSize, whenFull);
+	}
+
+	private static Path createDirectory(String name) throws Exception {
+		FileHelper.createDirectories(name);
+		return Paths.get(FileHelper.getFullPath(name)).toAbsolutePath();
+	}
+
+	private static void createFiles(Path directory, int amount) throws Exception {
+		for (int i = 0; i < amount; i++) {
+			Files.createFile(directory.resolve("file_" + i));
+		}
+	}
+
+	private static class TestSubscriber implements Flow.Subscriber<FileEvent> {
+		private final Consumer<Flow.Subscription> onSubscribe;
+		private final List<FileEvent> events = new CopyOnWriteArrayList<>();
+		private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+		private final List<String> threads = new CopyOnWriteArrayList<>();
+		private volatile Flow.Subscription subscription;
+
+		private TestSubscriber(Consumer<Flow.Subscription> onSubscribe) {
+			this.onSubscribe = onSubscribe;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			onSubscribe.accept(subscription);
+		}
+
+		@Override
+		public void onNext(FileEvent item) {
+			events.add(item);
+			threads.add(Thread.currentThread().getName());
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			errors.add(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			errors.add(new IllegalStateException("Completed"));
+		}
+	}
+}